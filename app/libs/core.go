@@ -0,0 +1,202 @@
+package tun2socks
+
+import (
+	"context"
+	"errors"
+	"fmt"
+	"log"
+	"time"
+
+	"github.com/bepass-org/wireguard-go/app"
+)
+
+// runCore runs app.RunWarp until ctx is done. When a scan is requested and a
+// cached endpoint is still fresh, that endpoint is tried first and the scan
+// only runs if it does not answer a handshake or does not carry traffic
+// within cachedEndpointTimeout.
+func runCore(ctx context.Context, ready *readiness) {
+	if !global.Scan {
+		if list := splitEndpoints(global.Endpoint); len(list) > 1 {
+			raceEndpoints(ctx, ready, list)
+		} else {
+			runDirect(ctx, ready)
+		}
+		return
+	}
+	// With gool the scan has to provide two endpoints, which the cache cannot.
+	if !global.Gool {
+		if endpoint, ok := endpoints.best(); ok && tryCachedEndpoint(ctx, ready, endpoint) {
+			return
+		}
+		if ctx.Err() != nil {
+			return
+		}
+	}
+	runScan(ctx, ready)
+}
+
+// runDirect runs the core against the configured endpoint.
+func runDirect(ctx context.Context, ready *readiness) {
+	runEndpoint(ctx, ready, global.Endpoint, nil)
+}
+
+// runEndpoint runs the core against endpoint on the configured bind address.
+// onServing, if not nil, is called once the core is listening.
+func runEndpoint(ctx context.Context, ready *readiness, endpoint string, onServing func()) {
+	span := traces.begin("go.direct")
+	go func() {
+		if err := waitListening(ctx, currentBind, readyTimeout); err != nil {
+			span.end(err.Error())
+			ready.failed(PhaseStarting, err.Error())
+			return
+		}
+		span.end(endpoint)
+		if onServing != nil {
+			onServing()
+		}
+		ready.ready(currentBind())
+	}()
+	if err := runWarp(ctx, false, endpoint, global.Rtt); err != nil {
+		log.Println(err)
+		ready.failed(PhaseStarting, err.Error())
+	}
+}
+
+// runScan handshakes with random WARP endpoints under the threshold derived
+// from the handshake RTTs this network measured so far, and runs the core
+// against the fastest one to answer, which is cached once the core serves.
+// With gool, or when no endpoint answered in time, the core runs its own
+// scan instead; app.RunWarp does not report what that scan settles on, so
+// its result is not cached.
+func runScan(ctx context.Context, ready *readiness) {
+	if !global.Gool {
+		span := traces.begin("go.scan")
+		endpoint, rtt, err := scanEndpoints(ctx, time.Duration(global.Rtt)*time.Millisecond)
+		if err == nil {
+			span.end(fmt.Sprintf("under %dms, %s", global.Rtt, endpoint))
+			runEndpoint(ctx, ready, endpoint, func() {
+				endpoints.succeeded(endpoint, rtt)
+			})
+			return
+		}
+		span.end(fmt.Sprintf("under %dms, %v", global.Rtt, err))
+		if ctx.Err() != nil {
+			return
+		}
+		log.Printf("scan: %v, leaving the scan to the core", err)
+	}
+	runCoreScan(ctx, ready)
+}
+
+// runCoreScan runs the scanning core under the current threshold.
+func runCoreScan(ctx context.Context, ready *readiness) {
+	span := traces.begin("go.core_scan")
+	go func() {
+		if err := waitListening(ctx, currentBind, readyTimeout); err != nil {
+			span.end(fmt.Sprintf("under %dms, %v", global.Rtt, err))
+			ready.failed(PhaseStarting, err.Error())
+			return
+		}
+		span.end(fmt.Sprintf("under %dms, found", global.Rtt))
+		ready.ready(currentBind())
+		log.Printf("scan found an endpoint under %dms", global.Rtt)
+	}()
+	if err := runWarp(ctx, true, global.Endpoint, global.Rtt); err != nil {
+		log.Println(err)
+		ready.failed(PhaseStarting, err.Error())
+	}
+}
+
+// tryCachedEndpoint runs the core against endpoint without scanning once the
+// endpoint answered a handshake. It returns true if the endpoint is serving
+// and the core has since stopped, and false once the attempt has been torn
+// down so a scan can take over.
+func tryCachedEndpoint(ctx context.Context, ready *readiness, endpoint string) bool {
+	log.Printf("using cached endpoint %s, skipping the scan", endpoint)
+	span := traces.begin("go.cached")
+	rtt, err := handshakeRtt(ctx, endpoint, handshakeTimeout)
+	if err != nil {
+		span.end(endpoint + " failed")
+		if ctx.Err() != nil {
+			return true
+		}
+		endpoints.failed(endpoint)
+		log.Printf("cached endpoint %s did not answer a handshake (%v), scanning", endpoint, err)
+		return false
+	}
+	rtts.add(rtt)
+	attemptCtx, cancel := context.WithCancel(ctx)
+	defer cancel()
+	exited := make(chan error, 1)
+	go func() {
+		exited <- runWarp(attemptCtx, false, endpoint, global.Rtt)
+	}()
+
+	verified := make(chan error, 1)
+	go func() {
+		err := waitListening(attemptCtx, currentBind, cachedEndpointTimeout)
+		if err == nil {
+			_, err = probeProxy(attemptCtx, currentBind(), cachedEndpointTimeout)
+		}
+		verified <- err
+	}()
+
+	select {
+	case err = <-verified:
+		if err == nil {
+			span.end(endpoint)
+			endpoints.succeeded(endpoint, rtt)
+			ready.ready(currentBind())
+			if err := <-exited; err != nil && ctx.Err() == nil {
+				log.Println(err)
+				ready.failed(PhaseStarting, err.Error())
+			}
+			return true
+		}
+		cancel()
+		// The scan reuses the bind address, so wait for this attempt to let go of it.
+		waitExited(exited)
+	case err = <-exited:
+		if err == nil {
+			err = errors.New("core exited")
+		}
+	}
+	span.end(endpoint + " failed")
+	if ctx.Err() != nil {
+		return true
+	}
+	endpoints.failed(endpoint)
+	log.Printf("cached endpoint %s failed (%v), scanning", endpoint, err)
+	return false
+}
+
+// waitExited waits for a cancelled attempt to return, up to shutdownTimeout.
+func waitExited(exited <-chan error) {
+	select {
+	case <-exited:
+	case <-time.After(shutdownTimeout):
+		log.Println("core attempt did not stop in time")
+	}
+}
+
+// runWarp runs the core on the current bind address. A core that finds the
+// port taken by another process since it was reserved is started again on a
+// fresh one, up to bindRetries times.
+func runWarp(ctx context.Context, scan bool, endpoint string, rtt int) error {
+	for attempt := 0; ; attempt++ {
+		bind := currentBind()
+		err := runWarpOn(ctx, bind, scan, endpoint, rtt)
+		if !isAddrInUse(err) || attempt == bindRetries || ctx.Err() != nil {
+			return err
+		}
+		next, rerr := rebind(bind)
+		if rerr != nil {
+			return err
+		}
+		log.Printf("%s was taken before the core bound it, retrying on %s", bind, next)
+	}
+}
+
+func runWarpOn(ctx context.Context, bindAddress string, scan bool, endpoint string, rtt int) error {
+	return app.RunWarp(global.PsiphonEnabled, global.Gool, scan, global.Verbose, global.Country, bindAddress, endpoint, global.License, ctx, rtt)
+}
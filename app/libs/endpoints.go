@@ -0,0 +1,170 @@
+package tun2socks
+
+import (
+	"encoding/json"
+	"log"
+	"os"
+	"path/filepath"
+	"sort"
+	"sync"
+	"time"
+)
+
+const (
+	endpointCacheFile = "endpoints.json"
+	// endpointTTL is how long a scanned endpoint is trusted without a successful connect.
+	endpointTTL        = 24 * time.Hour
+	maxCachedEndpoints = 16
+	// cachedEndpointTimeout bounds how long a cached endpoint may take to carry
+	// traffic before the scan runs after all.
+	cachedEndpointTimeout = 10 * time.Second
+)
+
+type endpointEntry struct {
+	Address   string `json:"address"`
+	RTTMillis int64  `json:"rtt_ms"`
+	Successes int    `json:"successes"`
+	Failures  int    `json:"failures"`
+	// FailedLast is set when the latest attempt failed; such an entry is not
+	// offered again until a scan finds it working.
+	FailedLast bool  `json:"failed_last"`
+	LastSeen   int64 `json:"last_seen"`
+}
+
+// endpointStore persists the endpoints found by scans under StartOptions.Path
+// so the next connect can skip the scan.
+type endpointStore struct {
+	mu      sync.Mutex
+	dir     string
+	entries map[string]*endpointEntry
+}
+
+var endpoints = &endpointStore{}
+
+// load reads the cache file from dir, once per directory.
+func (s *endpointStore) load(dir string) {
+	s.mu.Lock()
+	defer s.mu.Unlock()
+	if s.entries != nil && s.dir == dir {
+		return
+	}
+	s.dir = dir
+	s.entries = make(map[string]*endpointEntry)
+	data, err := os.ReadFile(filepath.Join(dir, endpointCacheFile))
+	if err != nil {
+		if !os.IsNotExist(err) {
+			log.Printf("endpoint cache: %v", err)
+		}
+		return
+	}
+	var list []*endpointEntry
+	if err := json.Unmarshal(data, &list); err != nil {
+		log.Printf("endpoint cache is corrupt, starting over: %v", err)
+		return
+	}
+	for _, e := range list {
+		s.entries[e.Address] = e
+	}
+}
+
+// best returns the highest ranked endpoint that has not expired or failed last time.
+func (s *endpointStore) best() (string, bool) {
+	s.mu.Lock()
+	defer s.mu.Unlock()
+	ranked := s.rankedLocked()
+	now := time.Now()
+	for _, e := range ranked {
+		if e.FailedLast || now.Sub(time.Unix(e.LastSeen, 0)) > endpointTTL {
+			continue
+		}
+		return e.Address, true
+	}
+	return "", false
+}
+
+func (s *endpointStore) succeeded(address string, rtt time.Duration) {
+	s.mu.Lock()
+	e := s.entryLocked(address)
+	ms := rtt.Milliseconds()
+	if e.RTTMillis == 0 {
+		e.RTTMillis = ms
+	} else {
+		e.RTTMillis = (e.RTTMillis*3 + ms) / 4
+	}
+	e.Successes++
+	e.FailedLast = false
+	e.LastSeen = time.Now().Unix()
+	average := e.RTTMillis
+	s.saveLocked()
+	s.mu.Unlock()
+	log.Printf("endpoint cache: %s ok, rtt %dms", address, average)
+}
+
+func (s *endpointStore) failed(address string) {
+	s.mu.Lock()
+	e := s.entryLocked(address)
+	e.Failures++
+	e.FailedLast = true
+	s.saveLocked()
+	s.mu.Unlock()
+	log.Printf("endpoint cache: %s failed", address)
+}
+
+func (s *endpointStore) entryLocked(address string) *endpointEntry {
+	if s.entries == nil {
+		s.entries = make(map[string]*endpointEntry)
+	}
+	e, ok := s.entries[address]
+	if !ok {
+		e = &endpointEntry{Address: address}
+		s.entries[address] = e
+	}
+	return e
+}
+
+// rankedLocked orders entries by success ratio and then by RTT.
+func (s *endpointStore) rankedLocked() []*endpointEntry {
+	ranked := make([]*endpointEntry, 0, len(s.entries))
+	for _, e := range s.entries {
+		ranked = append(ranked, e)
+	}
+	sort.Slice(ranked, func(i, j int) bool {
+		a, b := ranked[i], ranked[j]
+		ra := float64(a.Successes) / float64(a.Successes+a.Failures+1)
+		rb := float64(b.Successes) / float64(b.Successes+b.Failures+1)
+		if ra != rb {
+			return ra > rb
+		}
+		return a.RTTMillis < b.RTTMillis
+	})
+	return ranked
+}
+
+// saveLocked keeps the best maxCachedEndpoints entries and writes them through
+// a temporary file so a crash never leaves a half written cache.
+func (s *endpointStore) saveLocked() {
+	ranked := s.rankedLocked()
+	if len(ranked) > maxCachedEndpoints {
+		for _, e := range ranked[maxCachedEndpoints:] {
+			delete(s.entries, e.Address)
+		}
+		ranked = ranked[:maxCachedEndpoints]
+	}
+	if s.dir == "" {
+		return
+	}
+	data, err := json.Marshal(ranked)
+	if err != nil {
+		log.Printf("endpoint cache: %v", err)
+		return
+	}
+	path := filepath.Join(s.dir, endpointCacheFile)
+	tmp := path + ".tmp"
+	if err := os.WriteFile(tmp, data, 0o600); err != nil {
+		log.Printf("endpoint cache: %v", err)
+		return
+	}
+	if err := os.Rename(tmp, path); err != nil {
+		log.Printf("endpoint cache: %v", err)
+	}
+}
@@ -0,0 +1,140 @@
+package tun2socks
+
+import (
+	"context"
+	"crypto/rand"
+	"encoding/base64"
+	"encoding/binary"
+	"errors"
+	"fmt"
+	"net"
+	"time"
+
+	"github.com/flynn/noise"
+	"golang.org/x/crypto/blake2s"
+	"golang.org/x/crypto/curve25519"
+)
+
+// A WireGuard handshake against a WARP endpoint is one UDP round trip, the
+// same measurement the core's scanner ranks endpoints by, so its RTT can be
+// compared with the scan threshold and is cheap enough to race endpoints on.
+// It uses the key pair the core's scanner pings with; the handshake only
+// proves the endpoint answers, no session is kept.
+const (
+	handshakePrivateKey = "yGXeX7gMyUIZmK5QIgC7+XX5USUSskQvBYiQ6LdkiXI="
+	warpPublicKey       = "bmXOC+F1FxEMF9dyiK2H5/1SUtzH0JuVo51h2wPfgyo="
+	handshakePrologue   = "WireGuard v1 zx2c4 Jason@zx2c4.com"
+	// tai64Epoch is the TAI64 label of the Unix epoch.
+	tai64Epoch = 0x400000000000000a
+	// Message sizes of the handshake initiation and response.
+	initiationSize = 148
+	responseSize   = 92
+	// handshakeTimeout bounds the wait for a response; WARP answers within
+	// one RTT or, when it drops the initiation, not at all.
+	handshakeTimeout = 2 * time.Second
+)
+
+// handshakeRtt sends a WireGuard handshake initiation to endpoint and returns
+// the time until a valid response came back.
+func handshakeRtt(ctx context.Context, endpoint string, timeout time.Duration) (time.Duration, error) {
+	ctx, cancel := context.WithTimeout(ctx, timeout)
+	defer cancel()
+	hs, initiation, index, err := handshakeInitiation()
+	if err != nil {
+		return 0, err
+	}
+	dialer := net.Dialer{}
+	conn, err := dialer.DialContext(ctx, "udp", endpoint)
+	if err != nil {
+		return 0, err
+	}
+	defer conn.Close()
+	if deadline, ok := ctx.Deadline(); ok {
+		conn.SetDeadline(deadline)
+	}
+	// A cancelled ctx ends the read right away instead of at the deadline.
+	go func() {
+		<-ctx.Done()
+		conn.SetDeadline(time.Now())
+	}()
+
+	start := time.Now()
+	if _, err := conn.Write(initiation); err != nil {
+		return 0, err
+	}
+	response := make([]byte, responseSize)
+	for {
+		n, err := conn.Read(response)
+		if err != nil {
+			if ctx.Err() != nil {
+				return 0, errors.New("no handshake response")
+			}
+			return 0, err
+		}
+		rtt := time.Since(start)
+		// Anything else on the socket, such as a cookie reply under load, is not an answer.
+		if n != responseSize || response[0] != 2 || binary.LittleEndian.Uint32(response[8:12]) != index {
+			continue
+		}
+		if _, _, _, err := hs.ReadMessage(nil, response[12:60]); err != nil {
+			return 0, fmt.Errorf("invalid handshake response: %v", err)
+		}
+		return rtt, nil
+	}
+}
+
+// handshakeInitiation builds an initiation message and returns it with the
+// handshake state to check the response against and its sender index.
+func handshakeInitiation() (*noise.HandshakeState, []byte, uint32, error) {
+	private, err := base64.StdEncoding.DecodeString(handshakePrivateKey)
+	if err != nil {
+		return nil, nil, 0, err
+	}
+	public, err := curve25519.X25519(private, curve25519.Basepoint)
+	if err != nil {
+		return nil, nil, 0, err
+	}
+	peer, err := base64.StdEncoding.DecodeString(warpPublicKey)
+	if err != nil {
+		return nil, nil, 0, err
+	}
+	hs, err := noise.NewHandshakeState(noise.Config{
+		CipherSuite:           noise.NewCipherSuite(noise.DH25519, noise.CipherChaChaPoly, noise.HashBLAKE2s),
+		Pattern:               noise.HandshakeIK,
+		Initiator:             true,
+		Prologue:              []byte(handshakePrologue),
+		PresharedKey:          make([]byte, 32),
+		PresharedKeyPlacement: 2,
+		StaticKeypair:         noise.DHKey{Private: private, Public: public},
+		PeerStatic:            peer,
+	})
+	if err != nil {
+		return nil, nil, 0, err
+	}
+
+	now := time.Now()
+	timestamp := make([]byte, 12)
+	binary.BigEndian.PutUint64(timestamp, uint64(tai64Epoch+now.Unix()))
+	binary.BigEndian.PutUint32(timestamp[8:], uint32(now.Nanosecond()))
+
+	msg := make([]byte, 8, initiationSize)
+	msg[0] = 1
+	if _, err := rand.Read(msg[4:8]); err != nil {
+		return nil, nil, 0, err
+	}
+	index := binary.LittleEndian.Uint32(msg[4:8])
+	msg, _, _, err = hs.WriteMessage(msg, timestamp)
+	if err != nil {
+		return nil, nil, 0, err
+	}
+	macKey := blake2s.Sum256(append([]byte("mac1----"), peer...))
+	mac, err := blake2s.New128(macKey[:])
+	if err != nil {
+		return nil, nil, 0, err
+	}
+	mac.Write(msg)
+	msg = mac.Sum(msg)
+	// No cookie was received, mac2 stays zero.
+	msg = append(msg, make([]byte, 16)...)
+	return hs, msg, index, nil
+}
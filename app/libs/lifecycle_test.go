@@ -0,0 +1,140 @@
+package tun2socks
+
+import (
+	"context"
+	"sync/atomic"
+	"testing"
+	"time"
+)
+
+// recordingReady remembers how a RunWarp ended.
+type recordingReady struct {
+	ready  atomic.Bool
+	failed atomic.Bool
+}
+
+func (r *recordingReady) OnReady(bindAddress string, phase string) {
+	r.ready.Store(true)
+}
+
+func (r *recordingReady) OnFailed(phase string, reason string) {
+	r.failed.Store(true)
+}
+
+// fakeCore stands in for the WARP core and counts the cores that came up.
+type fakeCore struct {
+	started atomic.Int32
+	running atomic.Int32
+}
+
+func stubCore(t *testing.T) *fakeCore {
+	// Keep the test output on stdout instead of the core's log pipe.
+	logSetup.Do(func() {})
+	core := &fakeCore{}
+	startCore = func(ctx context.Context, ready *readiness) {
+		core.started.Add(1)
+		core.running.Add(1)
+		defer core.running.Add(-1)
+		ready.ready(currentBind())
+		<-ctx.Done()
+	}
+	t.Cleanup(func() {
+		startCore = runCore
+		beforeRegister = func() {}
+	})
+	return core
+}
+
+var nextTestSession atomic.Int32
+
+// newSession returns a session newer than any a test stopped so far.
+func newSession() int {
+	return int(nextTestSession.Add(1)) + 1000
+}
+
+// runWarpAsync starts RunWarp for session and returns a channel closed once it returns.
+func runWarpAsync(t *testing.T, session int, ready ReadyCallback) <-chan struct{} {
+	returned := make(chan struct{})
+	opt := &StartOptions{Path: t.TempDir(), BindAddress: "127.0.0.1:0", Session: session, Ready: ready}
+	go func() {
+		RunWarp(opt)
+		close(returned)
+	}()
+	return returned
+}
+
+func waitReturned(t *testing.T, returned <-chan struct{}, what string) {
+	t.Helper()
+	select {
+	case <-returned:
+	case <-time.After(shutdownTimeout + time.Second):
+		t.Fatalf("%s: RunWarp did not return", what)
+	}
+}
+
+// A stop that arrives while RunWarp is binding and loading state, before it
+// registered its cancel func, must keep the core from coming up at all.
+func TestShutdownWhileRunWarpIsStarting(t *testing.T) {
+	core := stubCore(t)
+	session := newSession()
+	beforeRegister = func() { Shutdown(session) }
+	ready := &recordingReady{}
+	waitReturned(t, runWarpAsync(t, session, ready), "stopped while starting")
+	if n := core.started.Load(); n != 0 {
+		t.Fatalf("core came up %d times after its session was stopped", n)
+	}
+	if !ready.failed.Load() || ready.ready.Load() {
+		t.Fatalf("readiness: ready=%v failed=%v, want a failure", ready.ready.Load(), ready.failed.Load())
+	}
+}
+
+func TestShutdownBeforeRunWarp(t *testing.T) {
+	core := stubCore(t)
+	session := newSession()
+	Shutdown(session)
+	waitReturned(t, runWarpAsync(t, session, &recordingReady{}), "stopped before start")
+	if n := core.started.Load(); n != 0 {
+		t.Fatalf("core came up %d times after its session was stopped", n)
+	}
+}
+
+// Shutdown, RunWarp of the next session, Shutdown: the stop of the old
+// session leaves the new core alone and the second stop ends it.
+func TestShutdownRunWarpShutdown(t *testing.T) {
+	core := stubCore(t)
+	old := newSession()
+	Shutdown(old)
+	session := newSession()
+	ready := &recordingReady{}
+	returned := runWarpAsync(t, session, ready)
+	deadline := time.Now().Add(time.Second)
+	for !ready.ready.Load() {
+		if time.Now().After(deadline) {
+			t.Fatal("core of the new session did not come up")
+		}
+		time.Sleep(time.Millisecond)
+	}
+	Shutdown(old)
+	if core.running.Load() != 1 {
+		t.Fatal("stopping an old session stopped the new core")
+	}
+	Shutdown(session)
+	waitReturned(t, returned, "stopped after start")
+	if n := core.running.Load(); n != 0 {
+		t.Fatalf("%d cores still running after shutdown", n)
+	}
+}
+
+// Stops racing starts must never leave a core running.
+func TestShutdownRacingRunWarp(t *testing.T) {
+	core := stubCore(t)
+	for i := 0; i < 50; i++ {
+		session := newSession()
+		returned := runWarpAsync(t, session, &recordingReady{})
+		Shutdown(session)
+		waitReturned(t, returned, "racing stop")
+		if n := core.running.Load(); n != 0 {
+			t.Fatalf("round %d: %d cores still running after shutdown", i, n)
+		}
+	}
+}
@@ -0,0 +1,113 @@
+package tun2socks
+
+import (
+	"fmt"
+	"strings"
+	"sync"
+	"sync/atomic"
+	"time"
+)
+
+const (
+	logRingCapacity = 4096
+	// logBatchDelay lets a burst of lines cross the gomobile boundary as one batch.
+	logBatchDelay = 200 * time.Millisecond
+)
+
+// LogCallback is implemented on the Java side and receives log lines in batches,
+// only when there is something to deliver.
+type LogCallback interface {
+	OnLogs(batch string)
+}
+
+// logRing keeps the most recent log lines in a fixed-size buffer; when it is
+// full the oldest line is overwritten and counted as dropped.
+type logRing struct {
+	mu      sync.Mutex
+	lines   []string
+	head    int
+	size    int
+	dropped int64
+	notify  chan struct{}
+
+	totalDropped int64
+	callback     atomic.Value
+	deliverOnce  sync.Once
+}
+
+func newLogRing(capacity int) *logRing {
+	return &logRing{
+		lines:  make([]string, capacity),
+		notify: make(chan struct{}, 1),
+	}
+}
+
+func (r *logRing) push(line string) {
+	r.mu.Lock()
+	if r.size == len(r.lines) {
+		r.lines[r.head] = line
+		r.head = (r.head + 1) % len(r.lines)
+		r.dropped++
+		atomic.AddInt64(&r.totalDropped, 1)
+	} else {
+		r.lines[(r.head+r.size)%len(r.lines)] = line
+		r.size++
+	}
+	r.mu.Unlock()
+
+	select {
+	case r.notify <- struct{}{}:
+	default:
+	}
+}
+
+// drain empties the ring and returns its content as one newline separated batch.
+func (r *logRing) drain() string {
+	r.mu.Lock()
+	defer r.mu.Unlock()
+	if r.size == 0 && r.dropped == 0 {
+		return ""
+	}
+	var b strings.Builder
+	if r.dropped > 0 {
+		fmt.Fprintf(&b, "[%d log lines dropped]\n", r.dropped)
+		r.dropped = 0
+	}
+	for i := 0; i < r.size; i++ {
+		idx := (r.head + i) % len(r.lines)
+		b.WriteString(r.lines[idx])
+		b.WriteByte('\n')
+		r.lines[idx] = ""
+	}
+	r.head = 0
+	r.size = 0
+	return b.String()
+}
+
+func (r *logRing) setCallback(cb LogCallback) {
+	r.callback.Store(&cb)
+	r.deliverOnce.Do(func() {
+		go r.deliver()
+	})
+}
+
+func (r *logRing) deliver() {
+	for range r.notify {
+		time.Sleep(logBatchDelay)
+		cb, _ := r.callback.Load().(*LogCallback)
+		if cb == nil || *cb == nil {
+			// Lines stay in the ring for GetLogMessages.
+			continue
+		}
+		if batch := r.drain(); batch != "" {
+			(*cb).OnLogs(batch)
+		}
+	}
+}
+
+var logs = newLogRing(logRingCapacity)
+
+// DroppedLogLines returns how many log lines were overwritten before they could be delivered.
+func DroppedLogLines() int64 {
+	return atomic.LoadInt64(&logs.totalDropped)
+}
@@ -0,0 +1,120 @@
+package lwip
+
+import (
+	"errors"
+	"io"
+	"os"
+	"syscall"
+
+	"github.com/songgao/water"
+)
+
+const (
+	defaultBatchSize = 32
+	maxBatchSize     = 256
+	minPacketSlot    = 2048
+)
+
+var errTunClosed = errors.New("tun device is closed")
+
+func batchSize(n int) int {
+	if n <= 0 {
+		return defaultBatchSize
+	}
+	if n > maxBatchSize {
+		return maxBatchSize
+	}
+	return n
+}
+
+func rawConnOf(dev *water.Interface) (syscall.RawConn, error) {
+	f, ok := dev.ReadWriteCloser.(*os.File)
+	if !ok {
+		return nil, errors.New("tun device is not a file")
+	}
+	return f.SyscallConn()
+}
+
+// batchReader drains up to one ring of packets per poller wakeup. A tun fd
+// returns one packet per read(2), but only the first read of a burst has to
+// wait for the poller; the rest are taken while the fd stays readable.
+type batchReader struct {
+	dev  *water.Interface
+	rc   syscall.RawConn
+	ring [][]byte
+	lens []int
+}
+
+func newBatchReader(dev *water.Interface, size, mtu int) (*batchReader, error) {
+	rc, err := rawConnOf(dev)
+	if err != nil {
+		return nil, err
+	}
+	slot := minPacketSlot
+	if mtu > slot {
+		slot = mtu
+	}
+	r := &batchReader{dev: dev, rc: rc, ring: make([][]byte, size), lens: make([]int, size)}
+	for i := range r.ring {
+		r.ring[i] = make([]byte, slot)
+	}
+	return r, nil
+}
+
+// read fills the ring and returns how many packets it holds. An error, io.EOF
+// for a device whose other end is gone, is only returned once no packet was
+// read.
+func (r *batchReader) read() (int, error) {
+	var n int
+	var readErr error
+	err := r.rc.Read(func(fd uintptr) bool {
+		for n < len(r.ring) {
+			m, err := syscall.Read(int(fd), r.ring[n])
+			switch {
+			case err == syscall.EINTR:
+				continue
+			case err == syscall.EAGAIN:
+				// Nothing read yet means wait for the poller.
+				return n > 0
+			case err != nil:
+				readErr = err
+				return true
+			case m > 0:
+				r.lens[n] = m
+				n++
+			case n > 0:
+				// End of file behind a packet: hand over what was read, the
+				// next read reports it.
+				return true
+			default:
+				// A zero-length read is end of file, retrying it would spin.
+				readErr = io.EOF
+				return true
+			}
+		}
+		return true
+	})
+	if n > 0 {
+		readWakeups.Add(1)
+		return n, nil
+	}
+	if err != nil {
+		return 0, err
+	}
+	return 0, readErr
+}
+
+func (r *batchReader) packet(i int) []byte {
+	return r.ring[i][:r.lens[i]]
+}
+
+// writeTun writes one packet of netstack output straight to the current tun
+// device, from the output callback. A tun fd takes one packet per write(2),
+// so a queue in front of it would only add a copy and a goroutine hop.
+func writeTun(p []byte) (int, error) {
+	dev := tunDev.Load()
+	if dev == nil {
+		return 0, errTunClosed
+	}
+	return countOutput(dev.Write(p))
+}
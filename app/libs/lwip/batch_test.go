@@ -0,0 +1,55 @@
+//go:build linux
+
+package lwip
+
+import (
+	"io"
+	"os"
+	"testing"
+	"time"
+
+	"github.com/songgao/water"
+)
+
+// A zero-length read is end of file; read must report it instead of
+// retrying it forever.
+func TestBatchReaderEOF(t *testing.T) {
+	pr, pw, err := os.Pipe()
+	if err != nil {
+		t.Fatal(err)
+	}
+	defer pr.Close()
+	if _, err := pw.Write([]byte{1, 2, 3}); err != nil {
+		t.Fatal(err)
+	}
+	pw.Close()
+	r, err := newBatchReader(&water.Interface{ReadWriteCloser: pr}, 4, 1500)
+	if err != nil {
+		t.Fatal(err)
+	}
+
+	type result struct {
+		n   int
+		err error
+	}
+	results := make(chan result, 1)
+	read := func() result {
+		go func() {
+			n, err := r.read()
+			results <- result{n, err}
+		}()
+		select {
+		case res := <-results:
+			return res
+		case <-time.After(time.Second):
+			t.Fatal("read spins on a zero-length read")
+			return result{}
+		}
+	}
+	if res := read(); res.n != 1 || res.err != nil || len(r.packet(0)) != 3 {
+		t.Fatalf("first read: %d packets, err %v", res.n, res.err)
+	}
+	if res := read(); res.n != 0 || res.err != io.EOF {
+		t.Fatalf("read at end of file: %d packets, err %v, want io.EOF", res.n, res.err)
+	}
+}
@@ -0,0 +1,335 @@
+//go:build linux
+
+package lwip
+
+// The benchmarks run the whole packet path without a tun device or a network:
+// Start reads one end of a SOCK_SEQPACKET socketpair, which keeps packet
+// boundaries like a tun fd, and a gVisor stack on the other end plays the
+// apps. Flows leave through the SOCKS5 dialer to socksEcho and come back the
+// same way, so every payload byte crosses the netstack twice in each direction.
+//
+//	go test -run '^$' -bench . -benchmem ./lwip
+
+import (
+	"context"
+	"io"
+	"net"
+	"net/netip"
+	"os"
+	"runtime"
+	"sort"
+	"syscall"
+	"testing"
+	"time"
+
+	"github.com/xjasonlyu/tun2socks/v2/core/device/iobased"
+	"golang.org/x/net/proxy"
+	"gvisor.dev/gvisor/pkg/tcpip"
+	"gvisor.dev/gvisor/pkg/tcpip/adapters/gonet"
+	"gvisor.dev/gvisor/pkg/tcpip/header"
+	"gvisor.dev/gvisor/pkg/tcpip/network/ipv4"
+	"gvisor.dev/gvisor/pkg/tcpip/network/ipv6"
+	"gvisor.dev/gvisor/pkg/tcpip/stack"
+	"gvisor.dev/gvisor/pkg/tcpip/transport/tcp"
+	"gvisor.dev/gvisor/pkg/tcpip/transport/udp"
+)
+
+const (
+	benchMTU     = 1500
+	benchNIC     = 1
+	bulkChunk    = 16 << 10
+	messageSize  = 64
+	replyTimeout = 5 * time.Second
+	// socksLinkDelay is the one-way delay to the proxy in BenchmarkSOCKS5Dial.
+	socksLinkDelay = 2 * time.Millisecond
+)
+
+var benchEngines = []string{EngineLwIP, EngineGVisor}
+
+var benchFamilies = []struct {
+	name   string
+	target netip.AddrPort
+}{
+	{"v4", netip.MustParseAddrPort("198.18.0.1:7000")},
+	{"v6", netip.MustParseAddrPort("[2001:db8::1]:7000")},
+}
+
+// peer is the app side of the socketpair.
+type peer struct {
+	stack *stack.Stack
+	file  *os.File
+}
+
+func newPeer(tb testing.TB, fd int) *peer {
+	if err := syscall.SetNonblock(fd, true); err != nil {
+		tb.Fatal(err)
+	}
+	file := os.NewFile(uintptr(fd), "peer")
+	ep, err := iobased.New(file, benchMTU, 0)
+	if err != nil {
+		file.Close()
+		tb.Fatal(err)
+	}
+	s := stack.New(stack.Options{
+		NetworkProtocols:   []stack.NetworkProtocolFactory{ipv4.NewProtocol, ipv6.NewProtocol},
+		TransportProtocols: []stack.TransportProtocolFactory{tcp.NewProtocol, udp.NewProtocol},
+	})
+	if err := s.CreateNIC(benchNIC, ep); err != nil {
+		tb.Fatal(err)
+	}
+	for _, addr := range []tcpip.ProtocolAddress{
+		{Protocol: ipv4.ProtocolNumber, AddressWithPrefix: tcpip.AddrFrom4([4]byte{10, 0, 0, 2}).WithPrefix()},
+		{Protocol: ipv6.ProtocolNumber, AddressWithPrefix: tcpip.AddrFrom16([16]byte{0xfd, 15: 2}).WithPrefix()},
+	} {
+		if err := s.AddProtocolAddress(benchNIC, addr, stack.AddressProperties{}); err != nil {
+			tb.Fatal(err)
+		}
+	}
+	s.SetRouteTable([]tcpip.Route{
+		{Destination: header.IPv4EmptySubnet, NIC: benchNIC},
+		{Destination: header.IPv6EmptySubnet, NIC: benchNIC},
+	})
+	return &peer{stack: s, file: file}
+}
+
+func (p *peer) close() {
+	p.file.Close()
+	p.stack.Close()
+	p.stack.Wait()
+}
+
+func fullAddress(target netip.AddrPort) (tcpip.FullAddress, tcpip.NetworkProtocolNumber) {
+	addr := tcpip.FullAddress{NIC: benchNIC, Addr: tcpip.AddrFromSlice(target.Addr().AsSlice()), Port: target.Port()}
+	if target.Addr().Is4() {
+		return addr, ipv4.ProtocolNumber
+	}
+	return addr, ipv6.ProtocolNumber
+}
+
+func (p *peer) dialTCP(target netip.AddrPort) (net.Conn, error) {
+	addr, proto := fullAddress(target)
+	ctx, cancel := context.WithTimeout(context.Background(), replyTimeout)
+	defer cancel()
+	return gonet.DialContextTCP(ctx, p.stack, addr, proto)
+}
+
+func (p *peer) dialUDP(target netip.AddrPort) (net.Conn, error) {
+	addr, proto := fullAddress(target)
+	return gonet.DialUDP(p.stack, nil, &addr, proto)
+}
+
+// startDatapath starts the netstack under test on a fresh socketpair and
+// returns the peer and a function that stops both.
+func startDatapath(b *testing.B, engine, proxy string) (*peer, func()) {
+	fds, err := syscall.Socketpair(syscall.AF_UNIX, syscall.SOCK_SEQPACKET|syscall.SOCK_CLOEXEC, 0)
+	if err != nil {
+		b.Fatal(err)
+	}
+	if rc := Start(&Tun2socksStartOptions{
+		TunFd:        fds[0],
+		Socks5Server: proxy,
+		MTU:          benchMTU,
+		Engine:       engine,
+		EnableIPv6:   true,
+		AllowLan:     true,
+	}); rc != 0 {
+		syscall.Close(fds[1])
+		b.Fatalf("start %v: %d", engine, rc)
+	}
+	p := newPeer(b, fds[1])
+	return p, func() {
+		p.close()
+		Stop()
+	}
+}
+
+// measure collects what a run reports besides time per op.
+type measure struct {
+	mallocs    uint64
+	goroutines int
+	latencies  []time.Duration
+}
+
+func startMeasure(b *testing.B) *measure {
+	var ms runtime.MemStats
+	runtime.ReadMemStats(&ms)
+	b.ResetTimer()
+	return &measure{mallocs: ms.Mallocs, goroutines: runtime.NumGoroutine()}
+}
+
+func (m *measure) sample(start time.Time) {
+	m.latencies = append(m.latencies, time.Since(start))
+	if n := runtime.NumGoroutine(); n > m.goroutines {
+		m.goroutines = n
+	}
+}
+
+// report adds p50 and p99 latency, allocations per packet seen by the
+// netstack and the peak goroutine count. Allocations include the peer stack
+// and the echo server, so compare them between runs rather than read them
+// as the cost of the data path alone.
+func (m *measure) report(b *testing.B) {
+	b.StopTimer()
+	if n := runtime.NumGoroutine(); n > m.goroutines {
+		m.goroutines = n
+	}
+	var ms runtime.MemStats
+	runtime.ReadMemStats(&ms)
+	s := GetStats()
+	if packets := s.UpPackets + s.DownPackets; packets > 0 {
+		b.ReportMetric(float64(ms.Mallocs-m.mallocs)/float64(packets), "allocs/pkt")
+	}
+	if len(m.latencies) > 0 {
+		sort.Slice(m.latencies, func(i, j int) bool { return m.latencies[i] < m.latencies[j] })
+		b.ReportMetric(float64(m.latencies[len(m.latencies)/2].Microseconds()), "p50-µs")
+		b.ReportMetric(float64(m.latencies[len(m.latencies)*99/100].Microseconds()), "p99-µs")
+	}
+	b.ReportMetric(float64(m.goroutines), "goroutines")
+	b.ReportMetric(s.PacketsPerWakeup, "pkts/wakeup")
+}
+
+// forEachPath runs workload once per engine and address family.
+func forEachPath(b *testing.B, workload func(b *testing.B, p *peer, target netip.AddrPort, m *measure)) {
+	proxy := startSocksEcho(b)
+	for _, engine := range benchEngines {
+		for _, family := range benchFamilies {
+			engine, family := engine, family
+			b.Run(engine+"/"+family.name, func(b *testing.B) {
+				p, stop := startDatapath(b, engine, proxy.addr())
+				defer stop()
+				b.ReportAllocs()
+				m := startMeasure(b)
+				workload(b, p, family.target, m)
+				m.report(b)
+			})
+		}
+	}
+}
+
+func BenchmarkTCPBulk(b *testing.B) {
+	forEachPath(b, func(b *testing.B, p *peer, target netip.AddrPort, m *measure) {
+		conn, err := p.dialTCP(target)
+		if err != nil {
+			b.Fatal(err)
+		}
+		defer conn.Close()
+		b.SetBytes(bulkChunk)
+		written := make(chan error, 1)
+		go func() {
+			chunk := make([]byte, bulkChunk)
+			for i := 0; i < b.N; i++ {
+				if _, err := conn.Write(chunk); err != nil {
+					written <- err
+					return
+				}
+			}
+			written <- nil
+		}()
+		if _, err := io.CopyN(io.Discard, conn, int64(b.N)*bulkChunk); err != nil {
+			b.Fatal(err)
+		}
+		if err := <-written; err != nil {
+			b.Fatal(err)
+		}
+	})
+}
+
+func BenchmarkTCPRequestResponse(b *testing.B) {
+	forEachPath(b, func(b *testing.B, p *peer, target netip.AddrPort, m *measure) {
+		conn, err := p.dialTCP(target)
+		if err != nil {
+			b.Fatal(err)
+		}
+		defer conn.Close()
+		exchange(b, conn, m)
+	})
+}
+
+// BenchmarkTCPShortFlows opens, uses and closes one connection per op, the
+// pattern of page loads and API calls.
+func BenchmarkTCPShortFlows(b *testing.B) {
+	forEachPath(b, func(b *testing.B, p *peer, target netip.AddrPort, m *measure) {
+		msg := make([]byte, messageSize)
+		reply := make([]byte, messageSize)
+		for i := 0; i < b.N; i++ {
+			start := time.Now()
+			conn, err := p.dialTCP(target)
+			if err != nil {
+				b.Fatal(err)
+			}
+			conn.SetDeadline(time.Now().Add(replyTimeout))
+			if _, err := conn.Write(msg); err != nil {
+				b.Fatal(err)
+			}
+			if _, err := io.ReadFull(conn, reply); err != nil {
+				b.Fatal(err)
+			}
+			conn.Close()
+			m.sample(start)
+		}
+	})
+}
+
+func BenchmarkUDPRequestResponse(b *testing.B) {
+	forEachPath(b, func(b *testing.B, p *peer, target netip.AddrPort, m *measure) {
+		conn, err := p.dialUDP(target)
+		if err != nil {
+			b.Fatal(err)
+		}
+		defer conn.Close()
+		exchange(b, conn, m)
+	})
+}
+
+// exchange sends b.N messages on conn one at a time, each after the echo of
+// the previous one came back.
+func exchange(b *testing.B, conn net.Conn, m *measure) {
+	b.SetBytes(messageSize)
+	msg := make([]byte, messageSize)
+	reply := make([]byte, messageSize)
+	for i := 0; i < b.N; i++ {
+		start := time.Now()
+		conn.SetDeadline(start.Add(replyTimeout))
+		if _, err := conn.Write(msg); err != nil {
+			b.Fatal(err)
+		}
+		if _, err := io.ReadFull(conn, reply); err != nil {
+			b.Fatal(err)
+		}
+		m.sample(start)
+	}
+}
+
+// BenchmarkSOCKS5Dial compares the handshake every TCP flow and DNS upstream
+// connection pays: socks5Dialer sends the greeting and the CONNECT in one
+// write, the x/net client waits for the greeting reply before it sends the
+// CONNECT. The proxy sits behind a link with a round trip of
+// 2*socksLinkDelay, and rtt/dial reports how many of those a dial took.
+func BenchmarkSOCKS5Dial(b *testing.B) {
+	link := startDelayedLink(b, startSocksEcho(b).addr(), socksLinkDelay)
+	sequential, err := proxy.SOCKS5("tcp", link, nil, proxy.Direct)
+	if err != nil {
+		b.Fatal(err)
+	}
+	target := benchFamilies[0].target.String()
+	for _, d := range []struct {
+		name   string
+		dialer contextDialer
+	}{
+		{"pipelined", socks5Dialer{proxy: link}},
+		{"sequential", sequential.(proxy.ContextDialer)},
+	} {
+		d := d
+		b.Run(d.name, func(b *testing.B) {
+			ctx := context.Background()
+			for i := 0; i < b.N; i++ {
+				conn, err := d.dialer.DialContext(ctx, "tcp", target)
+				if err != nil {
+					b.Fatal(err)
+				}
+				conn.Close()
+			}
+			b.ReportMetric(float64(b.Elapsed())/float64(b.N)/float64(2*socksLinkDelay), "rtt/dial")
+		})
+	}
+}
@@ -0,0 +1,162 @@
+package lwip
+
+import (
+	"context"
+	"encoding/binary"
+	"errors"
+	"fmt"
+	"io"
+	"net"
+	"strconv"
+	"time"
+
+	"github.com/eycorsican/go-tun2socks/common/dns"
+	"github.com/eycorsican/go-tun2socks/component/pool"
+)
+
+const tcpDialTimeout = 15 * time.Second
+
+// contextDialer opens the streams of lwIP flows and the DNS upstream, through
+// the SOCKS5 proxy or, for flows the domain rules send direct, a local socket.
+type contextDialer interface {
+	DialContext(ctx context.Context, network, address string) (net.Conn, error)
+}
+
+// socks5Dialer speaks just enough SOCKS5 for CONNECT without authentication.
+// The greeting and the request go out in one write and both replies are read
+// afterwards, so a dial costs one round trip to the proxy instead of two.
+type socks5Dialer struct {
+	proxy string
+}
+
+func (d socks5Dialer) DialContext(ctx context.Context, network, address string) (net.Conn, error) {
+	host, portStr, err := net.SplitHostPort(address)
+	if err != nil {
+		return nil, err
+	}
+	port, err := strconv.Atoi(portStr)
+	if err != nil {
+		return nil, err
+	}
+	request := []byte{5, 1, 0, 5, 1, 0}
+	if ip := net.ParseIP(host); ip == nil {
+		if len(host) > 255 {
+			return nil, errors.New("host name too long")
+		}
+		request = append(request, 3, byte(len(host)))
+		request = append(request, host...)
+	} else if ip4 := ip.To4(); ip4 != nil {
+		request = append(request, 1)
+		request = append(request, ip4...)
+	} else {
+		request = append(request, 4)
+		request = append(request, ip.To16()...)
+	}
+	request = binary.BigEndian.AppendUint16(request, uint16(port))
+
+	var nd net.Dialer
+	conn, err := nd.DialContext(ctx, "tcp", d.proxy)
+	if err != nil {
+		return nil, err
+	}
+	if deadline, ok := ctx.Deadline(); ok {
+		conn.SetDeadline(deadline)
+	}
+	if err := socks5Handshake(conn, request); err != nil {
+		conn.Close()
+		return nil, err
+	}
+	conn.SetDeadline(time.Time{})
+	return conn, nil
+}
+
+func socks5Handshake(conn net.Conn, request []byte) error {
+	if _, err := conn.Write(request); err != nil {
+		return err
+	}
+	var reply [5]byte
+	if _, err := io.ReadFull(conn, reply[:2]); err != nil {
+		return err
+	}
+	if reply[0] != 5 || reply[1] != 0 {
+		return errors.New("socks5: no acceptable authentication method")
+	}
+	if _, err := io.ReadFull(conn, reply[:5]); err != nil {
+		return err
+	}
+	if reply[1] != 0 {
+		return fmt.Errorf("socks5: connect failed with code %d", reply[1])
+	}
+	// Skip the bound address; its first byte was read with the header.
+	var skip int
+	switch reply[3] {
+	case 1:
+		skip = 4 - 1 + 2
+	case 4:
+		skip = 16 - 1 + 2
+	case 3:
+		skip = int(reply[4]) + 2
+	default:
+		return errors.New("socks5: bad address type in reply")
+	}
+	_, err := io.ReadFull(conn, make([]byte, skip))
+	return err
+}
+
+// directTCPHandler hands each lwIP TCP flow to a dialer and relays it. Fake
+// addresses are dialed by name so the tunnel does the real resolution, or
+// the system resolver when the domain rules send the flow direct.
+type directTCPHandler struct {
+	dialer  contextDialer
+	fakeDNS dns.FakeDns
+}
+
+func (h directTCPHandler) Handle(conn net.Conn, target *net.TCPAddr) error {
+	address := target.String()
+	dialer := h.dialer
+	if h.fakeDNS != nil && h.fakeDNS.IsFakeIP(target.IP) {
+		domain := h.fakeDNS.QueryDomain(target.IP)
+		if domain == "" {
+			return fmt.Errorf("no domain for fake ip %v", target.IP)
+		}
+		address = net.JoinHostPort(domain, strconv.Itoa(target.Port))
+		if routeDirect(domain) {
+			dialer = directDialer
+		}
+	}
+	ctx, cancel := context.WithTimeout(context.Background(), tcpDialTimeout)
+	defer cancel()
+	remote, err := dialer.DialContext(ctx, "tcp", address)
+	if err != nil {
+		return err
+	}
+	go relay(conn, remote)
+	return nil
+}
+
+// relay copies both directions and propagates half-closes, then closes both ends.
+func relay(local, remote net.Conn) {
+	upDone := make(chan struct{})
+	go func() {
+		copyHalf(remote, local)
+		close(upDone)
+	}()
+	copyHalf(local, remote)
+	<-upDone
+	local.Close()
+	remote.Close()
+}
+
+func copyHalf(dst, src net.Conn) {
+	buf := pool.NewBytes(pool.BufSize)
+	io.CopyBuffer(dst, src, buf)
+	pool.FreeBytes(buf)
+	if c, ok := dst.(interface{ CloseWrite() error }); ok {
+		c.CloseWrite()
+	} else {
+		dst.Close()
+	}
+	if c, ok := src.(interface{ CloseRead() error }); ok {
+		c.CloseRead()
+	}
+}
@@ -0,0 +1,101 @@
+package lwip
+
+import (
+	"net"
+	"strconv"
+	"sync"
+	"time"
+
+	"github.com/eycorsican/go-tun2socks/common/dns"
+	"github.com/eycorsican/go-tun2socks/component/pool"
+	"github.com/eycorsican/go-tun2socks/core"
+)
+
+// Flows the domain rules send direct leave through sockets of this process,
+// which the VPN interface does not capture, and are resolved by the system
+// resolver on the underlying network.
+
+const directUDPIdle = 30 * time.Second
+
+var directDialer contextDialer = &net.Dialer{}
+
+// directUDPHandler relays UDP flows to fake IPs whose domain routes direct
+// over a local socket; every other flow goes to next.
+type directUDPHandler struct {
+	next    core.UDPConnHandler
+	fakeDNS dns.FakeDns
+
+	mu    sync.Mutex
+	flows map[core.UDPConn]*directUDPFlow
+}
+
+type directUDPFlow struct {
+	socket net.PacketConn
+	remote *net.UDPAddr
+}
+
+func newDirectUDPHandler(next core.UDPConnHandler, fakeDNS dns.FakeDns) core.UDPConnHandler {
+	if fakeDNS == nil {
+		return next
+	}
+	return &directUDPHandler{
+		next:    next,
+		fakeDNS: fakeDNS,
+		flows:   make(map[core.UDPConn]*directUDPFlow),
+	}
+}
+
+func (h *directUDPHandler) Connect(conn core.UDPConn, target *net.UDPAddr) error {
+	if target == nil || !h.fakeDNS.IsFakeIP(target.IP) {
+		return h.next.Connect(conn, target)
+	}
+	domain := h.fakeDNS.QueryDomain(target.IP)
+	if !routeDirect(domain) {
+		return h.next.Connect(conn, target)
+	}
+	remote, err := net.ResolveUDPAddr("udp", net.JoinHostPort(domain, strconv.Itoa(target.Port)))
+	if err != nil {
+		return err
+	}
+	socket, err := net.ListenPacket("udp", "")
+	if err != nil {
+		return err
+	}
+	h.mu.Lock()
+	h.flows[conn] = &directUDPFlow{socket: socket, remote: remote}
+	h.mu.Unlock()
+	// Replies are handed back as if they came from the fake address the app used.
+	go h.relayReplies(conn, socket, target)
+	return nil
+}
+
+func (h *directUDPHandler) ReceiveTo(conn core.UDPConn, data []byte, addr *net.UDPAddr) error {
+	h.mu.Lock()
+	flow, ok := h.flows[conn]
+	h.mu.Unlock()
+	if !ok {
+		return h.next.ReceiveTo(conn, data, addr)
+	}
+	_, err := flow.socket.WriteTo(data, flow.remote)
+	return err
+}
+
+func (h *directUDPHandler) relayReplies(conn core.UDPConn, socket net.PacketConn, from *net.UDPAddr) {
+	buf := pool.NewBytes(pool.BufSize)
+	defer pool.FreeBytes(buf)
+	for {
+		socket.SetReadDeadline(time.Now().Add(directUDPIdle))
+		n, _, err := socket.ReadFrom(buf)
+		if err != nil {
+			break
+		}
+		if _, err := conn.WriteFrom(buf[:n], from); err != nil {
+			break
+		}
+	}
+	h.mu.Lock()
+	delete(h.flows, conn)
+	h.mu.Unlock()
+	socket.Close()
+	conn.Close()
+}
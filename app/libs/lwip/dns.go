@@ -0,0 +1,340 @@
+package lwip
+
+import (
+	"container/list"
+	"context"
+	"net"
+	"strings"
+	"sync"
+	"sync/atomic"
+	"time"
+
+	"github.com/eycorsican/go-tun2socks/common/dns"
+	"github.com/eycorsican/go-tun2socks/common/log"
+	"github.com/eycorsican/go-tun2socks/core"
+	"golang.org/x/net/dns/dnsmessage"
+)
+
+const (
+	dnsPort         = 53
+	dnsCacheEntries = 2048
+	// Negative answers without an SOA are kept this long, and any negative
+	// answer at most dnsMaxNegativeTTL.
+	dnsDefaultNegativeTTL = 30 * time.Second
+	dnsMaxNegativeTTL     = 5 * time.Minute
+	dnsMaxTTL             = 24 * time.Hour
+	// A name asked for at least dnsPrefetchHits times is refreshed in the
+	// background once less than 1/dnsPrefetchFraction of its TTL is left.
+	dnsPrefetchHits     = 3
+	dnsPrefetchFraction = 10
+	// dnsFlowIdle closes a UDP flow to port 53 that has been quiet this long.
+	dnsFlowIdle = 10 * time.Second
+)
+
+// DNS counters, reset with the data path counters.
+var (
+	dnsHits         atomic.Uint64
+	dnsMisses       atomic.Uint64
+	dnsNegativeHits atomic.Uint64
+	dnsPrefetches   atomic.Uint64
+	dnsFailures     atomic.Uint64
+	// dnsUpstreamMicros sums the latency of answered upstream queries.
+	dnsUpstreamMicros  atomic.Uint64
+	dnsUpstreamAnswers atomic.Uint64
+)
+
+func resetDNSStats() {
+	dnsHits.Store(0)
+	dnsMisses.Store(0)
+	dnsNegativeHits.Store(0)
+	dnsPrefetches.Store(0)
+	dnsFailures.Store(0)
+	dnsUpstreamMicros.Store(0)
+	dnsUpstreamAnswers.Store(0)
+}
+
+// dnsHandler takes over UDP flows to port 53. A queries are answered by the
+// fake DNS when fake IPs are enabled; everything else comes from a TTL
+// honoring LRU cache or from the upstream connection. Other UDP flows go to next.
+type dnsHandler struct {
+	next     core.UDPConnHandler
+	fakeDNS  dns.FakeDns
+	cache    *dnsCache
+	upstream *dnsUpstream
+
+	mu    sync.Mutex
+	flows map[core.UDPConn]*time.Timer
+}
+
+func newDNSHandler(next core.UDPConnHandler, fakeDNS dns.FakeDns, cache *dnsCache, upstream *dnsUpstream) *dnsHandler {
+	return &dnsHandler{
+		next:     next,
+		fakeDNS:  fakeDNS,
+		cache:    cache,
+		upstream: upstream,
+		flows:    make(map[core.UDPConn]*time.Timer),
+	}
+}
+
+func (h *dnsHandler) Connect(conn core.UDPConn, target *net.UDPAddr) error {
+	if target == nil || target.Port != dnsPort {
+		return h.next.Connect(conn, target)
+	}
+	h.mu.Lock()
+	h.flows[conn] = time.AfterFunc(dnsFlowIdle, func() { h.closeFlow(conn) })
+	h.mu.Unlock()
+	return nil
+}
+
+func (h *dnsHandler) ReceiveTo(conn core.UDPConn, data []byte, addr *net.UDPAddr) error {
+	h.mu.Lock()
+	idle, ok := h.flows[conn]
+	if ok {
+		idle.Reset(dnsFlowIdle)
+	}
+	h.mu.Unlock()
+	if !ok {
+		return h.next.ReceiveTo(conn, data, addr)
+	}
+	// data belongs to lwIP and the lookup must not block its thread.
+	query := append([]byte(nil), data...)
+	go func() {
+		if reply := h.answer(query); reply != nil {
+			conn.WriteFrom(reply, addr)
+		}
+	}()
+	return nil
+}
+
+func (h *dnsHandler) closeFlow(conn core.UDPConn) {
+	h.mu.Lock()
+	delete(h.flows, conn)
+	h.mu.Unlock()
+	conn.Close()
+}
+
+func (h *dnsHandler) answer(query []byte) []byte {
+	var p dnsmessage.Parser
+	header, err := p.Start(query)
+	if err != nil {
+		return nil
+	}
+	q, err := p.Question()
+	if err != nil || header.Response {
+		return nil
+	}
+	if h.fakeDNS != nil && q.Type == dnsmessage.TypeA && q.Class == dnsmessage.ClassINET {
+		if reply, err := h.fakeDNS.GenerateFakeResponse(query); err == nil {
+			return reply
+		}
+	}
+
+	key := cacheKey(q)
+	if reply, negative, prefetch := h.cache.get(key, header.ID, q); reply != nil {
+		dnsHits.Add(1)
+		if negative {
+			dnsNegativeHits.Add(1)
+		}
+		if prefetch {
+			dnsPrefetches.Add(1)
+			go h.prefetch(key, q)
+		}
+		return reply
+	}
+	dnsMisses.Add(1)
+
+	reply, err := h.forward(query)
+	if err != nil {
+		dnsFailures.Add(1)
+		log.Debugf("dns %v %v: %v", q.Name, q.Type, err)
+		return servFail(header, q)
+	}
+	h.cache.put(key, reply)
+	return reply
+}
+
+func (h *dnsHandler) prefetch(key string, q dnsmessage.Question) {
+	defer h.cache.prefetched(key)
+	b := dnsmessage.NewBuilder(nil, dnsmessage.Header{RecursionDesired: true})
+	b.StartQuestions()
+	if err := b.Question(q); err != nil {
+		return
+	}
+	query, err := b.Finish()
+	if err != nil {
+		return
+	}
+	if reply, err := h.forward(query); err == nil {
+		h.cache.put(key, reply)
+	}
+}
+
+func (h *dnsHandler) forward(query []byte) ([]byte, error) {
+	start := time.Now()
+	reply, err := h.upstream.exchange(context.Background(), query)
+	if err != nil {
+		return nil, err
+	}
+	dnsUpstreamMicros.Add(uint64(time.Since(start).Microseconds()))
+	dnsUpstreamAnswers.Add(1)
+	return reply, nil
+}
+
+func servFail(header dnsmessage.Header, q dnsmessage.Question) []byte {
+	header.Response = true
+	header.RecursionAvailable = true
+	header.RCode = dnsmessage.RCodeServerFailure
+	b := dnsmessage.NewBuilder(nil, header)
+	b.StartQuestions()
+	b.Question(q)
+	reply, _ := b.Finish()
+	return reply
+}
+
+func cacheKey(q dnsmessage.Question) string {
+	return strings.ToLower(q.Name.String()) + "/" + q.Type.String() + "/" + q.Class.String()
+}
+
+type dnsCacheEntry struct {
+	key         string
+	msg         dnsmessage.Message
+	stored      time.Time
+	expires     time.Time
+	negative    bool
+	hits        int
+	prefetching bool
+}
+
+// dnsCache is a bounded LRU of parsed replies. Replies are served with their
+// TTLs lowered by the time they spent in the cache.
+type dnsCache struct {
+	mu      sync.Mutex
+	entries map[string]*list.Element
+	lru     *list.List
+}
+
+func newDNSCache() *dnsCache {
+	return &dnsCache{entries: make(map[string]*list.Element), lru: list.New()}
+}
+
+// get returns a reply for key answering q with the given message ID, whether
+// it is a negative answer, and whether the caller should refresh it in the background.
+func (c *dnsCache) get(key string, id uint16, q dnsmessage.Question) ([]byte, bool, bool) {
+	c.mu.Lock()
+	el, ok := c.entries[key]
+	if !ok {
+		c.mu.Unlock()
+		return nil, false, false
+	}
+	e := el.Value.(*dnsCacheEntry)
+	now := time.Now()
+	if !now.Before(e.expires) {
+		c.lru.Remove(el)
+		delete(c.entries, key)
+		c.mu.Unlock()
+		return nil, false, false
+	}
+	c.lru.MoveToFront(el)
+	e.hits++
+	prefetch := !e.negative && !e.prefetching && e.hits >= dnsPrefetchHits &&
+		e.expires.Sub(now)*dnsPrefetchFraction < e.expires.Sub(e.stored)
+	if prefetch {
+		e.prefetching = true
+	}
+	msg, elapsed, negative := e.msg, uint32(now.Sub(e.stored)/time.Second), e.negative
+	c.mu.Unlock()
+
+	msg.Header.ID = id
+	// Echo the question as asked, resolvers may randomize the case of the name.
+	msg.Questions = []dnsmessage.Question{q}
+	msg.Answers = agedResources(msg.Answers, elapsed)
+	msg.Authorities = agedResources(msg.Authorities, elapsed)
+	msg.Additionals = agedResources(msg.Additionals, elapsed)
+	reply, err := msg.Pack()
+	if err != nil {
+		return nil, false, false
+	}
+	return reply, negative, prefetch
+}
+
+func (c *dnsCache) prefetched(key string) {
+	c.mu.Lock()
+	if el, ok := c.entries[key]; ok {
+		el.Value.(*dnsCacheEntry).prefetching = false
+	}
+	c.mu.Unlock()
+}
+
+// put caches reply for its TTL, the smallest in the answer, or for the SOA
+// minimum when it is a negative answer. Failures and zero TTLs are not cached.
+func (c *dnsCache) put(key string, reply []byte) {
+	var msg dnsmessage.Message
+	if err := msg.Unpack(reply); err != nil || msg.Truncated {
+		return
+	}
+	var ttl time.Duration
+	negative := false
+	switch {
+	case msg.RCode == dnsmessage.RCodeSuccess && len(msg.Answers) > 0:
+		ttl = dnsMaxTTL
+		for _, rr := range msg.Answers {
+			if t := time.Duration(rr.Header.TTL) * time.Second; t < ttl {
+				ttl = t
+			}
+		}
+	case msg.RCode == dnsmessage.RCodeSuccess || msg.RCode == dnsmessage.RCodeNameError:
+		negative = true
+		ttl = dnsDefaultNegativeTTL
+		for _, rr := range msg.Authorities {
+			if soa, ok := rr.Body.(*dnsmessage.SOAResource); ok {
+				ttl = time.Duration(soa.MinTTL) * time.Second
+				if t := time.Duration(rr.Header.TTL) * time.Second; t < ttl {
+					ttl = t
+				}
+			}
+		}
+		if ttl > dnsMaxNegativeTTL {
+			ttl = dnsMaxNegativeTTL
+		}
+	default:
+		return
+	}
+	if ttl <= 0 {
+		return
+	}
+
+	now := time.Now()
+	c.mu.Lock()
+	defer c.mu.Unlock()
+	if el, ok := c.entries[key]; ok {
+		e := el.Value.(*dnsCacheEntry)
+		e.msg, e.stored, e.expires, e.negative = msg, now, now.Add(ttl), negative
+		c.lru.MoveToFront(el)
+		return
+	}
+	c.entries[key] = c.lru.PushFront(&dnsCacheEntry{key: key, msg: msg, stored: now, expires: now.Add(ttl), negative: negative})
+	for c.lru.Len() > dnsCacheEntries {
+		oldest := c.lru.Back()
+		c.lru.Remove(oldest)
+		delete(c.entries, oldest.Value.(*dnsCacheEntry).key)
+	}
+}
+
+func agedResources(rrs []dnsmessage.Resource, elapsed uint32) []dnsmessage.Resource {
+	if len(rrs) == 0 {
+		return rrs
+	}
+	aged := make([]dnsmessage.Resource, len(rrs))
+	copy(aged, rrs)
+	for i := range aged {
+		if aged[i].Header.Type == dnsmessage.TypeOPT {
+			continue
+		}
+		if aged[i].Header.TTL > elapsed {
+			aged[i].Header.TTL -= elapsed
+		} else {
+			aged[i].Header.TTL = 0
+		}
+	}
+	return aged
+}
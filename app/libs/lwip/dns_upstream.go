@@ -0,0 +1,198 @@
+package lwip
+
+import (
+	"context"
+	"encoding/binary"
+	"errors"
+	"io"
+	"net"
+	"sync"
+	"time"
+
+	"github.com/eycorsican/go-tun2socks/common/log"
+)
+
+const (
+	// dnsUpstreamServer is reached over TCP through the tunnel; WARP already
+	// encrypts the hop, so plain DNS over TCP avoids a TLS handshake per reconnect.
+	dnsUpstreamServer  = "1.1.1.1:53"
+	dnsExchangeTimeout = 5 * time.Second
+)
+
+var errUpstreamClosed = errors.New("dns upstream connection closed")
+
+// dnsUpstream multiplexes queries over one DNS-over-TCP connection opened
+// through the tunnel dialer. Queries are pipelined: each gets a fresh message
+// ID and replies are matched by ID in whatever order they come back.
+type dnsUpstream struct {
+	mu     sync.Mutex
+	dialer contextDialer
+	// dialerEpoch changes with the dialer, so a dial that was started
+	// through the previous one is not published.
+	dialerEpoch uint64
+	// dialing is closed when the dial in flight, if any, is done.
+	dialing chan struct{}
+	conn    net.Conn
+	pending map[uint16]chan []byte
+	nextID  uint16
+}
+
+func newDNSUpstream() *dnsUpstream {
+	return &dnsUpstream{pending: make(map[uint16]chan []byte)}
+}
+
+// setDialer moves later queries to another dialer; the current connection is dropped.
+func (u *dnsUpstream) setDialer(d contextDialer) {
+	u.mu.Lock()
+	defer u.mu.Unlock()
+	u.dialer = d
+	u.dialerEpoch++
+	if u.conn != nil {
+		u.conn.Close()
+	}
+}
+
+func (u *dnsUpstream) close() {
+	u.setDialer(nil)
+}
+
+// exchange sends query and returns the reply with the query's own ID. A query
+// that loses its connection before the reply arrives is retried once.
+func (u *dnsUpstream) exchange(ctx context.Context, query []byte) ([]byte, error) {
+	reply, err := u.exchangeOnce(ctx, query)
+	if errors.Is(err, errUpstreamClosed) {
+		reply, err = u.exchangeOnce(ctx, query)
+	}
+	return reply, err
+}
+
+func (u *dnsUpstream) exchangeOnce(ctx context.Context, query []byte) ([]byte, error) {
+	if len(query) < 12 {
+		return nil, errors.New("short dns query")
+	}
+	ctx, cancel := context.WithTimeout(ctx, dnsExchangeTimeout)
+	defer cancel()
+
+	u.mu.Lock()
+	conn, err := u.connLocked(ctx)
+	if err != nil {
+		u.mu.Unlock()
+		return nil, err
+	}
+	id := u.nextID
+	for _, busy := u.pending[id]; busy; _, busy = u.pending[id] {
+		id++
+	}
+	u.nextID = id + 1
+	wait := make(chan []byte, 1)
+	u.pending[id] = wait
+
+	frame := make([]byte, 2+len(query))
+	binary.BigEndian.PutUint16(frame, uint16(len(query)))
+	copy(frame[2:], query)
+	binary.BigEndian.PutUint16(frame[2:], id)
+	conn.SetWriteDeadline(time.Now().Add(dnsExchangeTimeout))
+	_, err = conn.Write(frame)
+	u.mu.Unlock()
+	if err != nil {
+		u.drop(conn)
+		return nil, errUpstreamClosed
+	}
+
+	select {
+	case reply, ok := <-wait:
+		if !ok {
+			return nil, errUpstreamClosed
+		}
+		binary.BigEndian.PutUint16(reply, binary.BigEndian.Uint16(query))
+		return reply, nil
+	case <-ctx.Done():
+		u.mu.Lock()
+		if u.pending[id] == wait {
+			delete(u.pending, id)
+		}
+		u.mu.Unlock()
+		return nil, ctx.Err()
+	}
+}
+
+// connLocked returns the upstream connection, dialing one if there is none.
+// It is called with u.mu held and returns with it held, but releases it for
+// the dial, so queries and replies are not held up by a slow reconnect.
+// Callers that come in while a dial is in flight wait for it instead of
+// dialing again.
+func (u *dnsUpstream) connLocked(ctx context.Context) (net.Conn, error) {
+	for u.conn == nil {
+		if u.dialer == nil {
+			return nil, errors.New("dns upstream is closed")
+		}
+		if dialing := u.dialing; dialing != nil {
+			u.mu.Unlock()
+			select {
+			case <-dialing:
+				u.mu.Lock()
+			case <-ctx.Done():
+				u.mu.Lock()
+				return nil, ctx.Err()
+			}
+			continue
+		}
+		dialing := make(chan struct{})
+		u.dialing = dialing
+		dialer, epoch := u.dialer, u.dialerEpoch
+		u.mu.Unlock()
+		conn, err := dialer.DialContext(ctx, "tcp", dnsUpstreamServer)
+		u.mu.Lock()
+		u.dialing = nil
+		close(dialing)
+		if err != nil {
+			return nil, err
+		}
+		if epoch != u.dialerEpoch {
+			// The dialer was replaced or closed during the dial.
+			conn.Close()
+			continue
+		}
+		log.Infof("dns upstream connected to %v", dnsUpstreamServer)
+		u.conn = conn
+		go u.readLoop(conn)
+	}
+	return u.conn, nil
+}
+
+func (u *dnsUpstream) readLoop(conn net.Conn) {
+	defer u.drop(conn)
+	var length [2]byte
+	for {
+		if _, err := io.ReadFull(conn, length[:]); err != nil {
+			return
+		}
+		reply := make([]byte, binary.BigEndian.Uint16(length[:]))
+		if _, err := io.ReadFull(conn, reply); err != nil || len(reply) < 12 {
+			return
+		}
+		id := binary.BigEndian.Uint16(reply)
+		u.mu.Lock()
+		wait, ok := u.pending[id]
+		delete(u.pending, id)
+		u.mu.Unlock()
+		if ok {
+			wait <- reply
+		}
+	}
+}
+
+// drop closes conn and fails the queries still waiting on it.
+func (u *dnsUpstream) drop(conn net.Conn) {
+	conn.Close()
+	u.mu.Lock()
+	defer u.mu.Unlock()
+	if u.conn != conn {
+		return
+	}
+	u.conn = nil
+	for id, wait := range u.pending {
+		close(wait)
+		delete(u.pending, id)
+	}
+}
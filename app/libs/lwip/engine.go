@@ -0,0 +1,157 @@
+package lwip
+
+import (
+	"errors"
+	"io"
+	"strings"
+
+	"github.com/eycorsican/go-tun2socks/common/log"
+	"github.com/eycorsican/go-tun2socks/component/runner"
+	"github.com/eycorsican/go-tun2socks/core"
+
+	"github.com/songgao/water"
+)
+
+// Netstack engines that terminate the flows read from the tun device. Both
+// hand flows to the same handlers and count into the same Stats.
+const (
+	EngineLwIP   = "lwip"
+	EngineGVisor = "gvisor"
+)
+
+// engine is the running netstack, guarded by tunMu.
+type engine interface {
+	name() string
+	// swapTun moves reading over to dev, which tunDev already points at, and closes old.
+	swapTun(old, dev *water.Interface)
+	// stop frees the stack once the tun device was closed.
+	stop()
+}
+
+var netstack engine
+
+func startEngine(opt *Tun2socksStartOptions) (engine, error) {
+	switch strings.ToLower(opt.Engine) {
+	case "", EngineLwIP:
+		return startLWIPEngine(opt), nil
+	case EngineGVisor:
+		e, err := startGVisorEngine(opt)
+		if err != nil {
+			return nil, err
+		}
+		return e, nil
+	default:
+		return nil, errors.New("unknown netstack engine " + opt.Engine)
+	}
+}
+
+// lwipEngine feeds packets from the tun device into lwIP in bursts on a
+// runner task and writes what lwIP outputs straight back to the device.
+type lwipEngine struct {
+	stack core.LWIPStack
+	pipe  *runner.Task
+	batch int
+}
+
+func startLWIPEngine(opt *Tun2socksStartOptions) *lwipEngine {
+	stack := core.NewLWIPStack(opt.EnableIPv6, opt.AllowLan)
+	lwipWriter = countingWriter{w: newMSSClampWriter(stack.(io.Writer), opt.MTU)}
+
+	// Register an output callback to write packets output from lwip stack to tun
+	// device, output function should be set before input any packets.
+	core.RegisterOutputFn(writeTun)
+	batch := batchSize(opt.BatchSize)
+	return &lwipEngine{stack: stack, pipe: startDataPipe(tunDev.Load(), batch), batch: batch}
+}
+
+func (e *lwipEngine) name() string {
+	return EngineLwIP
+}
+
+// swapTun starts the new pipe before the old device is closed, so lwIP with
+// all its connections never misses more than the packets in flight.
+func (e *lwipEngine) swapTun(old, dev *water.Interface) {
+	oldTask := e.pipe
+	e.pipe = startDataPipe(dev, e.batch)
+	oldTask.Stop()
+	if err := old.Close(); err != nil {
+		log.Infof("close previous tun: %v", err)
+	}
+	<-oldTask.StopChan()
+}
+
+func (e *lwipEngine) stop() {
+	if e.pipe.Running() {
+		log.Infof("send stop lwipTUNDataPipeTask sig")
+		e.pipe.Stop()
+		log.Infof("lwipTUNDataPipeTask stop sig sent")
+		<-e.pipe.StopChan()
+	} else {
+		log.Infof("lwipTUNDataPipeTask already stopped")
+	}
+	log.Infof("begin close lwipStack")
+	e.stack.Close(core.DELAY)
+}
+
+// tunIO is the tun device as seen by an engine that reads packets itself,
+// one per call from a single goroutine. It serves them from a batch read and
+// follows tunDev, so a read interrupted by SwapTun carries on from the new
+// device. It counts and clamps like the lwIP pipe does.
+type tunIO struct {
+	mss4, mss6 uint16
+	mtu        int
+	batch      int
+	reader     *batchReader
+	next, n    int
+}
+
+func newTunIO(mtu, batch int) *tunIO {
+	t := &tunIO{mtu: mtu, batch: batch}
+	if mtu > 0 {
+		t.mss4, t.mss6 = uint16(mtu-40), uint16(mtu-60)
+	}
+	return t
+}
+
+func (t *tunIO) Read(p []byte) (int, error) {
+	for t.next == t.n {
+		if err := t.fill(); err != nil {
+			return 0, err
+		}
+	}
+	n := copy(p, t.reader.packet(t.next))
+	t.next++
+	if t.mss4 != 0 {
+		clampMSS(p[:n], t.mss4, t.mss6)
+	}
+	upPackets.Add(1)
+	upBytes.Add(uint64(n))
+	return n, nil
+}
+
+func (t *tunIO) fill() error {
+	dev := tunDev.Load()
+	if dev == nil {
+		return io.EOF
+	}
+	if t.reader == nil || t.reader.dev != dev {
+		reader, err := newBatchReader(dev, t.batch, t.mtu)
+		if err != nil {
+			return err
+		}
+		t.reader = reader
+	}
+	n, err := t.reader.read()
+	t.next, t.n = 0, n
+	if err != nil {
+		if next := tunDev.Load(); next != nil && next != dev {
+			return nil
+		}
+		ioErrors.Add(1)
+	}
+	return err
+}
+
+func (t *tunIO) Write(p []byte) (int, error) {
+	return writeTun(p)
+}
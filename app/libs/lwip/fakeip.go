@@ -0,0 +1,480 @@
+package lwip
+
+import (
+	"bufio"
+	"container/list"
+	"encoding/binary"
+	"errors"
+	"fmt"
+	"io"
+	"net"
+	"os"
+	"strings"
+	"sync"
+	"sync/atomic"
+
+	"github.com/eycorsican/go-tun2socks/common/log"
+	"github.com/eycorsican/go-tun2socks/core"
+	"golang.org/x/net/dns/dnsmessage"
+)
+
+const (
+	defaultFakeIPCapacity = 65536
+	// Fake answers expire at once, so an address recycled for another name
+	// is never still cached by the client under the old one.
+	fakeIPTTL         = 1
+	fakeIPSnapshotTag = "FIP1"
+)
+
+var errFakeIPExhausted = errors.New("every fake ip is in use")
+
+var (
+	fakeIPEvictions atomic.Uint64
+	fakeIPExhausted atomic.Uint64
+)
+
+type fakeIPEntry struct {
+	domain string
+	offset uint32
+	// refs counts live flows to this address; while it is above zero the
+	// entry is kept out of the LRU list and cannot be evicted.
+	refs int
+	el   *list.Element
+}
+
+// fakeIPPool hands out IPv4 addresses from a range, one per domain. Lookups,
+// allocation and eviction are O(1): the LRU list only holds entries without
+// live flows, so the back of the list is always safe to recycle.
+type fakeIPPool struct {
+	mu       sync.Mutex
+	cidr     string
+	base     uint32
+	size     uint32
+	capacity int
+	next     uint32
+	byDomain map[string]*fakeIPEntry
+	byOffset map[uint32]*fakeIPEntry
+	lru      *list.List
+}
+
+func newFakeIPPool(cidr string, capacity int) (*fakeIPPool, error) {
+	_, ipnet, err := net.ParseCIDR(cidr)
+	if err != nil {
+		return nil, err
+	}
+	ip := ipnet.IP.To4()
+	ones, bits := ipnet.Mask.Size()
+	if ip == nil || bits != 32 || ones > 30 {
+		return nil, fmt.Errorf("fake ip range %s must be IPv4 and at most /30", cidr)
+	}
+	if capacity <= 0 {
+		capacity = defaultFakeIPCapacity
+	}
+	// The network and broadcast addresses are never handed out.
+	size := uint32(1)<<(32-ones) - 2
+	if uint32(capacity) > size {
+		capacity = int(size)
+	}
+	return &fakeIPPool{
+		cidr:     cidr,
+		base:     binary.BigEndian.Uint32(ip),
+		size:     size,
+		capacity: capacity,
+		next:     1,
+		byDomain: make(map[string]*fakeIPEntry),
+		byOffset: make(map[uint32]*fakeIPEntry),
+		lru:      list.New(),
+	}, nil
+}
+
+// GenerateFakeResponse answers an A query with the fake address of its name.
+func (p *fakeIPPool) GenerateFakeResponse(request []byte) ([]byte, error) {
+	var parser dnsmessage.Parser
+	header, err := parser.Start(request)
+	if err != nil {
+		return nil, err
+	}
+	q, err := parser.Question()
+	if err != nil {
+		return nil, err
+	}
+	if q.Type != dnsmessage.TypeA || q.Class != dnsmessage.ClassINET {
+		return nil, errors.New("not an A query")
+	}
+	ip, err := p.allocate(strings.TrimSuffix(strings.ToLower(q.Name.String()), "."))
+	if err != nil {
+		return nil, err
+	}
+
+	b := dnsmessage.NewBuilder(nil, dnsmessage.Header{
+		ID:                 header.ID,
+		Response:           true,
+		RecursionDesired:   header.RecursionDesired,
+		RecursionAvailable: true,
+	})
+	b.StartQuestions()
+	b.Question(q)
+	b.StartAnswers()
+	var a dnsmessage.AResource
+	binary.BigEndian.PutUint32(a.A[:], ip)
+	if err := b.AResource(dnsmessage.ResourceHeader{Name: q.Name, Class: dnsmessage.ClassINET, TTL: fakeIPTTL}, a); err != nil {
+		return nil, err
+	}
+	return b.Finish()
+}
+
+// QueryDomain returns the domain behind a fake address, or "" if there is none.
+func (p *fakeIPPool) QueryDomain(ip net.IP) string {
+	offset, ok := p.offsetOf(ip)
+	if !ok {
+		return ""
+	}
+	p.mu.Lock()
+	defer p.mu.Unlock()
+	e, ok := p.byOffset[offset]
+	if !ok {
+		return ""
+	}
+	p.touchLocked(e)
+	return e.domain
+}
+
+func (p *fakeIPPool) IsFakeIP(ip net.IP) bool {
+	_, ok := p.offsetOf(ip)
+	return ok
+}
+
+func (p *fakeIPPool) offsetOf(ip net.IP) (uint32, bool) {
+	ip4 := ip.To4()
+	if ip4 == nil {
+		return 0, false
+	}
+	offset := binary.BigEndian.Uint32(ip4) - p.base
+	return offset, offset >= 1 && offset <= p.size
+}
+
+func (p *fakeIPPool) allocate(domain string) (uint32, error) {
+	p.mu.Lock()
+	defer p.mu.Unlock()
+	if e, ok := p.byDomain[domain]; ok {
+		p.touchLocked(e)
+		return p.base + e.offset, nil
+	}
+	var offset uint32
+	if len(p.byOffset) < p.capacity && p.next <= p.size {
+		offset = p.next
+		p.next++
+	} else {
+		oldest := p.lru.Back()
+		if oldest == nil {
+			fakeIPExhausted.Add(1)
+			return 0, errFakeIPExhausted
+		}
+		victim := oldest.Value.(*fakeIPEntry)
+		p.lru.Remove(oldest)
+		delete(p.byDomain, victim.domain)
+		delete(p.byOffset, victim.offset)
+		fakeIPEvictions.Add(1)
+		offset = victim.offset
+	}
+	e := &fakeIPEntry{domain: domain, offset: offset}
+	e.el = p.lru.PushFront(e)
+	p.byDomain[domain] = e
+	p.byOffset[offset] = e
+	return p.base + offset, nil
+}
+
+func (p *fakeIPPool) touchLocked(e *fakeIPEntry) {
+	if e.el != nil {
+		p.lru.MoveToFront(e.el)
+	}
+}
+
+// acquire pins the mapping of ip for the lifetime of a flow.
+func (p *fakeIPPool) acquire(ip net.IP) bool {
+	offset, ok := p.offsetOf(ip)
+	if !ok {
+		return false
+	}
+	p.mu.Lock()
+	defer p.mu.Unlock()
+	e, ok := p.byOffset[offset]
+	if !ok {
+		return false
+	}
+	if e.refs == 0 && e.el != nil {
+		p.lru.Remove(e.el)
+		e.el = nil
+	}
+	e.refs++
+	return true
+}
+
+func (p *fakeIPPool) release(ip net.IP) {
+	offset, _ := p.offsetOf(ip)
+	p.mu.Lock()
+	defer p.mu.Unlock()
+	e, ok := p.byOffset[offset]
+	if !ok || e.refs == 0 {
+		return
+	}
+	e.refs--
+	if e.refs == 0 {
+		e.el = p.lru.PushFront(e)
+	}
+}
+
+// occupancy returns how many addresses are mapped and how many may be.
+func (p *fakeIPPool) occupancy() (int, int) {
+	p.mu.Lock()
+	defer p.mu.Unlock()
+	return len(p.byOffset), p.capacity
+}
+
+// save writes the mappings, most recently used first, as the range, a
+// count and then an offset and a length prefixed domain per entry.
+func (p *fakeIPPool) save(path string) error {
+	p.mu.Lock()
+	entries := make([]*fakeIPEntry, 0, len(p.byOffset))
+	for _, e := range p.byOffset {
+		if e.el == nil {
+			// Pinned entries are the most recent of all.
+			entries = append(entries, e)
+		}
+	}
+	for el := p.lru.Front(); el != nil; el = el.Next() {
+		entries = append(entries, el.Value.(*fakeIPEntry))
+	}
+	tmp := path + ".tmp"
+	f, err := os.Create(tmp)
+	if err != nil {
+		p.mu.Unlock()
+		return err
+	}
+	w := bufio.NewWriter(f)
+	w.WriteString(fakeIPSnapshotTag)
+	w.WriteByte(byte(len(p.cidr)))
+	w.WriteString(p.cidr)
+	binary.Write(w, binary.BigEndian, uint32(len(entries)))
+	for _, e := range entries {
+		binary.Write(w, binary.BigEndian, e.offset)
+		w.WriteByte(byte(len(e.domain)))
+		w.WriteString(e.domain)
+	}
+	p.mu.Unlock()
+	if err := w.Flush(); err != nil {
+		f.Close()
+		return err
+	}
+	if err := f.Close(); err != nil {
+		return err
+	}
+	return os.Rename(tmp, path)
+}
+
+// load restores a snapshot taken over the same range. Entries past the
+// capacity are the least recently used and are dropped.
+func (p *fakeIPPool) load(path string) error {
+	f, err := os.Open(path)
+	if err != nil {
+		return err
+	}
+	defer f.Close()
+	r := bufio.NewReader(f)
+	tag := make([]byte, len(fakeIPSnapshotTag))
+	if _, err := io.ReadFull(r, tag); err != nil || string(tag) != fakeIPSnapshotTag {
+		return errors.New("not a fake ip snapshot")
+	}
+	cidr, err := readShortString(r)
+	if err != nil {
+		return err
+	}
+	if cidr != p.cidr {
+		return fmt.Errorf("snapshot is for %s", cidr)
+	}
+	var count uint32
+	if err := binary.Read(r, binary.BigEndian, &count); err != nil {
+		return err
+	}
+	p.mu.Lock()
+	defer p.mu.Unlock()
+	for i := uint32(0); i < count && len(p.byOffset) < p.capacity; i++ {
+		var offset uint32
+		if err := binary.Read(r, binary.BigEndian, &offset); err != nil {
+			return err
+		}
+		domain, err := readShortString(r)
+		if err != nil {
+			return err
+		}
+		if offset < 1 || offset > p.size || p.byOffset[offset] != nil || p.byDomain[domain] != nil {
+			continue
+		}
+		e := &fakeIPEntry{domain: domain, offset: offset}
+		e.el = p.lru.PushBack(e)
+		p.byDomain[domain] = e
+		p.byOffset[offset] = e
+		if offset >= p.next {
+			p.next = offset + 1
+		}
+	}
+	return nil
+}
+
+func readShortString(r *bufio.Reader) (string, error) {
+	n, err := r.ReadByte()
+	if err != nil {
+		return "", err
+	}
+	b := make([]byte, n)
+	if _, err := io.ReadFull(r, b); err != nil {
+		return "", err
+	}
+	return string(b), nil
+}
+
+// fakeIPTCPHandler pins the fake address a TCP flow was opened to, so the
+// mapping outlives any amount of DNS churn while the flow is alive.
+type fakeIPTCPHandler struct {
+	next core.TCPConnHandler
+	pool *fakeIPPool
+}
+
+func (h fakeIPTCPHandler) Handle(conn net.Conn, target *net.TCPAddr) error {
+	if !h.pool.acquire(target.IP) {
+		return h.next.Handle(conn, target)
+	}
+	pinned := &pinnedConn{Conn: conn, release: func() { h.pool.release(target.IP) }}
+	if err := h.next.Handle(pinned, target); err != nil {
+		pinned.done()
+		return err
+	}
+	return nil
+}
+
+// pinnedConn releases its pin once the connection is closed in both
+// directions, keeping the half-close methods the relay looks for.
+type pinnedConn struct {
+	net.Conn
+	release func()
+	once    sync.Once
+	mu      sync.Mutex
+	read    bool
+	write   bool
+}
+
+func (c *pinnedConn) done() {
+	c.once.Do(c.release)
+}
+
+func (c *pinnedConn) Close() error {
+	defer c.done()
+	return c.Conn.Close()
+}
+
+func (c *pinnedConn) CloseRead() error {
+	c.halfClosed(true)
+	if hc, ok := c.Conn.(interface{ CloseRead() error }); ok {
+		return hc.CloseRead()
+	}
+	return nil
+}
+
+func (c *pinnedConn) CloseWrite() error {
+	c.halfClosed(false)
+	if hc, ok := c.Conn.(interface{ CloseWrite() error }); ok {
+		return hc.CloseWrite()
+	}
+	return nil
+}
+
+func (c *pinnedConn) halfClosed(read bool) {
+	c.mu.Lock()
+	if read {
+		c.read = true
+	} else {
+		c.write = true
+	}
+	both := c.read && c.write
+	c.mu.Unlock()
+	if both {
+		c.done()
+	}
+}
+
+// fakeIPUDPHandler pins the fake address a UDP flow was opened to until the
+// flow is closed, which the handlers behind it do on their idle timeout.
+type fakeIPUDPHandler struct {
+	next core.UDPConnHandler
+	pool *fakeIPPool
+
+	mu sync.Mutex
+	// flows maps the connections lwIP passes in to the pinned wrappers the
+	// handlers behind were given.
+	flows map[core.UDPConn]*pinnedUDPConn
+}
+
+func newFakeIPUDPHandler(next core.UDPConnHandler, pool *fakeIPPool) core.UDPConnHandler {
+	if pool == nil {
+		return next
+	}
+	return &fakeIPUDPHandler{
+		next:  next,
+		pool:  pool,
+		flows: make(map[core.UDPConn]*pinnedUDPConn),
+	}
+}
+
+func (h *fakeIPUDPHandler) Connect(conn core.UDPConn, target *net.UDPAddr) error {
+	if target == nil || !h.pool.acquire(target.IP) {
+		return h.next.Connect(conn, target)
+	}
+	ip := target.IP
+	pinned := &pinnedUDPConn{UDPConn: conn}
+	pinned.release = func() {
+		h.mu.Lock()
+		delete(h.flows, conn)
+		h.mu.Unlock()
+		h.pool.release(ip)
+	}
+	h.mu.Lock()
+	h.flows[conn] = pinned
+	h.mu.Unlock()
+	if err := h.next.Connect(pinned, target); err != nil {
+		pinned.done()
+		return err
+	}
+	return nil
+}
+
+func (h *fakeIPUDPHandler) ReceiveTo(conn core.UDPConn, data []byte, addr *net.UDPAddr) error {
+	h.mu.Lock()
+	pinned, ok := h.flows[conn]
+	h.mu.Unlock()
+	if ok {
+		return h.next.ReceiveTo(pinned, data, addr)
+	}
+	return h.next.ReceiveTo(conn, data, addr)
+}
+
+// pinnedUDPConn releases its pin the first time it is closed.
+type pinnedUDPConn struct {
+	core.UDPConn
+	release func()
+	once    sync.Once
+}
+
+func (c *pinnedUDPConn) done() {
+	c.once.Do(c.release)
+}
+
+func (c *pinnedUDPConn) Close() error {
+	defer c.done()
+	return c.UDPConn.Close()
+}
+
+// logFakeIPs reports the pool once per session.
+func logFakeIPs(p *fakeIPPool) {
+	used, capacity := p.occupancy()
+	log.Infof("fake ip: %d/%d mapped, %d evictions, %d exhausted", used, capacity, fakeIPEvictions.Load(), fakeIPExhausted.Load())
+}
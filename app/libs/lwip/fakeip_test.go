@@ -0,0 +1,164 @@
+//go:build linux
+
+package lwip
+
+import (
+	"errors"
+	"fmt"
+	"net"
+	"sync"
+	"sync/atomic"
+	"testing"
+
+	"github.com/eycorsican/go-tun2socks/core"
+)
+
+// fakeUDPConn stands in for the connection lwIP hands to a UDP handler.
+type fakeUDPConn struct {
+	core.UDPConn
+	closed atomic.Int32
+}
+
+func (c *fakeUDPConn) Close() error {
+	c.closed.Add(1)
+	return nil
+}
+
+// holdingUDPHandler keeps the connections it was given, like the SOCKS
+// handler does until its idle timeout.
+type holdingUDPHandler struct {
+	mu       sync.Mutex
+	conns    []core.UDPConn
+	received atomic.Int32
+}
+
+func (h *holdingUDPHandler) Connect(conn core.UDPConn, target *net.UDPAddr) error {
+	h.mu.Lock()
+	h.conns = append(h.conns, conn)
+	h.mu.Unlock()
+	return nil
+}
+
+func (h *holdingUDPHandler) ReceiveTo(conn core.UDPConn, data []byte, addr *net.UDPAddr) error {
+	h.mu.Lock()
+	defer h.mu.Unlock()
+	for _, c := range h.conns {
+		if c == conn {
+			h.received.Add(1)
+		}
+	}
+	return nil
+}
+
+// timeout closes every held connection, as the idle timeout would.
+func (h *holdingUDPHandler) timeout() {
+	h.mu.Lock()
+	conns := h.conns
+	h.conns = nil
+	h.mu.Unlock()
+	for _, c := range conns {
+		c.Close()
+	}
+}
+
+func fakeIPOf(t *testing.T, pool *fakeIPPool, domain string) net.IP {
+	t.Helper()
+	ip, err := pool.allocate(domain)
+	if err != nil {
+		t.Fatal(err)
+	}
+	return net.IPv4(byte(ip>>24), byte(ip>>16), byte(ip>>8), byte(ip))
+}
+
+// A UDP flow keeps its fake address mapped while lookups for other names
+// churn through the pool, and lets it go once the flow is closed.
+func TestFakeIPUDPFlowSurvivesEviction(t *testing.T) {
+	pool, err := newFakeIPPool("198.18.0.0/24", 8)
+	if err != nil {
+		t.Fatal(err)
+	}
+	next := &holdingUDPHandler{}
+	handler := newFakeIPUDPHandler(next, pool)
+	ip := fakeIPOf(t, pool, "voice.example.com")
+	conn := &fakeUDPConn{}
+	if err := handler.Connect(conn, &net.UDPAddr{IP: ip, Port: 3478}); err != nil {
+		t.Fatal(err)
+	}
+
+	// Lookups from several goroutines evict the pool many times over while
+	// the flow keeps sending.
+	evictions := fakeIPEvictions.Load()
+	var wg sync.WaitGroup
+	for g := 0; g < 4; g++ {
+		wg.Add(1)
+		go func(g int) {
+			defer wg.Done()
+			for i := 0; i < 500; i++ {
+				if _, err := pool.allocate(fmt.Sprintf("churn-%d-%d.example.com", g, i)); err != nil {
+					t.Error(err)
+					return
+				}
+			}
+		}(g)
+	}
+	for i := 0; i < 200; i++ {
+		if err := handler.ReceiveTo(conn, []byte{0}, &net.UDPAddr{IP: ip, Port: 3478}); err != nil {
+			t.Fatal(err)
+		}
+	}
+	wg.Wait()
+	if fakeIPEvictions.Load()-evictions < 1000 {
+		t.Fatalf("only %d evictions, the pool was not under pressure", fakeIPEvictions.Load()-evictions)
+	}
+	if domain := pool.QueryDomain(ip); domain != "voice.example.com" {
+		t.Fatalf("fake ip of a live UDP flow maps to %q", domain)
+	}
+	if n := next.received.Load(); n != 200 {
+		t.Fatalf("%d of 200 datagrams reached the next handler on the pinned connection", n)
+	}
+
+	// The idle timeout closes the flow, after which datagrams on it are no
+	// longer handed over as the pinned connection.
+	next.timeout()
+	if conn.closed.Load() != 1 {
+		t.Fatalf("lwIP connection closed %d times, want 1", conn.closed.Load())
+	}
+	handler.ReceiveTo(conn, []byte{0}, &net.UDPAddr{IP: ip, Port: 3478})
+	if next.received.Load() != 200 {
+		t.Fatal("a datagram after the close went out on the pinned connection")
+	}
+	for i := 0; i < 16; i++ {
+		fakeIPOf(t, pool, fmt.Sprintf("after-%d.example.com", i))
+	}
+	if domain := pool.QueryDomain(ip); domain == "voice.example.com" {
+		t.Fatal("fake ip stayed pinned after its UDP flow was closed")
+	}
+}
+
+// A flow the next handler refuses does not keep its address pinned.
+func TestFakeIPUDPConnectFailureReleases(t *testing.T) {
+	pool, err := newFakeIPPool("198.18.0.0/24", 2)
+	if err != nil {
+		t.Fatal(err)
+	}
+	handler := newFakeIPUDPHandler(refusingUDPHandler{}, pool)
+	ip := fakeIPOf(t, pool, "refused.example.com")
+	if err := handler.Connect(&fakeUDPConn{}, &net.UDPAddr{IP: ip, Port: 53}); err == nil {
+		t.Fatal("Connect succeeded through a refusing handler")
+	}
+	fakeIPOf(t, pool, "a.example.com")
+	fakeIPOf(t, pool, "b.example.com")
+	if domain := pool.QueryDomain(ip); domain == "refused.example.com" {
+		t.Fatal("fake ip stayed pinned after Connect failed")
+	}
+}
+
+type refusingUDPHandler struct{}
+
+func (refusingUDPHandler) Connect(conn core.UDPConn, target *net.UDPAddr) error {
+	return errors.New("refused")
+}
+
+func (refusingUDPHandler) ReceiveTo(conn core.UDPConn, data []byte, addr *net.UDPAddr) error {
+	return nil
+}
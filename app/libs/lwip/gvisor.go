@@ -0,0 +1,136 @@
+package lwip
+
+import (
+	"net"
+	"sync"
+	"sync/atomic"
+
+	"github.com/eycorsican/go-tun2socks/common/log"
+	"github.com/eycorsican/go-tun2socks/component/pool"
+	"github.com/eycorsican/go-tun2socks/core"
+	"github.com/songgao/water"
+	gvcore "github.com/xjasonlyu/tun2socks/v2/core"
+	"github.com/xjasonlyu/tun2socks/v2/core/adapter"
+	"github.com/xjasonlyu/tun2socks/v2/core/device/iobased"
+	"gvisor.dev/gvisor/pkg/tcpip/stack"
+)
+
+const defaultGVisorMTU = 1500
+
+// flowHandlers are the handlers registerHandlers last installed. lwIP gets
+// them through the go-tun2socks registry, gVisor flows look them up here.
+type flowHandlers struct {
+	tcp core.TCPConnHandler
+	udp core.UDPConnHandler
+}
+
+var handlers atomic.Pointer[flowHandlers]
+
+// gvisorEngine runs the gVisor netstack on the tun device. Its link endpoint
+// reads and writes packets itself through tunIO.
+type gvisorEngine struct {
+	stack *stack.Stack
+}
+
+func startGVisorEngine(opt *Tun2socksStartOptions) (*gvisorEngine, error) {
+	mtu := opt.MTU
+	if mtu <= 0 {
+		mtu = defaultGVisorMTU
+	}
+	ep, err := iobased.New(newTunIO(opt.MTU, batchSize(opt.BatchSize)), uint32(mtu), 0)
+	if err != nil {
+		return nil, err
+	}
+	s, err := gvcore.CreateStack(&gvcore.Config{
+		LinkEndpoint:     ep,
+		TransportHandler: gvisorHandler{},
+	})
+	if err != nil {
+		return nil, err
+	}
+	return &gvisorEngine{stack: s}, nil
+}
+
+func (e *gvisorEngine) name() string {
+	return EngineGVisor
+}
+
+// swapTun only closes old: the endpoint's pending read fails and tunIO
+// retries it on dev.
+func (e *gvisorEngine) swapTun(old, dev *water.Interface) {
+	if err := old.Close(); err != nil {
+		log.Infof("close previous tun: %v", err)
+	}
+}
+
+func (e *gvisorEngine) stop() {
+	log.Infof("begin close gvisor stack")
+	e.stack.Close()
+	e.stack.Wait()
+}
+
+// gvisorHandler passes gVisor flows to the handlers lwIP flows get. gVisor
+// names the destination of a flow its local address.
+type gvisorHandler struct{}
+
+func (gvisorHandler) HandleTCP(conn adapter.TCPConn) {
+	id := conn.ID()
+	target := &net.TCPAddr{IP: net.IP(id.LocalAddress.AsSlice()), Port: int(id.LocalPort)}
+	if err := handlers.Load().tcp.Handle(conn, target); err != nil {
+		log.Debugf("tcp %v: %v", target, err)
+		conn.Close()
+	}
+}
+
+func (gvisorHandler) HandleUDP(conn adapter.UDPConn) {
+	id := conn.ID()
+	target := &net.UDPAddr{IP: net.IP(id.LocalAddress.AsSlice()), Port: int(id.LocalPort)}
+	c := &gvisorUDPConn{
+		conn:    conn,
+		local:   &net.UDPAddr{IP: net.IP(id.RemoteAddress.AsSlice()), Port: int(id.RemotePort)},
+		handler: handlers.Load().udp,
+	}
+	defer c.Close()
+	if err := c.handler.Connect(c, target); err != nil {
+		log.Debugf("udp %v: %v", target, err)
+		return
+	}
+	buf := pool.NewBytes(pool.BufSize)
+	defer pool.FreeBytes(buf)
+	// The handlers close idle flows, which ends the read.
+	for {
+		n, err := conn.Read(buf)
+		if err != nil {
+			return
+		}
+		if err := c.ReceiveTo(buf[:n], target); err != nil {
+			return
+		}
+	}
+}
+
+// gvisorUDPConn gives a gVisor UDP flow the shape of an lwIP one. A gVisor
+// flow is bound to its destination, so replies always leave from there.
+type gvisorUDPConn struct {
+	conn    adapter.UDPConn
+	local   *net.UDPAddr
+	handler core.UDPConnHandler
+	once    sync.Once
+}
+
+func (c *gvisorUDPConn) LocalAddr() *net.UDPAddr {
+	return c.local
+}
+
+func (c *gvisorUDPConn) ReceiveTo(data []byte, addr *net.UDPAddr) error {
+	return c.handler.ReceiveTo(c, data, addr)
+}
+
+func (c *gvisorUDPConn) WriteFrom(data []byte, addr *net.UDPAddr) (int, error) {
+	return c.conn.Write(data)
+}
+
+func (c *gvisorUDPConn) Close() error {
+	c.once.Do(func() { c.conn.Close() })
+	return nil
+}
@@ -5,12 +5,15 @@ import (
 	"io"
 	"net"
 	"os"
+	"path/filepath"
+	"sync"
+	"sync/atomic"
+	"syscall"
 	"time"
 
+	"github.com/eycorsican/go-tun2socks/common/dns"
 	"github.com/eycorsican/go-tun2socks/common/dns/cache"
-	"github.com/eycorsican/go-tun2socks/common/dns/fakedns"
 	"github.com/eycorsican/go-tun2socks/common/log"
-	"github.com/eycorsican/go-tun2socks/component/pool"
 	"github.com/eycorsican/go-tun2socks/component/runner"
 	"github.com/eycorsican/go-tun2socks/core"
 	"github.com/eycorsican/go-tun2socks/proxy/socks"
@@ -19,136 +22,243 @@ import (
 )
 
 type Tun2socksStartOptions struct {
-	TunFd        int
-	Socks5Server string
-	FakeIPRange  string
-	MTU          int
-	EnableIPv6   bool
-	AllowLan     bool
+	TunFd          int
+	Socks5Server   string
+	FakeIPRange    string
+	FakeIPCapacity int
+	MTU            int
+	// Engine is EngineLwIP, the default, or EngineGVisor.
+	Engine     string
+	EnableIPv6 bool
+	AllowLan   bool
+	// BatchSize is how many packets one tun read burst takes at most,
+	// defaultBatchSize when 0.
+	BatchSize int
+	// StateDir keeps the fake IP snapshot between runs and holds the
+	// domain rules.
+	StateDir string
 }
 
+const fakeIPSnapshotFile = "fakeip.snapshot"
+
 var (
-	lwipWriter          io.Writer
-	lwipStack           core.LWIPStack
-	mtuUsed             int
-	lwipTUNDataPipeTask *runner.Task
-	tunDev              *water.Interface
+	lwipWriter io.Writer
+	mtuUsed    int
+	// tunDev is swapped by SwapTun while the output callback keeps writing to it.
+	tunDev atomic.Pointer[water.Interface]
+	// tunMu serializes Start, Stop and SwapTun.
+	tunMu sync.Mutex
+	// cacheDNS and fakeDNS outlive a SetProxy so existing fake IP mappings keep resolving.
+	cacheDNS dns.DnsCache
+	fakeDNS  dns.FakeDns
+	// fakeIPs is also read by GetStats, hence atomic.
+	fakeIPs  atomic.Pointer[fakeIPPool]
+	stateDir string
+	// dnsAnswers outlives sessions, dnsForwarder follows the proxy.
+	dnsAnswers   *dnsCache
+	dnsForwarder *dnsUpstream
 )
 
 // Stop stop it
 func Stop() {
+	tunMu.Lock()
+	defer tunMu.Unlock()
 	log.Infof("enter stop")
 	log.Infof("begin close tun")
-	err := tunDev.Close()
-	if err != nil {
-		log.Infof("close tun(Stop func): %v", err)
+	if dev := tunDev.Swap(nil); dev != nil {
+		if err := dev.Close(); err != nil {
+			log.Infof("close tun(Stop func): %v", err)
+		}
 	}
-	if lwipTUNDataPipeTask.Running() {
-		log.Infof("send stop lwipTUNDataPipeTask sig")
-		lwipTUNDataPipeTask.Stop()
-		log.Infof("lwipTUNDataPipeTask stop sig sent")
-		<-lwipTUNDataPipeTask.StopChan()
-	} else {
-		log.Infof("lwipTUNDataPipeTask already stopped")
+	if netstack != nil {
+		netstack.stop()
+		// Stopped here, so the next Start does not stop it a second time.
+		netstack = nil
 	}
 
-	log.Infof("begin close lwipStack")
-	lwipStack.Close(core.DELAY)
+	if dnsForwarder != nil {
+		dnsForwarder.close()
+		s := GetStats()
+		log.Infof("dns: %d hits (%d negative), %d misses, %d prefetches, %d failures, upstream %v",
+			s.DNSHits, s.DNSNegativeHits, s.DNSMisses, s.DNSPrefetches, s.DNSFailures, s.DNSUpstreamLatency)
+	}
+
+	if pool := fakeIPs.Load(); pool != nil {
+		logFakeIPs(pool)
+		if stateDir != "" {
+			if err := pool.save(filepath.Join(stateDir, fakeIPSnapshotFile)); err != nil {
+				log.Infof("fake ip snapshot: %v", err)
+			}
+		}
+	}
 }
 
 // hack to receive tunfd
 func openTunDevice(tunFd int) (*water.Interface, error) {
+	// A non-blocking fd goes through Go's poller, so closing it wakes up a
+	// pending Read; this is what lets SwapTun and Stop end the data pipe.
+	if err := syscall.SetNonblock(tunFd, true); err != nil {
+		return nil, err
+	}
 	file := os.NewFile(uintptr(tunFd), "tun") // dummy file path name since we already got the fd
-	tunDev = &water.Interface{
+	return &water.Interface{
 		ReadWriteCloser: file,
+	}, nil
+}
+
+// SwapTun moves the running stack to a new tun fd, e.g. after the VPN
+// interface was rebuilt with different allowed apps. The netstack with all
+// its connections is kept. The fd is owned by the stack from here on.
+func SwapTun(tunFd int) error {
+	tunMu.Lock()
+	defer tunMu.Unlock()
+	if netstack == nil || tunDev.Load() == nil {
+		syscall.Close(tunFd)
+		return errors.New("lwip stack is not running")
 	}
-	return tunDev, nil
+	dev, err := openTunDevice(tunFd)
+	if err != nil {
+		syscall.Close(tunFd)
+		return err
+	}
+	start := time.Now()
+	netstack.swapTun(tunDev.Swap(dev), dev)
+	log.Infof("swapped tun device in %v", time.Since(start))
+	return nil
 }
 
-// Start sets up lwIP stack, starts a Tun2socks instance
+// Start sets up the netstack, starts a Tun2socks instance
 func Start(opt *Tun2socksStartOptions) int {
+	tunMu.Lock()
+	defer tunMu.Unlock()
 
 	mtuUsed = opt.MTU
-	var err error
-	tunDev, err = openTunDevice(opt.TunFd)
+	dev, err := openTunDevice(opt.TunFd)
 	if err != nil {
 		log.Fatalf("failed to open tun device: %v", err)
 	}
-	// handle previous lwIP stack
-	if lwipStack != nil {
-		log.Infof("begin close previous lwipStack")
-		lwipStack.Close(core.INSTANT)
+	tunDev.Store(dev)
+	resetStats()
+	// handle previous netstack
+	if netstack != nil {
+		log.Infof("begin close previous %v stack", netstack.name())
+		netstack.stop()
+		netstack = nil
 	} else {
-		log.Infof("do NOT have to close previous lwipStack")
+		log.Infof("do NOT have to close previous netstack")
 	}
 
-	// Setup the lwIP stack.
-	lwipStack = core.NewLWIPStack(opt.EnableIPv6, opt.AllowLan)
-	lwipWriter = lwipStack.(io.Writer)
-
 	// Register tun2socks connection handlers.
-	proxyAddr, err := net.ResolveTCPAddr("tcp", opt.Socks5Server)
-	proxyHost := proxyAddr.IP.String()
-	proxyPort := uint16(proxyAddr.Port)
-	if err != nil {
-		log.Infof("invalid proxy server address: %v", err)
-		return -1
-	}
-	cacheDNS := cache.NewSimpleDnsCache()
+	cacheDNS = cache.NewSimpleDnsCache()
+	fakeDNS = nil
+	fakeIPs.Store(nil)
+	stateDir = opt.StateDir
+	loadRules(stateDir)
 	if opt.FakeIPRange != "" {
-		_, ipnet, err := net.ParseCIDR(opt.FakeIPRange)
+		pool, err := newFakeIPPool(opt.FakeIPRange, opt.FakeIPCapacity)
 		if err != nil {
-			log.Fatalf("failed to parse fake ip range %v", opt.FakeIPRange)
+			log.Fatalf("failed to parse fake ip range %v: %v", opt.FakeIPRange, err)
 		}
-		fakeDNS := fakedns.NewFakeDNS(ipnet, 3000)
-		core.RegisterTCPConnHandler(socks.NewTCPHandler(proxyHost, proxyPort, fakeDNS))
-		core.RegisterUDPConnHandler(socks.NewUDPHandler(proxyHost, proxyPort, 30*time.Second, cacheDNS, fakeDNS))
-	} else {
-		core.RegisterTCPConnHandler(socks.NewTCPHandler(proxyHost, proxyPort, nil))
-		core.RegisterUDPConnHandler(socks.NewUDPHandler(proxyHost, proxyPort, 30*time.Second, cacheDNS, nil))
+		if stateDir != "" {
+			if err := pool.load(filepath.Join(stateDir, fakeIPSnapshotFile)); err != nil && !os.IsNotExist(err) {
+				log.Infof("fake ip snapshot not restored: %v", err)
+			}
+		}
+		fakeIPs.Store(pool)
+		fakeDNS = pool
+	}
+	if dnsAnswers == nil {
+		dnsAnswers = newDNSCache()
+	}
+	dnsForwarder = newDNSUpstream()
+	if err := registerHandlers(opt.Socks5Server); err != nil {
+		log.Infof("invalid proxy server address: %v", err)
+		return -1
 	}
 
-	// Register an output callback to write packets output from lwip stack to tun
-	// device, output function should be set before input any packets.
-	core.RegisterOutputFn(func(data []byte) (int, error) {
-		// lwip -> tun
-		return tunDev.Write(data)
-	})
+	netstack, err = startEngine(opt)
+	if err != nil {
+		log.Infof("failed to start netstack: %v", err)
+		return -1
+	}
 
-	if lwipTUNDataPipeTask != nil && lwipTUNDataPipeTask.Running() {
-		log.Infof("stop previous lwipTUNDataPipeTask sig")
-		lwipTUNDataPipeTask.Stop()
-		log.Infof("previous lwipTUNDataPipeTask stop sig sent")
-		<-lwipTUNDataPipeTask.StopChan()
-	} else {
-		log.Infof("previous lwipTUNDataPipeTask already stopped or never being started")
+	log.Infof("Running tun2socks on %v", netstack.name())
+
+	return 0
+}
+
+// SetProxy points new TCP and UDP sessions at another SOCKS5 server, e.g.
+// when the core had to move to a fresh port.
+// Sessions already open stay on the server they started with.
+func SetProxy(socks5Server string) error {
+	tunMu.Lock()
+	defer tunMu.Unlock()
+	if netstack == nil {
+		return errors.New("netstack is not running")
+	}
+	return registerHandlers(socks5Server)
+}
+
+func registerHandlers(socks5Server string) error {
+	proxyAddr, err := net.ResolveTCPAddr("tcp", socks5Server)
+	if err != nil {
+		return err
+	}
+	proxyHost := proxyAddr.IP.String()
+	proxyPort := uint16(proxyAddr.Port)
+	dialer := socks5Dialer{proxy: socks5Server}
+	var tcpHandler core.TCPConnHandler = directTCPHandler{dialer: dialer, fakeDNS: fakeDNS}
+	if pool := fakeIPs.Load(); pool != nil {
+		tcpHandler = fakeIPTCPHandler{next: tcpHandler, pool: pool}
 	}
+	// SOCKS5 UDP ASSOCIATE is left to the go-tun2socks handler.
+	socksUDP := socks.NewUDPHandler(proxyHost, proxyPort, 30*time.Second, cacheDNS, fakeDNS)
+	dnsForwarder.setDialer(dialer)
+	udpHandler := newDirectUDPHandler(socksUDP, fakeDNS)
+	udpHandler = newFakeIPUDPHandler(udpHandler, fakeIPs.Load())
+	udpHandler = newDNSHandler(udpHandler, fakeDNS, dnsAnswers, dnsForwarder)
+	handlers.Store(&flowHandlers{tcp: tcpHandler, udp: udpHandler})
+	core.RegisterTCPConnHandler(tcpHandler)
+	core.RegisterUDPConnHandler(udpHandler)
+	return nil
+}
 
-	lwipTUNDataPipeTask = runner.Go(func(shouldStop runner.S) error {
+// startDataPipe feeds packets from dev into the lwIP stack, up to batch per
+// wakeup, until it is stopped and dev is closed.
+func startDataPipe(dev *water.Interface, batch int) *runner.Task {
+	return runner.Go(func(shouldStop runner.S) error {
 		// do setup
 		// defer func(){
 		//	// do teardown
 		// }()
 		zeroErr := errors.New("no error")
 		maxErrorTimes := 20
+		reader, err := newBatchReader(dev, batch, mtuUsed)
+		if err != nil {
+			log.Infof("tun batch reader: %v", err)
+			return err
+		}
 		for {
 			// NOTE: the for-loop here will retry when we find errors,
 			//       it gives up when we reach exceeded error times.
 			// do some work here
 
 			// tun -> lwip
-			buf := pool.NewBytes(pool.BufSize)
-			// NOTE: In general, when transfering the data, it blocks here until either end becomes invalid
-			_, err := io.CopyBuffer(lwipWriter, tunDev, buf)
-			pool.FreeBytes(buf)
-			if err != nil {
-				maxErrorTimes--
-				log.Infof("copying data failed: %v", err)
+			// NOTE: In general, it blocks here until a packet arrives or the device is closed
+			n, err := reader.read()
+			for i := 0; i < n; i++ {
+				lwipWriter.Write(reader.packet(i))
 			}
+			// Checked first: a stopped pipe fails here because its device was closed.
 			if shouldStop() {
 				log.Infof("got DataPipe stop signal")
 				break
 			}
+			if err != nil {
+				ioErrors.Add(1)
+				maxErrorTimes--
+				log.Infof("copying data failed: %v", err)
+			}
 			if maxErrorTimes <= 0 {
 				log.Infof("lwipTUNDataPipeTask returns due to exceeded error times")
 				return err
@@ -157,8 +267,4 @@ func Start(opt *Tun2socksStartOptions) int {
 		log.Infof("exit DataPipe loop")
 		return zeroErr // any errors?
 	})
-
-	log.Infof("Running tun2socks")
-
-	return 0
 }
@@ -0,0 +1,94 @@
+package lwip
+
+import (
+	"encoding/binary"
+	"io"
+)
+
+// mssClampWriter lowers the MSS option of TCP SYNs read from the tun device
+// so that segments lwIP sends back fit the tunnel MTU, even for sockets whose
+// MSS was not derived from the VPN interface. Other packets pass untouched.
+type mssClampWriter struct {
+	w    io.Writer
+	mss4 uint16
+	mss6 uint16
+}
+
+func newMSSClampWriter(w io.Writer, mtu int) io.Writer {
+	if mtu <= 0 {
+		return w
+	}
+	return mssClampWriter{w: w, mss4: uint16(mtu - 40), mss6: uint16(mtu - 60)}
+}
+
+func (c mssClampWriter) Write(p []byte) (int, error) {
+	clampMSS(p, c.mss4, c.mss6)
+	return c.w.Write(p)
+}
+
+func clampMSS(p []byte, mss4, mss6 uint16) {
+	if len(p) < 1 {
+		return
+	}
+	var tcp []byte
+	var limit uint16
+	switch p[0] >> 4 {
+	case 4:
+		if len(p) < 20 || p[9] != 6 {
+			return
+		}
+		// Only the first fragment carries the TCP header.
+		if binary.BigEndian.Uint16(p[6:8])&0x1fff != 0 {
+			return
+		}
+		ihl := int(p[0]&0x0f) * 4
+		if len(p) < ihl+20 {
+			return
+		}
+		tcp, limit = p[ihl:], mss4
+	case 6:
+		// Extension headers before TCP are rare on SYNs and are left alone.
+		if len(p) < 60 || p[6] != 6 {
+			return
+		}
+		tcp, limit = p[40:], mss6
+	default:
+		return
+	}
+	if tcp[13]&0x02 == 0 {
+		return
+	}
+	dataOffset := int(tcp[12]>>4) * 4
+	if dataOffset < 20 || len(tcp) < dataOffset {
+		return
+	}
+	for i := 20; i < dataOffset; {
+		switch kind := tcp[i]; kind {
+		case 0:
+			return
+		case 1:
+			i++
+			continue
+		case 2:
+			if i+4 > dataOffset || tcp[i+1] != 4 {
+				return
+			}
+			old := binary.BigEndian.Uint16(tcp[i+2:])
+			if old <= limit {
+				return
+			}
+			binary.BigEndian.PutUint16(tcp[i+2:], limit)
+			// Incremental checksum update, RFC 1624: HC' = ~(~HC + ~m + m').
+			sum := uint32(^binary.BigEndian.Uint16(tcp[16:18])) + uint32(^old) + uint32(limit)
+			sum = (sum & 0xffff) + (sum >> 16)
+			sum = (sum & 0xffff) + (sum >> 16)
+			binary.BigEndian.PutUint16(tcp[16:18], ^uint16(sum))
+			return
+		default:
+			if i+1 >= dataOffset || tcp[i+1] < 2 {
+				return
+			}
+			i += int(tcp[i+1])
+		}
+	}
+}
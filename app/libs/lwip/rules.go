@@ -0,0 +1,310 @@
+package lwip
+
+import (
+	"bufio"
+	"bytes"
+	"fmt"
+	"os"
+	"path/filepath"
+	"sort"
+	"strings"
+	"sync"
+	"sync/atomic"
+	"time"
+
+	"github.com/eycorsican/go-tun2socks/common/log"
+)
+
+// Domain rules decide whether a flow to a fake IP goes straight to its
+// destination or through the tunnel. They are read from rulesFile in the
+// state directory, one rule per line:
+//
+//	DOMAIN,login.example.com,DIRECT
+//	DOMAIN-SUFFIX,example.com,DIRECT
+//	DOMAIN-KEYWORD,stream,PROXY
+//
+// The action defaults to DIRECT; PROXY sends a flow through the tunnel even
+// when a broader rule would let it go direct. An exact match wins over the
+// longest matching suffix, which wins over a keyword. Flows no rule matches,
+// and flows to real addresses, use the tunnel.
+
+const rulesFile = "domain_rules.txt"
+
+type ruleAction uint8
+
+const (
+	actionTunnel ruleAction = iota
+	actionDirect
+)
+
+// domainTable is a sorted, packed key table: the keys back to back in data,
+// key i ending at ends[i]. Beyond the key bytes it costs 13 bytes a key,
+// action and hit counter included, and lookups are binary searches.
+type domainTable struct {
+	data    []byte
+	ends    []uint32
+	actions []ruleAction
+	hits    []atomic.Uint64
+}
+
+type ruleEntry struct {
+	key    string
+	action ruleAction
+}
+
+func newDomainTable(entries []ruleEntry) *domainTable {
+	// Stable, so the first of several rules for a key is the one kept.
+	sort.SliceStable(entries, func(i, j int) bool { return entries[i].key < entries[j].key })
+	size := 0
+	for _, e := range entries {
+		size += len(e.key)
+	}
+	t := &domainTable{
+		data:    make([]byte, 0, size),
+		ends:    make([]uint32, 0, len(entries)),
+		actions: make([]ruleAction, 0, len(entries)),
+	}
+	for i, e := range entries {
+		if i > 0 && entries[i-1].key == e.key {
+			continue
+		}
+		t.data = append(t.data, e.key...)
+		t.ends = append(t.ends, uint32(len(t.data)))
+		t.actions = append(t.actions, e.action)
+	}
+	t.hits = make([]atomic.Uint64, len(t.ends))
+	return t
+}
+
+func (t *domainTable) len() int {
+	return len(t.ends)
+}
+
+func (t *domainTable) key(i int) []byte {
+	start := uint32(0)
+	if i > 0 {
+		start = t.ends[i-1]
+	}
+	return t.data[start:t.ends[i]]
+}
+
+// find returns the index of key s, or -1.
+func (t *domainTable) find(s string) int {
+	i := sort.Search(t.len(), func(i int) bool { return string(t.key(i)) >= s })
+	if i < t.len() && string(t.key(i)) == s {
+		return i
+	}
+	return -1
+}
+
+// findIn returns the index of a key that occurs in s, or -1. From every
+// start position it walks the sorted keys like a trie: each further byte of
+// s narrows the range of keys sharing the prefix read so far, until a key
+// ends there or the range is empty.
+func (t *domainTable) findIn(s string) int {
+	for start := 0; start < len(s); start++ {
+		lo, hi := 0, t.len()
+		for depth := 0; start+depth < len(s); depth++ {
+			c := s[start+depth]
+			// Keys ending before depth sort first and fall out of the range.
+			lo = lo + sort.Search(hi-lo, func(i int) bool {
+				k := t.key(lo + i)
+				return len(k) > depth && k[depth] >= c
+			})
+			hi = lo + sort.Search(hi-lo, func(i int) bool {
+				k := t.key(lo + i)
+				return len(k) > depth && k[depth] > c
+			})
+			if lo == hi {
+				break
+			}
+			if len(t.key(lo)) == depth+1 {
+				return lo
+			}
+		}
+	}
+	return -1
+}
+
+type ruleSet struct {
+	exact    *domainTable
+	suffix   *domainTable
+	keyword  *domainTable
+	modified time.Time
+	size     int64
+}
+
+// match returns the action for domain and counts the hit on its rule.
+func (r *ruleSet) match(domain string) ruleAction {
+	domain = strings.ToLower(strings.TrimSuffix(domain, "."))
+	if i := r.exact.find(domain); i >= 0 {
+		r.exact.hits[i].Add(1)
+		return r.exact.actions[i]
+	}
+	// The domain itself, then each parent, so the longest suffix wins.
+	for rest := domain; rest != ""; {
+		if i := r.suffix.find(rest); i >= 0 {
+			r.suffix.hits[i].Add(1)
+			return r.suffix.actions[i]
+		}
+		dot := strings.IndexByte(rest, '.')
+		if dot < 0 {
+			break
+		}
+		rest = rest[dot+1:]
+	}
+	if i := r.keyword.findIn(domain); i >= 0 {
+		r.keyword.hits[i].Add(1)
+		return r.keyword.actions[i]
+	}
+	return actionTunnel
+}
+
+var (
+	// rules is nil until a rule file was loaded; flows then use the tunnel.
+	rules atomic.Pointer[ruleSet]
+	// rulesMu keeps a load running at most once at a time.
+	rulesMu sync.Mutex
+	// directFlows counts flows the rules sent around the tunnel.
+	directFlows atomic.Uint64
+)
+
+// routeDirect reports whether a flow to domain should bypass the tunnel.
+func routeDirect(domain string) bool {
+	r := rules.Load()
+	if r == nil || domain == "" || r.match(domain) != actionDirect {
+		return false
+	}
+	directFlows.Add(1)
+	return true
+}
+
+// loadRules reads the rule file of dir in the background, so a large file
+// does not hold up Start; flows use the tunnel until it is in place. A file
+// that did not change since the last load is not read again.
+func loadRules(dir string) {
+	if dir == "" {
+		rules.Store(nil)
+		return
+	}
+	go func() {
+		rulesMu.Lock()
+		defer rulesMu.Unlock()
+		path := filepath.Join(dir, rulesFile)
+		info, err := os.Stat(path)
+		if err != nil {
+			rules.Store(nil)
+			return
+		}
+		if r := rules.Load(); r != nil && r.modified.Equal(info.ModTime()) && r.size == info.Size() {
+			return
+		}
+		start := time.Now()
+		r, err := readRules(path)
+		if err != nil {
+			log.Infof("domain rules not loaded: %v", err)
+			rules.Store(nil)
+			return
+		}
+		r.modified, r.size = info.ModTime(), info.Size()
+		rules.Store(r)
+		log.Infof("loaded %d exact, %d suffix and %d keyword domain rules in %v",
+			r.exact.len(), r.suffix.len(), r.keyword.len(), time.Since(start))
+	}()
+}
+
+func readRules(path string) (*ruleSet, error) {
+	f, err := os.Open(path)
+	if err != nil {
+		return nil, err
+	}
+	defer f.Close()
+	var exact, suffix, keyword []ruleEntry
+	scanner := bufio.NewScanner(f)
+	for n := 1; scanner.Scan(); n++ {
+		line := bytes.TrimSpace(scanner.Bytes())
+		if len(line) == 0 || line[0] == '#' {
+			continue
+		}
+		fields := strings.Split(string(line), ",")
+		if len(fields) < 2 || len(fields) > 3 {
+			log.Infof("%s:%d: expected TYPE,DOMAIN[,ACTION]", rulesFile, n)
+			continue
+		}
+		e := ruleEntry{
+			key:    strings.Trim(strings.ToLower(strings.TrimSpace(fields[1])), "."),
+			action: actionDirect,
+		}
+		if len(fields) == 3 {
+			switch strings.ToUpper(strings.TrimSpace(fields[2])) {
+			case "DIRECT":
+			case "PROXY", "TUNNEL":
+				e.action = actionTunnel
+			default:
+				log.Infof("%s:%d: unknown action %q", rulesFile, n, fields[2])
+				continue
+			}
+		}
+		if e.key == "" {
+			continue
+		}
+		switch strings.ToUpper(strings.TrimSpace(fields[0])) {
+		case "DOMAIN":
+			exact = append(exact, e)
+		case "DOMAIN-SUFFIX":
+			suffix = append(suffix, e)
+		case "DOMAIN-KEYWORD":
+			keyword = append(keyword, e)
+		default:
+			log.Infof("%s:%d: unknown rule type %q", rulesFile, n, fields[0])
+		}
+	}
+	if err := scanner.Err(); err != nil {
+		return nil, err
+	}
+	return &ruleSet{
+		exact:   newDomainTable(exact),
+		suffix:  newDomainTable(suffix),
+		keyword: newDomainTable(keyword),
+	}, nil
+}
+
+// RuleHits lists the limit rules with the most hits since the rules were
+// loaded, one per line as type, domain and action separated by commas, a
+// tab and the hit count.
+func RuleHits(limit int) string {
+	r := rules.Load()
+	if r == nil || limit <= 0 {
+		return ""
+	}
+	type hit struct {
+		kind  string
+		table *domainTable
+		index int
+		count uint64
+	}
+	var hits []hit
+	for _, t := range []struct {
+		kind  string
+		table *domainTable
+	}{{"DOMAIN", r.exact}, {"DOMAIN-SUFFIX", r.suffix}, {"DOMAIN-KEYWORD", r.keyword}} {
+		for i := range t.table.hits {
+			if n := t.table.hits[i].Load(); n > 0 {
+				hits = append(hits, hit{t.kind, t.table, i, n})
+			}
+		}
+	}
+	sort.Slice(hits, func(i, j int) bool { return hits[i].count > hits[j].count })
+	if len(hits) > limit {
+		hits = hits[:limit]
+	}
+	var b strings.Builder
+	for _, h := range hits {
+		action := "DIRECT"
+		if h.table.actions[h.index] == actionTunnel {
+			action = "PROXY"
+		}
+		fmt.Fprintf(&b, "%s,%s,%s\t%d\n", h.kind, h.table.key(h.index), action, h.count)
+	}
+	return b.String()
+}
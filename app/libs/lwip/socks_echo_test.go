@@ -0,0 +1,185 @@
+//go:build linux
+
+package lwip
+
+import (
+	"encoding/binary"
+	"io"
+	"net"
+	"testing"
+	"time"
+)
+
+// socksEcho is a SOCKS5 server without authentication that echoes instead of
+// connecting anywhere: a CONNECT stream is written back to the client and so
+// is every datagram sent through a UDP association.
+type socksEcho struct {
+	ln  net.Listener
+	udp *net.UDPConn
+}
+
+func startSocksEcho(tb testing.TB) *socksEcho {
+	ln, err := net.Listen("tcp", "127.0.0.1:0")
+	if err != nil {
+		tb.Fatal(err)
+	}
+	udp, err := net.ListenUDP("udp", &net.UDPAddr{IP: net.IPv4(127, 0, 0, 1)})
+	if err != nil {
+		ln.Close()
+		tb.Fatal(err)
+	}
+	s := &socksEcho{ln: ln, udp: udp}
+	go s.acceptLoop()
+	go s.udpLoop()
+	tb.Cleanup(func() {
+		ln.Close()
+		udp.Close()
+	})
+	return s
+}
+
+func (s *socksEcho) addr() string {
+	return s.ln.Addr().String()
+}
+
+func (s *socksEcho) acceptLoop() {
+	for {
+		conn, err := s.ln.Accept()
+		if err != nil {
+			return
+		}
+		go s.serve(conn)
+	}
+}
+
+func (s *socksEcho) serve(conn net.Conn) {
+	defer conn.Close()
+	var head [4]byte
+	if _, err := io.ReadFull(conn, head[:2]); err != nil || head[0] != 5 {
+		return
+	}
+	if _, err := io.ReadFull(conn, make([]byte, head[1])); err != nil {
+		return
+	}
+	if _, err := conn.Write([]byte{5, 0}); err != nil {
+		return
+	}
+	if _, err := io.ReadFull(conn, head[:]); err != nil {
+		return
+	}
+	var skip int
+	switch head[3] {
+	case 1:
+		skip = 4 + 2
+	case 4:
+		skip = 16 + 2
+	case 3:
+		var n [1]byte
+		if _, err := io.ReadFull(conn, n[:]); err != nil {
+			return
+		}
+		skip = int(n[0]) + 2
+	default:
+		return
+	}
+	if _, err := io.ReadFull(conn, make([]byte, skip)); err != nil {
+		return
+	}
+
+	switch head[1] {
+	case 1:
+		if _, err := conn.Write([]byte{5, 0, 0, 1, 0, 0, 0, 0, 0, 0}); err != nil {
+			return
+		}
+		io.Copy(conn, conn)
+	case 3:
+		bound := s.udp.LocalAddr().(*net.UDPAddr)
+		reply := []byte{5, 0, 0, 1}
+		reply = append(reply, bound.IP.To4()...)
+		reply = binary.BigEndian.AppendUint16(reply, uint16(bound.Port))
+		if _, err := conn.Write(reply); err != nil {
+			return
+		}
+		// The association lives as long as its control connection.
+		io.Copy(io.Discard, conn)
+	default:
+		conn.Write([]byte{5, 7, 0, 1, 0, 0, 0, 0, 0, 0})
+	}
+}
+
+// udpLoop sends each datagram back unchanged. Its SOCKS header names the
+// destination, which is where a reply has to appear to come from.
+func (s *socksEcho) udpLoop() {
+	buf := make([]byte, 65535)
+	for {
+		n, from, err := s.udp.ReadFromUDP(buf)
+		if err != nil {
+			return
+		}
+		s.udp.WriteToUDP(buf[:n], from)
+	}
+}
+
+// startDelayedLink forwards TCP connections to target through a listener of
+// its own and holds every chunk for oneWay in each direction, so a loopback
+// server looks like one a network round trip of 2*oneWay away.
+func startDelayedLink(tb testing.TB, target string, oneWay time.Duration) string {
+	ln, err := net.Listen("tcp", "127.0.0.1:0")
+	if err != nil {
+		tb.Fatal(err)
+	}
+	tb.Cleanup(func() { ln.Close() })
+	go func() {
+		for {
+			conn, err := ln.Accept()
+			if err != nil {
+				return
+			}
+			remote, err := net.Dial("tcp", target)
+			if err != nil {
+				conn.Close()
+				continue
+			}
+			go delayCopy(remote, conn, oneWay)
+			go delayCopy(conn, remote, oneWay)
+		}
+	}()
+	return ln.Addr().String()
+}
+
+type delayedChunk struct {
+	data []byte
+	due  time.Time
+}
+
+// delayCopy copies src to dst, each chunk oneWay after it was read, and
+// closes both once src is done.
+func delayCopy(dst, src net.Conn, oneWay time.Duration) {
+	chunks := make(chan delayedChunk, 64)
+	go func() {
+		defer close(chunks)
+		for {
+			buf := make([]byte, 32<<10)
+			n, err := src.Read(buf)
+			if n > 0 {
+				chunks <- delayedChunk{buf[:n], time.Now().Add(oneWay)}
+			}
+			if err != nil {
+				return
+			}
+		}
+	}()
+	var err error
+	for c := range chunks {
+		// After a failed write the rest is drained so the reader can finish.
+		if err != nil {
+			continue
+		}
+		time.Sleep(time.Until(c.due))
+		if _, err = dst.Write(c.data); err != nil {
+			src.Close()
+		}
+	}
+	dst.Close()
+	src.Close()
+}
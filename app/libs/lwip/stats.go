@@ -0,0 +1,127 @@
+package lwip
+
+import (
+	"io"
+	"sync/atomic"
+	"time"
+)
+
+// Counters for the tun <-> lwIP data path. Up is tun -> lwIP (traffic leaving
+// the device), down is lwIP -> tun.
+var (
+	upBytes     atomic.Uint64
+	upPackets   atomic.Uint64
+	downBytes   atomic.Uint64
+	downPackets atomic.Uint64
+	ioErrors    atomic.Uint64
+	drops       atomic.Uint64
+	// readWakeups counts the poller wakeups that read at least one packet.
+	readWakeups atomic.Uint64
+)
+
+// Stats is a point in time copy of the data path counters.
+type Stats struct {
+	UpBytes     uint64
+	UpPackets   uint64
+	DownBytes   uint64
+	DownPackets uint64
+	Errors      uint64
+	Drops       uint64
+	// PacketsPerWakeup is the mean number of packets read from the tun
+	// device per poller wakeup. Each packet still takes its own read(2), so
+	// this is not packets per syscall.
+	PacketsPerWakeup float64
+
+	DNSHits         uint64
+	DNSMisses       uint64
+	DNSNegativeHits uint64
+	DNSPrefetches   uint64
+	DNSFailures     uint64
+	// DNSUpstreamLatency is the mean time the upstream took to answer a miss.
+	DNSUpstreamLatency time.Duration
+
+	FakeIPMapped    uint64
+	FakeIPCapacity  uint64
+	FakeIPEvictions uint64
+	// FakeIPExhausted counts A queries left to the real resolver because
+	// every fake address had a live flow.
+	FakeIPExhausted uint64
+
+	// DirectFlows counts flows the domain rules kept out of the tunnel.
+	DirectFlows uint64
+}
+
+// resetStats starts the counters over for a new session.
+func resetStats() {
+	upBytes.Store(0)
+	upPackets.Store(0)
+	downBytes.Store(0)
+	downPackets.Store(0)
+	ioErrors.Store(0)
+	drops.Store(0)
+	readWakeups.Store(0)
+	resetDNSStats()
+	fakeIPEvictions.Store(0)
+	fakeIPExhausted.Store(0)
+	directFlows.Store(0)
+}
+
+// GetStats returns the counters accumulated since the last Start.
+func GetStats() Stats {
+	s := Stats{
+		UpBytes:     upBytes.Load(),
+		UpPackets:   upPackets.Load(),
+		DownBytes:   downBytes.Load(),
+		DownPackets: downPackets.Load(),
+		Errors:      ioErrors.Load(),
+		Drops:       drops.Load(),
+
+		DNSHits:         dnsHits.Load(),
+		DNSMisses:       dnsMisses.Load(),
+		DNSNegativeHits: dnsNegativeHits.Load(),
+		DNSPrefetches:   dnsPrefetches.Load(),
+		DNSFailures:     dnsFailures.Load(),
+
+		FakeIPEvictions: fakeIPEvictions.Load(),
+		FakeIPExhausted: fakeIPExhausted.Load(),
+
+		DirectFlows: directFlows.Load(),
+	}
+	if pool := fakeIPs.Load(); pool != nil {
+		used, capacity := pool.occupancy()
+		s.FakeIPMapped, s.FakeIPCapacity = uint64(used), uint64(capacity)
+	}
+	if n := readWakeups.Load(); n > 0 {
+		s.PacketsPerWakeup = float64(s.UpPackets+s.Drops) / float64(n)
+	}
+	if answers := dnsUpstreamAnswers.Load(); answers > 0 {
+		s.DNSUpstreamLatency = time.Duration(dnsUpstreamMicros.Load()/answers) * time.Microsecond
+	}
+	return s
+}
+
+// countingWriter feeds packets read from tun into the lwIP stack. A packet the
+// stack refuses is counted as dropped instead of failing the whole copy.
+type countingWriter struct {
+	w io.Writer
+}
+
+func (c countingWriter) Write(p []byte) (int, error) {
+	if _, err := c.w.Write(p); err != nil {
+		drops.Add(1)
+		return len(p), nil
+	}
+	upPackets.Add(1)
+	upBytes.Add(uint64(len(p)))
+	return len(p), nil
+}
+
+func countOutput(n int, err error) (int, error) {
+	if err != nil {
+		ioErrors.Add(1)
+		return n, err
+	}
+	downPackets.Add(1)
+	downBytes.Add(uint64(n))
+	return n, nil
+}
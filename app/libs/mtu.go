@@ -0,0 +1,179 @@
+package tun2socks
+
+import (
+	"encoding/binary"
+	"errors"
+	"log"
+	"net"
+	"sort"
+	"syscall"
+	"time"
+)
+
+const (
+	minPathMtu = 1280
+	// mtuProbeWait is how long an echo request may take to be answered, and
+	// mtuProbeTries how often a size is sent before it counts as too large.
+	mtuProbeWait  = 400 * time.Millisecond
+	mtuProbeTries = 2
+)
+
+// mtuPlateaus are the path MTUs commonly found between minPathMtu and 1500:
+// Ethernet, PPPoE, and the tunnels of mobile and DSL carriers.
+var mtuPlateaus = []int{1500, 1492, 1480, 1460, 1440, 1420, 1400, 1380, 1350, 1300}
+
+// ProbePathMtu returns the path MTU towards the host of endpoint, a WARP
+// host:port, on the underlying network, or 0 when it cannot be told. It has to
+// run outside the VPN, which is the case for this app's own sockets.
+//
+// WireGuard only answers handshake messages of one fixed size, so the probes
+// are ICMP echo requests to the endpoint's host with DF set, which takes the
+// same path. A size only counts as fitting when its echo request is answered.
+// A host that answers no echo request at all, or a system without
+// unprivileged ping sockets, leaves the path MTU unknown.
+func ProbePathMtu(endpoint string) int64 {
+	start := time.Now()
+	mtu, err := probePathMtu(endpoint)
+	if err != nil {
+		log.Printf("path mtu towards %s unknown: %v", endpoint, err)
+		return 0
+	}
+	log.Printf("path mtu towards %s: %d in %v", endpoint, mtu, time.Since(start))
+	return int64(mtu)
+}
+
+func probePathMtu(endpoint string) (int, error) {
+	host, _, err := net.SplitHostPort(endpoint)
+	if err != nil {
+		host = endpoint
+	}
+	addr, err := net.ResolveIPAddr("ip", host)
+	if err != nil {
+		return 0, err
+	}
+	p, err := newPingSocket(addr.IP)
+	if err != nil {
+		return 0, err
+	}
+	defer p.close()
+
+	// Without an answer at the smallest size nothing larger can be told apart from a loss.
+	if !p.answers(minPathMtu) {
+		return 0, errors.New("no echo reply")
+	}
+	sizes := []int{minPathMtu}
+	top := p.routeMtu()
+	for _, size := range mtuPlateaus {
+		if size < top && size > minPathMtu {
+			sizes = append(sizes, size)
+		}
+	}
+	if top > minPathMtu {
+		sizes = append(sizes, top)
+	}
+	sort.Ints(sizes)
+	// sizes[lo] was answered; search the largest answered size above it.
+	lo, hi := 0, len(sizes)-1
+	for lo < hi {
+		mid := (lo + hi + 1) / 2
+		if p.answers(sizes[mid]) {
+			lo = mid
+		} else {
+			hi = mid - 1
+		}
+	}
+	return sizes[lo], nil
+}
+
+// pingSocket is a connected unprivileged ICMP socket with DF set.
+type pingSocket struct {
+	fd     int
+	v6     bool
+	header int
+	seq    uint16
+}
+
+func newPingSocket(ip net.IP) (*pingSocket, error) {
+	p := &pingSocket{header: 20}
+	family, proto, level, discover := syscall.AF_INET, syscall.IPPROTO_ICMP, syscall.IPPROTO_IP, syscall.IP_MTU_DISCOVER
+	var sa syscall.Sockaddr
+	if ip4 := ip.To4(); ip4 != nil {
+		sa4 := &syscall.SockaddrInet4{}
+		copy(sa4.Addr[:], ip4)
+		sa = sa4
+	} else {
+		p.v6, p.header = true, 40
+		family, proto, level, discover = syscall.AF_INET6, syscall.IPPROTO_ICMPV6, syscall.IPPROTO_IPV6, syscall.IPV6_MTU_DISCOVER
+		sa6 := &syscall.SockaddrInet6{}
+		copy(sa6.Addr[:], ip.To16())
+		sa = sa6
+	}
+	fd, err := syscall.Socket(family, syscall.SOCK_DGRAM|syscall.SOCK_CLOEXEC, proto)
+	if err != nil {
+		// EACCES when the system does not let apps open ping sockets.
+		return nil, err
+	}
+	p.fd = fd
+	timeout := syscall.NsecToTimeval(int64(mtuProbeWait))
+	// IP_PMTUDISC_DO and IPV6_PMTUDISC_DO are both 2: set DF, never fragment locally.
+	if err = syscall.SetsockoptInt(fd, level, discover, syscall.IP_PMTUDISC_DO); err == nil {
+		if err = syscall.SetsockoptTimeval(fd, syscall.SOL_SOCKET, syscall.SO_RCVTIMEO, &timeout); err == nil {
+			err = syscall.Connect(fd, sa)
+		}
+	}
+	if err != nil {
+		syscall.Close(fd)
+		return nil, err
+	}
+	return p, nil
+}
+
+// routeMtu is the MTU the kernel knows for the route, an upper bound for the probes.
+func (p *pingSocket) routeMtu() int {
+	level, option := syscall.IPPROTO_IP, syscall.IP_MTU
+	if p.v6 {
+		level, option = syscall.IPPROTO_IPV6, syscall.IPV6_MTU
+	}
+	mtu, err := syscall.GetsockoptInt(p.fd, level, option)
+	if err != nil || mtu <= 0 {
+		return mtuPlateaus[0]
+	}
+	return mtu
+}
+
+// answers reports whether an echo request that makes an IP packet of size
+// bytes is answered within mtuProbeTries attempts.
+func (p *pingSocket) answers(size int) bool {
+	request, reply := byte(8), byte(0)
+	if p.v6 {
+		request, reply = 128, 129
+	}
+	msg := make([]byte, size-p.header)
+	buf := make([]byte, len(msg))
+	for try := 0; try < mtuProbeTries; try++ {
+		p.seq++
+		// The kernel fills in the identifier and the checksum of ping sockets.
+		msg[0] = request
+		binary.BigEndian.PutUint16(msg[6:8], p.seq)
+		if _, err := syscall.Write(p.fd, msg); err != nil {
+			// EMSGSIZE: the route already knows a smaller path MTU.
+			return false
+		}
+		deadline := time.Now().Add(mtuProbeWait)
+		for time.Now().Before(deadline) {
+			n, err := syscall.Read(p.fd, buf)
+			if err != nil {
+				// The receive timeout, or an ICMP error for the probe.
+				break
+			}
+			if n >= 8 && buf[0] == reply && binary.BigEndian.Uint16(buf[6:8]) == p.seq {
+				return true
+			}
+		}
+	}
+	return false
+}
+
+func (p *pingSocket) close() {
+	syscall.Close(p.fd)
+}
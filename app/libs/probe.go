@@ -0,0 +1,116 @@
+package tun2socks
+
+import (
+	"context"
+	"errors"
+	"fmt"
+	"io"
+	"net"
+	"net/netip"
+	"strings"
+	"time"
+)
+
+// probeTarget is reached through the tunnel to tell whether an endpoint carries traffic.
+const probeTarget = "1.1.1.1:80"
+
+// waitListening returns once the core accepts SOCKS5 connections on the
+// address bindAddress returns, which is asked again on every attempt so a
+// core that moved to a fresh port is followed. app.RunWarp owns its
+// listener, so a loopback connect is the only signal available from here;
+// the greeting tells the core apart from another process on the port.
+func waitListening(ctx context.Context, bindAddress func() string, timeout time.Duration) error {
+	deadline := time.Now().Add(timeout)
+	backoff := 10 * time.Millisecond
+	for {
+		err := greetProxy(ctx, loopback(bindAddress()))
+		if err == nil {
+			return nil
+		}
+		if ctx.Err() != nil {
+			return errors.New("cancelled")
+		}
+		if time.Now().After(deadline) {
+			return errors.New("timeout")
+		}
+		select {
+		case <-ctx.Done():
+			return errors.New("cancelled")
+		case <-time.After(backoff):
+		}
+		if backoff < 250*time.Millisecond {
+			backoff *= 2
+		}
+	}
+}
+
+// greetProxy connects to target and checks that it answers a SOCKS5
+// greeting without authentication.
+func greetProxy(ctx context.Context, target string) error {
+	dialer := net.Dialer{Timeout: time.Second}
+	conn, err := dialer.DialContext(ctx, "tcp", target)
+	if err != nil {
+		return err
+	}
+	defer conn.Close()
+	conn.SetDeadline(time.Now().Add(time.Second))
+	if _, err := conn.Write([]byte{5, 1, 0}); err != nil {
+		return err
+	}
+	method := make([]byte, 2)
+	if _, err := io.ReadFull(conn, method); err != nil {
+		return err
+	}
+	if method[0] != 5 || method[1] != 0 {
+		return errors.New("not a SOCKS5 proxy")
+	}
+	return nil
+}
+
+// probeProxy opens a SOCKS5 CONNECT to probeTarget through the proxy on
+// bindAddress and returns the time the proxy took to reach it.
+func probeProxy(ctx context.Context, bindAddress string, timeout time.Duration) (time.Duration, error) {
+	ctx, cancel := context.WithTimeout(ctx, timeout)
+	defer cancel()
+	dialer := net.Dialer{}
+	conn, err := dialer.DialContext(ctx, "tcp", loopback(bindAddress))
+	if err != nil {
+		return 0, err
+	}
+	defer conn.Close()
+	if deadline, ok := ctx.Deadline(); ok {
+		conn.SetDeadline(deadline)
+	}
+
+	if _, err := conn.Write([]byte{5, 1, 0}); err != nil {
+		return 0, err
+	}
+	method := make([]byte, 2)
+	if _, err := io.ReadFull(conn, method); err != nil {
+		return 0, err
+	}
+	if method[0] != 5 || method[1] != 0 {
+		return 0, errors.New("proxy refused the handshake")
+	}
+
+	target := netip.MustParseAddrPort(probeTarget)
+	ip := target.Addr().As4()
+	request := []byte{5, 1, 0, 1, ip[0], ip[1], ip[2], ip[3], byte(target.Port() >> 8), byte(target.Port())}
+	start := time.Now()
+	if _, err := conn.Write(request); err != nil {
+		return 0, err
+	}
+	// Only the status byte matters; the bound address that follows is not read.
+	reply := make([]byte, 4)
+	if _, err := io.ReadFull(conn, reply); err != nil {
+		return 0, err
+	}
+	if reply[1] != 0 {
+		return 0, fmt.Errorf("proxy replied %d", reply[1])
+	}
+	return time.Since(start), nil
+}
+
+func loopback(bindAddress string) string {
+	return strings.Replace(bindAddress, "0.0.0.0", "127.0.0.1", -1)
+}
@@ -0,0 +1,110 @@
+package tun2socks
+
+import (
+	"context"
+	"errors"
+	"fmt"
+	"log"
+	"strings"
+	"sync"
+	"time"
+)
+
+// raceDelay staggers the endpoint attempts, the connection attempt delay of RFC 8305.
+const raceDelay = 250 * time.Millisecond
+
+type raceResult struct {
+	index int
+	rtt   time.Duration
+	err   error
+}
+
+// splitEndpoints turns the comma separated StartOptions.Endpoint into its entries.
+func splitEndpoints(endpoint string) []string {
+	var list []string
+	for _, e := range strings.Split(endpoint, ",") {
+		if e = strings.TrimSpace(e); e != "" {
+			list = append(list, e)
+		}
+	}
+	return list
+}
+
+// raceEndpoints races WireGuard handshakes against the endpoints, in order
+// and raceDelay apart, or right away when the previous one failed, and starts
+// a single core on the configured bind address against the first endpoint to
+// answer. A handshake is one UDP round trip, so no core runs for an endpoint
+// that loses.
+func raceEndpoints(ctx context.Context, ready *readiness, list []string) {
+	span := traces.begin("go.race")
+	winner, rtt, err := raceHandshakes(ctx, list)
+	if err != nil {
+		span.end(err.Error())
+		if ctx.Err() == nil {
+			ready.failed(PhaseStarting, err.Error())
+		}
+		return
+	}
+	span.end(winner)
+	rtts.add(rtt)
+	runEndpoint(ctx, ready, winner, nil)
+}
+
+// raceHandshakes returns the first endpoint of list to answer a handshake and
+// its RTT. The other handshakes are cancelled and have returned by the time
+// it does.
+func raceHandshakes(ctx context.Context, list []string) (string, time.Duration, error) {
+	raceCtx, cancel := context.WithCancel(ctx)
+	var wg sync.WaitGroup
+	defer wg.Wait()
+	defer cancel()
+	results := make(chan raceResult, len(list))
+	start := func(i int) {
+		log.Printf("race: trying endpoint %s", list[i])
+		wg.Add(1)
+		go func() {
+			defer wg.Done()
+			rtt, err := handshakeRtt(raceCtx, list[i], handshakeTimeout)
+			results <- raceResult{index: i, rtt: rtt, err: err}
+		}()
+	}
+
+	raceStart := time.Now()
+	start(0)
+	next, pending := 1, 1
+	timer := time.NewTimer(raceDelay)
+	defer timer.Stop()
+	var lastErr error
+	for pending > 0 {
+		select {
+		case <-timer.C:
+			if next < len(list) {
+				start(next)
+				next++
+				pending++
+				timer.Reset(raceDelay)
+			}
+		case r := <-results:
+			pending--
+			if r.err != nil {
+				log.Printf("race: endpoint %s failed: %v", list[r.index], r.err)
+				lastErr = r.err
+				if next < len(list) {
+					start(next)
+					next++
+					pending++
+					timer.Reset(raceDelay)
+				}
+				continue
+			}
+			log.Printf("race: endpoint %s won after %v, rtt %v", list[r.index], time.Since(raceStart), r.rtt)
+			return list[r.index], r.rtt, nil
+		case <-ctx.Done():
+			return "", 0, errors.New("cancelled")
+		}
+	}
+	if lastErr == nil {
+		lastErr = errors.New("no endpoint")
+	}
+	return "", 0, fmt.Errorf("all %d endpoints failed, last: %v", len(list), lastErr)
+}
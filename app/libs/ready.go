@@ -0,0 +1,141 @@
+package tun2socks
+
+import (
+	"errors"
+	"fmt"
+	"log"
+	"net"
+	"strings"
+	"sync"
+	"syscall"
+	"time"
+)
+
+// Phases reported through ReadyCallback.
+const (
+	PhaseStarting = "starting"
+	PhaseServing  = "serving"
+)
+
+const readyTimeout = 2 * time.Minute
+
+// bindRetries is how often the core is started again on a fresh port after
+// another process took the reserved one first.
+const bindRetries = 3
+
+var (
+	bindMu sync.Mutex
+	// boundAddress is where the core of the current RunWarp listens. It
+	// starts as the reserved address and moves when that one is lost.
+	boundAddress string
+)
+
+// ReadyCallback is implemented on the Java side to learn when the local proxy is serving.
+// Exactly one of its methods is called per RunWarp.
+type ReadyCallback interface {
+	OnReady(bindAddress string, phase string)
+	OnFailed(phase string, reason string)
+}
+
+type readiness struct {
+	once sync.Once
+	cb   ReadyCallback
+}
+
+func newReadiness(cb ReadyCallback) *readiness {
+	return &readiness{cb: cb}
+}
+
+func (r *readiness) ready(bindAddress string) {
+	r.once.Do(func() {
+		traces.event("go.ready", bindAddress)
+		log.Printf("proxy is serving on %s", bindAddress)
+		if r.cb != nil {
+			r.cb.OnReady(bindAddress, PhaseServing)
+		}
+	})
+}
+
+func (r *readiness) failed(phase string, reason string) {
+	r.once.Do(func() {
+		traces.event("go.failed", phase+": "+reason)
+		log.Printf("core failed during %s: %s", phase, reason)
+		if r.cb != nil {
+			r.cb.OnFailed(phase, reason)
+		}
+	})
+}
+
+// reserveBindAddress returns bindAddress unchanged when its port is free, and
+// otherwise the same host with a port picked by the kernel. Port 0 always
+// picks a fresh port.
+//
+// app.RunWarp binds the address itself and cannot take a listener, so the
+// port is closed again before the core binds it and another process can take
+// it in between. runWarp starts the core again on a fresh port when that
+// happens.
+func reserveBindAddress(bindAddress string) (string, error) {
+	host, port, err := net.SplitHostPort(bindAddress)
+	if err != nil {
+		return "", fmt.Errorf("invalid bind address %q: %w", bindAddress, err)
+	}
+	if port != "0" && port != "" {
+		if ln, err := net.Listen("tcp", bindAddress); err == nil {
+			ln.Close()
+			return bindAddress, nil
+		}
+		log.Printf("port %s is busy, picking a free one", port)
+	}
+	ln, err := net.Listen("tcp", net.JoinHostPort(host, "0"))
+	if err != nil {
+		return "", err
+	}
+	defer ln.Close()
+	addr, ok := ln.Addr().(*net.TCPAddr)
+	if !ok {
+		return "", errors.New("unexpected listener address")
+	}
+	return net.JoinHostPort(host, fmt.Sprint(addr.Port)), nil
+}
+
+func currentBind() string {
+	bindMu.Lock()
+	defer bindMu.Unlock()
+	return boundAddress
+}
+
+func setBind(bindAddress string) {
+	bindMu.Lock()
+	defer bindMu.Unlock()
+	boundAddress = bindAddress
+}
+
+// rebind moves the core off lost, a bind address another process took, to a
+// fresh port and points the netstack at it. An attempt that already moved on
+// from lost is followed, not moved again.
+func rebind(lost string) (string, error) {
+	bindMu.Lock()
+	defer bindMu.Unlock()
+	if boundAddress != lost {
+		return boundAddress, nil
+	}
+	host, _, err := net.SplitHostPort(lost)
+	if err != nil {
+		return "", err
+	}
+	next, err := reserveBindAddress(net.JoinHostPort(host, "0"))
+	if err != nil {
+		return "", err
+	}
+	boundAddress = next
+	if err := netstack.setProxy(loopback(next)); err != nil {
+		log.Printf("rebind: %v", err)
+	}
+	return next, nil
+}
+
+// isAddrInUse reports whether err is the core failing to bind its listener.
+// The core may flatten the error into text, hence the message check.
+func isAddrInUse(err error) bool {
+	return err != nil && (errors.Is(err, syscall.EADDRINUSE) || strings.Contains(err.Error(), "address already in use"))
+}
@@ -0,0 +1,162 @@
+package tun2socks
+
+import (
+	"encoding/json"
+	"log"
+	"os"
+	"path/filepath"
+	"sort"
+	"sync"
+	"time"
+)
+
+const (
+	rttHistoryFile = "rtt.json"
+	// Thresholds are in milliseconds, the unit app.RunWarp takes.
+	defaultRtt = 800
+	rttFloor   = 200
+	rttCeiling = 2000
+	// The threshold is the rttPercentile of the recent handshake RTTs with some
+	// headroom, so the scan accepts endpoints as good as what this network
+	// usually gets. Samples are mostly endpoints a scan accepted, so without
+	// the headroom the threshold would only ever ratchet down to rttFloor.
+	rttPercentile     = 0.9
+	rttHeadroom       = 1.25
+	rttMinSamples     = 5
+	rttSamplesPerNet  = 32
+	maxRttNetworks    = 16
+	rttSaveMinSpacing = 30 * time.Second
+)
+
+type networkRtt struct {
+	Samples []int64 `json:"samples"`
+	Updated int64   `json:"updated"`
+}
+
+// rttHistory keeps recent WireGuard handshake RTTs of WARP endpoints per
+// network under StartOptions.Path and derives the scanner's acceptance
+// threshold from them. The scanner measures endpoints the same way, so the
+// samples and the threshold are in the same terms; end to end times through
+// the proxy include the tunnel and the destination and are not used.
+type rttHistory struct {
+	mu       sync.Mutex
+	dir      string
+	network  string
+	networks map[string]*networkRtt
+	lastSave time.Time
+}
+
+var rtts = &rttHistory{}
+
+// load reads the history from dir, once per directory, and selects network.
+func (h *rttHistory) load(dir string, network string) {
+	h.mu.Lock()
+	defer h.mu.Unlock()
+	if network == "" {
+		network = "default"
+	}
+	h.network = network
+	if h.networks != nil && h.dir == dir {
+		return
+	}
+	h.dir = dir
+	h.networks = make(map[string]*networkRtt)
+	data, err := os.ReadFile(filepath.Join(dir, rttHistoryFile))
+	if err != nil {
+		if !os.IsNotExist(err) {
+			log.Printf("rtt history: %v", err)
+		}
+		return
+	}
+	if err := json.Unmarshal(data, &h.networks); err != nil {
+		log.Printf("rtt history is corrupt, starting over: %v", err)
+		h.networks = make(map[string]*networkRtt)
+	}
+}
+
+// threshold returns the scan RTT cutoff for the current network.
+func (h *rttHistory) threshold() int {
+	h.mu.Lock()
+	network := h.network
+	var samples []int64
+	if n, ok := h.networks[network]; ok {
+		samples = append(samples, n.Samples...)
+	}
+	h.mu.Unlock()
+
+	if len(samples) < rttMinSamples {
+		log.Printf("rtt threshold for %s: %dms (only %d samples)", network, defaultRtt, len(samples))
+		return defaultRtt
+	}
+	sort.Slice(samples, func(i, j int) bool { return samples[i] < samples[j] })
+	p := samples[int(float64(len(samples)-1)*rttPercentile)]
+	threshold := int(float64(p) * rttHeadroom)
+	if threshold < rttFloor {
+		threshold = rttFloor
+	}
+	if threshold > rttCeiling {
+		threshold = rttCeiling
+	}
+	log.Printf("rtt threshold for %s: %dms (p%d %dms over %d samples)", network, threshold, int(rttPercentile*100), p, len(samples))
+	return threshold
+}
+
+func (h *rttHistory) add(rtt time.Duration) {
+	h.mu.Lock()
+	defer h.mu.Unlock()
+	if h.networks == nil || h.network == "" {
+		return
+	}
+	n, ok := h.networks[h.network]
+	if !ok {
+		n = &networkRtt{}
+		h.networks[h.network] = n
+	}
+	n.Samples = append(n.Samples, rtt.Milliseconds())
+	if len(n.Samples) > rttSamplesPerNet {
+		n.Samples = n.Samples[len(n.Samples)-rttSamplesPerNet:]
+	}
+	n.Updated = time.Now().Unix()
+	// A scan adds several samples at once; the file only needs to survive restarts.
+	if time.Since(h.lastSave) >= rttSaveMinSpacing {
+		h.saveLocked()
+	}
+}
+
+func (h *rttHistory) save() {
+	h.mu.Lock()
+	defer h.mu.Unlock()
+	h.saveLocked()
+}
+
+// saveLocked drops the least recently used networks beyond maxRttNetworks and
+// writes the history through a temporary file.
+func (h *rttHistory) saveLocked() {
+	if h.dir == "" {
+		return
+	}
+	h.lastSave = time.Now()
+	for len(h.networks) > maxRttNetworks {
+		oldest := ""
+		for key, n := range h.networks {
+			if oldest == "" || n.Updated < h.networks[oldest].Updated {
+				oldest = key
+			}
+		}
+		delete(h.networks, oldest)
+	}
+	data, err := json.Marshal(h.networks)
+	if err != nil {
+		log.Printf("rtt history: %v", err)
+		return
+	}
+	path := filepath.Join(h.dir, rttHistoryFile)
+	tmp := path + ".tmp"
+	if err := os.WriteFile(tmp, data, 0o600); err != nil {
+		log.Printf("rtt history: %v", err)
+		return
+	}
+	if err := os.Rename(tmp, path); err != nil {
+		log.Printf("rtt history: %v", err)
+	}
+}
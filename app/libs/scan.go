@@ -0,0 +1,84 @@
+package tun2socks
+
+import (
+	"context"
+	"errors"
+	"fmt"
+	"log"
+	"math/rand"
+	"net/netip"
+	"time"
+)
+
+// scanCandidates is how many addresses of the WARP ranges a scan handshakes
+// with at once.
+const scanCandidates = 24
+
+// warpPrefixes are the ranges scans pick endpoints from.
+var warpPrefixes = []netip.Prefix{
+	netip.MustParsePrefix("162.159.192.0/24"),
+	netip.MustParsePrefix("162.159.193.0/24"),
+	netip.MustParsePrefix("162.159.195.0/24"),
+	netip.MustParsePrefix("188.114.96.0/22"),
+	netip.MustParsePrefix("2606:4700:d0::/48"),
+	netip.MustParsePrefix("2606:4700:d1::/48"),
+}
+
+// warpPorts are the UDP ports WARP endpoints answer WireGuard on.
+var warpPorts = []uint16{2408, 500, 1701, 4500}
+
+// scanEndpoints handshakes with random endpoints of the WARP ranges and
+// returns the fastest one to answer within threshold, with its RTT. Every
+// answer is a sample of this network's RTT history. The endpoint is known
+// from the handshake itself, so unlike the core's own scan it can be cached.
+func scanEndpoints(ctx context.Context, threshold time.Duration) (string, time.Duration, error) {
+	scanCtx, cancel := context.WithCancel(ctx)
+	defer cancel()
+	results := make(chan raceResult, scanCandidates)
+	candidates := make([]string, scanCandidates)
+	for i := range candidates {
+		candidates[i] = randomWarpEndpoint()
+		go func(i int) {
+			rtt, err := handshakeRtt(scanCtx, candidates[i], threshold)
+			results <- raceResult{index: i, rtt: rtt, err: err}
+		}(i)
+	}
+
+	best := -1
+	var bestRtt time.Duration
+	answered := 0
+	for range candidates {
+		r := <-results
+		if r.err != nil {
+			continue
+		}
+		answered++
+		rtts.add(r.rtt)
+		if best < 0 || r.rtt < bestRtt {
+			best, bestRtt = r.index, r.rtt
+		}
+	}
+	if ctx.Err() != nil {
+		return "", 0, errors.New("cancelled")
+	}
+	if best < 0 {
+		return "", 0, fmt.Errorf("none of %d endpoints answered within %v", scanCandidates, threshold)
+	}
+	log.Printf("scan: %d of %d endpoints answered within %v, best %s rtt %v", answered, scanCandidates, threshold, candidates[best], bestRtt)
+	return candidates[best], bestRtt, nil
+}
+
+// randomWarpEndpoint returns a random address of a random WARP range on a
+// random WARP port.
+func randomWarpEndpoint() string {
+	prefix := warpPrefixes[rand.Intn(len(warpPrefixes))]
+	addr := prefix.Addr().AsSlice()
+	// Randomize the host bits, keeping the network bits of the prefix.
+	for bit := prefix.Bits(); bit < len(addr)*8; bit++ {
+		if rand.Intn(2) == 1 {
+			addr[bit/8] |= 0x80 >> (bit % 8)
+		}
+	}
+	ip, _ := netip.AddrFromSlice(addr)
+	return netip.AddrPortFrom(ip, warpPorts[rand.Intn(len(warpPorts))]).String()
+}
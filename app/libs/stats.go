@@ -0,0 +1,60 @@
+package tun2socks
+
+import "tun2socks/lwip"
+
+// Stats is the data path counters snapshot handed to Java. Up is traffic
+// leaving the device through the tunnel, down is traffic coming back.
+type Stats struct {
+	UpBytes     int64
+	UpPackets   int64
+	DownBytes   int64
+	DownPackets int64
+	Errors      int64
+	Drops       int64
+	// PacketsPerWakeup is the mean number of tun packets read per poller
+	// wakeup, one read(2) each.
+	PacketsPerWakeup float64
+
+	DnsHits   int64
+	DnsMisses int64
+	// DnsLatencyMicros is the mean upstream time of a cache miss.
+	DnsLatencyMicros int64
+
+	FakeIpMapped    int64
+	FakeIpCapacity  int64
+	FakeIpEvictions int64
+
+	// DirectFlows counts flows the domain rules kept out of the tunnel.
+	DirectFlows int64
+}
+
+// GetStats is cheap enough to call every second; it only loads atomic counters.
+func GetStats() *Stats {
+	s := lwip.GetStats()
+	return &Stats{
+		UpBytes:     int64(s.UpBytes),
+		UpPackets:   int64(s.UpPackets),
+		DownBytes:   int64(s.DownBytes),
+		DownPackets: int64(s.DownPackets),
+		Errors:      int64(s.Errors),
+		Drops:       int64(s.Drops),
+
+		PacketsPerWakeup: s.PacketsPerWakeup,
+
+		DnsHits:          int64(s.DNSHits),
+		DnsMisses:        int64(s.DNSMisses),
+		DnsLatencyMicros: s.DNSUpstreamLatency.Microseconds(),
+
+		FakeIpMapped:    int64(s.FakeIPMapped),
+		FakeIpCapacity:  int64(s.FakeIPCapacity),
+		FakeIpEvictions: int64(s.FakeIPEvictions),
+
+		DirectFlows: int64(s.DirectFlows),
+	}
+}
+
+// RuleHits lists the domain rules with the most hits, at most limit, one per
+// line as the rule followed by a tab and its hit count.
+func RuleHits(limit int) string {
+	return lwip.RuleHits(limit)
+}
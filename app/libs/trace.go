@@ -0,0 +1,122 @@
+package tun2socks
+
+import (
+	"fmt"
+	"strings"
+	"sync"
+
+	"golang.org/x/sys/unix"
+)
+
+// Spans of the current connect. Times are CLOCK_BOOTTIME nanoseconds, the
+// clock behind SystemClock.elapsedRealtimeNanos, so the Java side can lay
+// them next to its own spans without converting.
+
+const maxTraceSpans = 128
+
+var detailEscaper = strings.NewReplacer("\t", " ", "\n", " ")
+
+type traceSpan struct {
+	name   string
+	start  int64
+	end    int64
+	detail string
+}
+
+type tracer struct {
+	mu      sync.Mutex
+	session int
+	spans   []*traceSpan
+}
+
+var traces tracer
+
+func bootNanos() int64 {
+	var ts unix.Timespec
+	if err := unix.ClockGettime(unix.CLOCK_BOOTTIME, &ts); err != nil {
+		return 0
+	}
+	return ts.Nano()
+}
+
+// TraceClock returns the clock the spans use, for callers that cannot read
+// SystemClock.elapsedRealtimeNanos.
+func TraceClock() int64 {
+	return bootNanos()
+}
+
+func (t *tracer) reset(session int) {
+	t.mu.Lock()
+	defer t.mu.Unlock()
+	t.session = session
+	t.spans = nil
+}
+
+// begin opens a span; end it with end. Spans past maxTraceSpans are not kept.
+func (t *tracer) begin(name string) *traceSpan {
+	s := &traceSpan{name: name, start: bootNanos(), end: -1}
+	t.mu.Lock()
+	defer t.mu.Unlock()
+	if len(t.spans) < maxTraceSpans {
+		t.spans = append(t.spans, s)
+	}
+	return s
+}
+
+// event records a span without duration.
+func (t *tracer) event(name, detail string) {
+	t.begin(name).end(detail)
+}
+
+// end closes the span once; later calls are ignored.
+func (s *traceSpan) end(detail string) {
+	traces.mu.Lock()
+	defer traces.mu.Unlock()
+	if s.end < 0 {
+		s.end = bootNanos()
+		s.detail = detail
+	}
+}
+
+// observe turns milestones the core only logs into events.
+func (t *tracer) observe(line string) {
+	switch {
+	case strings.Contains(line, "Received handshake response"):
+		t.once("go.handshake", "")
+	case strings.Contains(line, `"noticeType":"ActiveTunnel"`):
+		t.once("go.psiphon", "")
+	}
+}
+
+// once records an event unless a span of that name exists. The lookup and the
+// insert share one critical section, so concurrent log lines record it once.
+func (t *tracer) once(name, detail string) {
+	now := bootNanos()
+	t.mu.Lock()
+	defer t.mu.Unlock()
+	for _, s := range t.spans {
+		if s.name == name {
+			return
+		}
+	}
+	if len(t.spans) < maxTraceSpans {
+		t.spans = append(t.spans, &traceSpan{name: name, start: now, end: now, detail: detail})
+	}
+}
+
+// TakeTrace returns the spans recorded for session, one per line as name,
+// start, end and detail separated by tabs, and forgets them. A span still
+// open has end -1.
+func TakeTrace(session int) string {
+	traces.mu.Lock()
+	defer traces.mu.Unlock()
+	if traces.session != session {
+		return ""
+	}
+	var b strings.Builder
+	for _, s := range traces.spans {
+		fmt.Fprintf(&b, "%s\t%d\t%d\t%s\n", s.name, s.start, s.end, detailEscaper.Replace(s.detail))
+	}
+	traces.spans = nil
+	return b.String()
+}
@@ -0,0 +1,146 @@
+package tun2socks
+
+import (
+	"context"
+	"sync"
+	"syscall"
+	"tun2socks/lwip"
+)
+
+// The WARP core starts connecting before the VPN interface exists; the
+// interface arrives later through AttachTun and only then is the netstack
+// brought up on it.
+
+type tunHandle struct {
+	session int
+	fd      int
+	mtu     int
+}
+
+var (
+	// pendingTun is an fd handed over before its RunWarp took it, and
+	// lastSession the newest session RunWarp started; guarded by lifecycleMu.
+	pendingTun  *tunHandle
+	lastSession int
+	tunArrived  = make(chan struct{}, 1)
+)
+
+// AttachTun hands the VPN interface of session to its RunWarp, which may
+// already be connecting or may not have started yet. The fd is owned by the
+// core from here on, also when it belongs to a session that is over.
+func AttachTun(session, tunFd, mtu int) {
+	lifecycleMu.Lock()
+	if session < lastSession {
+		lifecycleMu.Unlock()
+		syscall.Close(tunFd)
+		return
+	}
+	if pendingTun != nil {
+		syscall.Close(pendingTun.fd)
+	}
+	pendingTun = &tunHandle{session: session, fd: tunFd, mtu: mtu}
+	lifecycleMu.Unlock()
+	select {
+	case tunArrived <- struct{}{}:
+	default:
+	}
+}
+
+// takeTun returns the pending fd of session and closes one left from an
+// older session.
+func takeTun(session int) *tunHandle {
+	lifecycleMu.Lock()
+	defer lifecycleMu.Unlock()
+	t := pendingTun
+	if t == nil || t.session > session {
+		return nil
+	}
+	pendingTun = nil
+	if t.session < session {
+		syscall.Close(t.fd)
+		return nil
+	}
+	return t
+}
+
+// dropTun closes a pending fd of session or older, for a RunWarp that
+// stops before its interface arrived. Called with lifecycleMu held.
+func dropTun(session int) {
+	if pendingTun != nil && pendingTun.session <= session {
+		syscall.Close(pendingTun.fd)
+		pendingTun = nil
+	}
+}
+
+func waitTun(ctx context.Context, session int) (*tunHandle, bool) {
+	for {
+		if t := takeTun(session); t != nil {
+			return t, true
+		}
+		select {
+		case <-tunArrived:
+		case <-ctx.Done():
+			return nil, false
+		}
+	}
+}
+
+// netstackState starts the netstack with the proxy that is current at that
+// moment: the core may move to a fresh port before the interface arrives.
+type netstackState struct {
+	mu      sync.Mutex
+	proxy   string
+	running bool
+}
+
+var netstack netstackState
+
+func (n *netstackState) reset(proxy string) {
+	n.mu.Lock()
+	defer n.mu.Unlock()
+	n.proxy = proxy
+	n.running = false
+}
+
+func (n *netstackState) setProxy(proxy string) error {
+	n.mu.Lock()
+	defer n.mu.Unlock()
+	n.proxy = proxy
+	if !n.running {
+		return nil
+	}
+	return lwip.SetProxy(proxy)
+}
+
+func (n *netstackState) start(fd, mtu int) bool {
+	n.mu.Lock()
+	defer n.mu.Unlock()
+	fakeIPRange := global.FakeIPRange
+	if fakeIPRange == "" {
+		fakeIPRange = defaultFakeIPRange
+	}
+	opt := &lwip.Tun2socksStartOptions{
+		TunFd:          fd,
+		Socks5Server:   n.proxy,
+		FakeIPRange:    fakeIPRange,
+		FakeIPCapacity: global.FakeIPCapacity,
+		MTU:            mtu,
+		Engine:         global.Engine,
+		BatchSize:      global.BatchSize,
+		EnableIPv6:     true,
+		AllowLan:       true,
+		StateDir:       global.Path,
+	}
+	if lwip.Start(opt) != 0 {
+		return false
+	}
+	n.running = true
+	return true
+}
+
+func (n *netstackState) stop() {
+	n.mu.Lock()
+	defer n.mu.Unlock()
+	lwip.Stop()
+	n.running = false
+}
@@ -11,24 +11,41 @@ import (
 	"strings"
 	"sync"
 	"syscall"
+	"time"
 	"tun2socks/lwip"
 
-	"github.com/bepass-org/wireguard-go/app"
 	L "github.com/xjasonlyu/tun2socks/v2/log"
 )
 
 // Variables to hold flag values.
 var (
-	logMessages []string
-	mu          sync.Mutex
-	wg          sync.WaitGroup
-	cancelFunc  context.CancelFunc
+	logSetup sync.Once
+	// lifecycleMu guards cancelFunc, stopped and runningSession, which belong
+	// to the running RunWarp, and stoppedSession.
+	lifecycleMu    sync.Mutex
+	cancelFunc     context.CancelFunc
+	stopped        chan struct{}
+	runningSession int
+	// stoppedSession is the newest session Shutdown was called for. A RunWarp
+	// of that session or an older one returns without starting the core, also
+	// when the stop arrived before it registered its cancel func.
+	stoppedSession = -1
+	// startCore runs the WARP core until its context is done, and
+	// beforeRegister runs right before a RunWarp registers; tests replace them.
+	startCore      = runCore
+	beforeRegister = func() {}
 )
 
+const defaultFakeIPRange = "24.0.0.0/8"
+
+// shutdownTimeout bounds how long Shutdown waits for the core to stop.
+const shutdownTimeout = 5 * time.Second
+
 type StartOptions struct {
 	TunFd          int
 	Path           string
 	FakeIPRange    string
+	FakeIPCapacity int
 	Verbose        bool
 	BindAddress    string
 	Endpoint       string
@@ -38,6 +55,13 @@ type StartOptions struct {
 	Gool           bool
 	Scan           bool
 	Rtt            int
+	NetworkKey     string
+	Mtu            int
+	Session        int
+	Engine         string
+	BatchSize      int
+	Ready          ReadyCallback
+	Logger         LogCallback
 }
 
 var global StartOptions
@@ -45,109 +69,222 @@ var global StartOptions
 type logWriter struct{}
 
 func (writer logWriter) Write(bytes []byte) (int, error) {
-	mu.Lock()
-	defer mu.Unlock()
-	logMessages = append(logMessages, string(bytes))
+	line := strings.TrimRight(string(bytes), "\n")
+	traces.observe(line)
+	logs.push(line)
 	return len(bytes), nil
 }
 
 func RunWarp(opt *StartOptions) {
+	if sessionStopped(opt.Session) {
+		abandon(opt)
+		return
+	}
 	global = *opt
-	logger := logWriter{}
-	log.SetOutput(logger)
-	r, w, _ := os.Pipe()
-	os.Stdout = w
-	os.Stderr = w
-
-	L.SetLevel(L.DebugLevel)
-	L.SetOutput(logger)
-
-	go func(reader io.Reader) {
-		scanner := bufio.NewScanner(reader)
-		for scanner.Scan() {
-			logger.Write([]byte(scanner.Text()))
-		}
-		if err := scanner.Err(); err != nil {
-			fmt.Fprintln(os.Stderr, "There was an error with the scanner", err)
-		}
-	}(r)
+	logs.setCallback(global.Logger)
+	// The process now outlives a session, redirect output only once.
+	logSetup.Do(setupLogging)
 	if err := os.Chdir(global.Path); err != nil {
 		log.Fatal("Error changing to 'main' directory:", err)
 	}
 
+	traces.reset(global.Session)
+	// Bind address is resolved here so the caller can pass port 0 or a busy port.
+	bindSpan := traces.begin("go.bind")
+	bindAddress, err := reserveBindAddress(global.BindAddress)
+	bindSpan.end(bindAddress)
+	if err != nil {
+		newReadiness(global.Ready).failed(PhaseStarting, err.Error())
+		if global.TunFd > 0 {
+			syscall.Close(global.TunFd)
+		}
+		return
+	}
+	global.BindAddress = bindAddress
+	setBind(bindAddress)
+	endpoints.load(global.Path)
+	rtts.load(global.Path, global.NetworkKey)
+	// Rtt 0 lets the scan threshold follow what this network has measured so far.
+	if global.Rtt <= 0 {
+		global.Rtt = rtts.threshold()
+	}
+
 	// Setup context with cancellation.
 	ctx, cancel := context.WithCancel(context.Background())
+	done := make(chan struct{})
+	defer close(done)
+	beforeRegister()
+	lifecycleMu.Lock()
+	if global.Session <= stoppedSession {
+		// Shutdown ran while this RunWarp was starting and found nothing to cancel.
+		lifecycleMu.Unlock()
+		cancel()
+		abandon(&global)
+		return
+	}
 	cancelFunc = cancel
-	wg.Add(1)
+	stopped = done
+	runningSession = global.Session
+	if global.Session > lastSession {
+		lastSession = global.Session
+	}
+	lifecycleMu.Unlock()
+	serverDone := make(chan struct{})
 
 	// Start your long-running process.
-	go runServer(ctx, global.TunFd)
+	go runServer(ctx, serverDone)
 
 	// Wait for interrupt signal.
 	sigCh := make(chan os.Signal, 1)
 	signal.Notify(sigCh, syscall.SIGINT, syscall.SIGTERM)
+	defer signal.Stop(sigCh)
 
 	select {
 	case <-sigCh:
 		// Received an interrupt signal, shut down.
 		log.Println("Shutting down server...")
-		cancelFunc()
+		cancel()
 	case <-ctx.Done():
 		// Context was cancelled, perhaps from another part of the app calling Shutdown().
 	}
 
 	// Wait for the server goroutine to finish.
-	wg.Wait()
+	<-serverDone
+	rtts.save()
 	log.Println("Server shut down gracefully.")
 }
 
-func runServer(ctx context.Context, fd int) {
+func sessionStopped(session int) bool {
+	lifecycleMu.Lock()
+	defer lifecycleMu.Unlock()
+	return session <= stoppedSession
+}
+
+// abandon ends a RunWarp whose session was stopped before its core started.
+func abandon(opt *StartOptions) {
+	log.Printf("session %d was stopped before its core started", opt.Session)
+	if opt.TunFd > 0 {
+		syscall.Close(opt.TunFd)
+	}
+	newReadiness(opt.Ready).failed(PhaseStarting, "stopped")
+}
+
+func setupLogging() {
+	logger := logWriter{}
+	log.SetOutput(logger)
+	r, w, _ := os.Pipe()
+	os.Stdout = w
+	os.Stderr = w
+
+	L.SetLevel(L.DebugLevel)
+	L.SetOutput(logger)
+
+	go func(reader io.Reader) {
+		scanner := bufio.NewScanner(reader)
+		for scanner.Scan() {
+			logger.Write([]byte(scanner.Text()))
+		}
+		if err := scanner.Err(); err != nil {
+			fmt.Fprintln(os.Stderr, "There was an error with the scanner", err)
+		}
+	}(r)
+}
+
+func runServer(ctx context.Context, serverDone chan struct{}) {
+	warpDone := make(chan struct{})
+
 	// Ensuring a cleanup operation even in the case of an error
 	defer func() {
 		// Perform cleanup and exit.
-		lwip.Stop()
+		netstack.stop()
+		// app.RunWarp stops through ctx; don't let a stuck core hold up the shutdown.
+		select {
+		case <-warpDone:
+		case <-time.After(shutdownTimeout):
+			log.Println("WARP core did not stop in time, leaving it behind")
+		}
 		log.Println("Cleanup done, exiting runServer goroutine.")
 
-		defer wg.Done()
+		defer close(serverDone)
 	}()
 
+	ready := newReadiness(global.Ready)
+	netstack.reset(loopback(currentBind()))
+
+	// An interface passed in the options comes up before the core, as it always did.
+	if global.TunFd > 0 && !startNetstack(global.TunFd, global.Mtu) {
+		close(warpDone)
+		ready.failed(PhaseStarting, "netstack did not start")
+		return
+	}
+
 	// Start wireguard-go and gvisor-tun2socks.
 	go func() {
-		err := app.RunWarp(global.PsiphonEnabled, global.Gool, global.Scan, global.Verbose, global.Country, global.BindAddress, global.Endpoint, global.License, ctx, global.Rtt)
-		if err != nil {
-			log.Println(err)
-		}
+		defer close(warpDone)
+		startCore(ctx, ready)
 	}()
 
-	tun2socksStartOptions := &lwip.Tun2socksStartOptions{
-		TunFd:        fd,
-		Socks5Server: strings.Replace(global.BindAddress, "0.0.0.0", "127.0.0.1", -1),
-		FakeIPRange:  "24.0.0.0/8",
-		MTU:          0,
-		EnableIPv6:   true,
-		AllowLan:     true,
+	if global.TunFd <= 0 {
+		start := time.Now()
+		waitSpan := traces.begin("go.tun_wait")
+		tun, ok := waitTun(ctx, global.Session)
+		waitSpan.end("")
+		if ok {
+			log.Printf("tun attached %v after start", time.Since(start))
+			if !startNetstack(tun.fd, tun.mtu) {
+				ready.failed(PhaseStarting, "netstack did not start")
+			}
+		}
 	}
-	lwip.Start(tun2socksStartOptions)
 
 	// Wait for context cancellation.
 	<-ctx.Done()
 }
 
-// Shutdown can be called to stop the server from another part of the app.
-func Shutdown() {
-	if cancelFunc != nil {
-		cancelFunc()
-		os.Exit(0)
+func startNetstack(fd, mtu int) bool {
+	span := traces.begin("go.netstack")
+	ok := netstack.start(fd, mtu)
+	span.end(global.Engine)
+	return ok
+}
+
+// SwapTun hands a rebuilt VPN interface to the running stack without
+// restarting the WARP core. The core takes ownership of tunFd and closes the
+// previous one once the new one is being read.
+func SwapTun(tunFd int) error {
+	return lwip.SwapTun(tunFd)
+}
+
+// Shutdown stops the core of session, or of an older one still running,
+// from another part of the app. It closes the tun device and the lwIP stack,
+// stops the WARP core through its context and waits up to shutdownTimeout,
+// keeping the process alive for the next RunWarp. A RunWarp of session that
+// has not registered yet returns without starting its core.
+func Shutdown(session int) {
+	lifecycleMu.Lock()
+	if session > stoppedSession {
+		stoppedSession = session
+	}
+	dropTun(session)
+	cancel, done := cancelFunc, stopped
+	if cancel == nil || runningSession > session {
+		lifecycleMu.Unlock()
+		return
+	}
+	cancelFunc, stopped = nil, nil
+	lifecycleMu.Unlock()
+
+	start := time.Now()
+	cancel()
+	select {
+	case <-done:
+		log.Printf("shutdown took %v", time.Since(start))
+	case <-time.After(shutdownTimeout):
+		log.Printf("shutdown timed out after %v", time.Since(start))
 	}
 }
 
+// GetLogMessages drains buffered log lines for callers that did not set StartOptions.Logger.
 func GetLogMessages() string {
-	mu.Lock()
-	defer mu.Unlock()
-	if len(logMessages) == 0 {
-		return ""
-	}
-	logs := strings.Join(logMessages, "\n")
-	logMessages = nil // Clear logMessages for better memory management
-	return logs
+	return logs.drain()
 }
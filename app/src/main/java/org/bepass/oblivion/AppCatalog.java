@@ -0,0 +1,317 @@
+package org.bepass.oblivion;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.ChangedPackages;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.Settings;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The installed apps with their labels, kept in files/app_catalog so the split tunnel screen can
+ * show them without asking the package manager for every label. The catalog is brought up to date
+ * incrementally: from package broadcasts while the process lives, and from the package manager's
+ * change sequence (or a versionCode comparison before API 26) when it is opened.
+ */
+public class AppCatalog {
+    private static final String TAG = "AppCatalog";
+    private static final String FILE = "app_catalog";
+    private static final int FORMAT = 1;
+    private static final String BOOT_COUNT = "boot_count";
+
+    private static AppCatalog instance;
+
+    public static final class Entry {
+        public final String packageName;
+        public final String label;
+        public final int flags;
+        public final long versionCode;
+        final long lastUpdateTime;
+        // Lower-cased label, the sort and search key.
+        final String key;
+
+        Entry(String packageName, String label, int flags, long versionCode, long lastUpdateTime) {
+            this.packageName = packageName;
+            this.label = label;
+            this.flags = flags;
+            this.versionCode = versionCode;
+            this.lastUpdateTime = lastUpdateTime;
+            this.key = label.toLowerCase(Locale.ROOT);
+        }
+
+        public boolean isSystem() {
+            return (flags & ApplicationInfo.FLAG_SYSTEM) != 0;
+        }
+
+        boolean sameContent(Entry other) {
+            return label.equals(other.label) && flags == other.flags && versionCode == other.versionCode;
+        }
+    }
+
+    public interface Listener {
+        // Called on the main thread with the catalog sorted by label; synced once it was checked
+        // against the package manager.
+        void onCatalogChanged(List<Entry> entries, boolean synced);
+    }
+
+    private static final Comparator<Entry> BY_LABEL = (a, b) -> {
+        int byKey = a.key.compareTo(b.key);
+        return byKey != 0 ? byKey : a.packageName.compareTo(b.packageName);
+    };
+
+    private final Context context;
+    private final PackageManager pm;
+    private final File file;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Set<Listener> listeners = new HashSet<>();
+    // Owned by the executor thread.
+    private final Map<String, Entry> byPackage = new HashMap<>();
+    // The package manager's change sequence, only valid during the boot it was taken in.
+    private int sequence = -1;
+    private int boot = -1;
+    private volatile boolean loaded = false;
+    // Published to the main thread, sorted by label.
+    private volatile List<Entry> entries = Collections.emptyList();
+
+    private AppCatalog(Context context) {
+        this.context = context;
+        pm = context.getPackageManager();
+        file = new File(context.getFilesDir(), FILE);
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addDataScheme("package");
+        context.registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                Uri data = intent.getData();
+                if (data == null) return;
+                // An update sends removed and added with EXTRA_REPLACING, then replaced.
+                if (intent.getBooleanExtra(Intent.EXTRA_REPLACING, false)
+                        && !Intent.ACTION_PACKAGE_REPLACED.equals(intent.getAction())) return;
+                String packageName = data.getSchemeSpecificPart();
+                executor.execute(() -> {
+                    ensureLoaded();
+                    if (update(packageName)) publish(true, true);
+                });
+            }
+        }, filter);
+    }
+
+    public static synchronized AppCatalog getInstance(Context context) {
+        if (instance == null) {
+            instance = new AppCatalog(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * Registers listener and hands it the stored catalog at once, then again after the catalog
+     * was checked against the package manager.
+     */
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+        if (loaded) listener.onCatalogChanged(entries, false);
+        executor.execute(() -> {
+            boolean fromDisk = !loaded;
+            ensureLoaded();
+            if (fromDisk) publish(false, false);
+            boolean changed = sync();
+            publish(changed, true);
+        });
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Returns the entries in order whose label starts with prefix, without system apps unless
+     * showSystem. entries must be sorted by label, as the catalog hands them out.
+     */
+    public static List<Entry> filter(List<Entry> entries, boolean showSystem, String prefix) {
+        String key = prefix.trim().toLowerCase(Locale.ROOT);
+        int from = 0;
+        int to = entries.size();
+        if (!key.isEmpty()) {
+            from = lowerBound(entries, key);
+            // Every key with this prefix sorts before prefix followed by the highest char.
+            to = lowerBound(entries, key + Character.MAX_VALUE);
+        }
+        List<Entry> result = new ArrayList<>(to - from);
+        for (int i = from; i < to; i++) {
+            Entry entry = entries.get(i);
+            if (showSystem || !entry.isSystem()) result.add(entry);
+        }
+        return result;
+    }
+
+    private static int lowerBound(List<Entry> entries, String key) {
+        int low = 0;
+        int high = entries.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (entries.get(mid).key.compareTo(key) < 0) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    private void ensureLoaded() {
+        if (loaded) return;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != FORMAT) throw new IOException("Unknown catalog format");
+            boot = in.readInt();
+            sequence = in.readInt();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                Entry entry = new Entry(in.readUTF(), in.readUTF(), in.readInt(), in.readLong(), in.readLong());
+                byPackage.put(entry.packageName, entry);
+            }
+        } catch (IOException e) {
+            // Missing or unreadable, sync() rebuilds it.
+            byPackage.clear();
+            boot = -1;
+            sequence = -1;
+        }
+        entries = sorted();
+        loaded = true;
+    }
+
+    /**
+     * Brings the catalog up to date with the package manager. Labels are only loaded for
+     * packages that are new or changed.
+     */
+    private boolean sync() {
+        int before = sequence;
+        int currentBoot = Settings.Global.getInt(context.getContentResolver(), BOOT_COUNT, -1);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && sequence >= 0 && boot == currentBoot && currentBoot >= 0) {
+            ChangedPackages changed = pm.getChangedPackages(sequence);
+            // Null when nothing changed since then.
+            if (changed == null) return false;
+            boolean updated = false;
+            for (String packageName : changed.getPackageNames()) {
+                updated |= update(packageName);
+            }
+            sequence = changed.getSequenceNumber();
+            return updated || sequence != before;
+        }
+        // No change sequence, or it was reset by a reboot: compare against the installed packages.
+        boot = currentBoot;
+        List<PackageInfo> installed = pm.getInstalledPackages(0);
+        Set<String> seen = new HashSet<>();
+        boolean updated = false;
+        for (PackageInfo info : installed) {
+            if (info.applicationInfo == null || context.getPackageName().equals(info.packageName)) continue;
+            seen.add(info.packageName);
+            Entry old = byPackage.get(info.packageName);
+            if (old != null && old.versionCode == versionCode(info) && old.lastUpdateTime == info.lastUpdateTime) {
+                continue;
+            }
+            Entry entry = entry(info);
+            if (old == null || !old.sameContent(entry) || old.lastUpdateTime != entry.lastUpdateTime) {
+                byPackage.put(entry.packageName, entry);
+                updated = true;
+            }
+        }
+        updated |= byPackage.keySet().retainAll(seen);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            ChangedPackages changed = pm.getChangedPackages(0);
+            sequence = changed != null ? changed.getSequenceNumber() : 0;
+        }
+        return updated || sequence != before;
+    }
+
+    // Refreshes one package, returns whether the catalog changed.
+    private boolean update(String packageName) {
+        if (context.getPackageName().equals(packageName)) return false;
+        PackageInfo info;
+        try {
+            info = pm.getPackageInfo(packageName, 0);
+        } catch (PackageManager.NameNotFoundException e) {
+            return byPackage.remove(packageName) != null;
+        }
+        if (info.applicationInfo == null) return false;
+        Entry entry = entry(info);
+        Entry old = byPackage.put(packageName, entry);
+        return old == null || !old.sameContent(entry);
+    }
+
+    private Entry entry(PackageInfo info) {
+        return new Entry(info.packageName, info.applicationInfo.loadLabel(pm).toString(),
+                info.applicationInfo.flags, versionCode(info), info.lastUpdateTime);
+    }
+
+    @SuppressWarnings("deprecation")
+    static long versionCode(PackageInfo info) {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.P ? info.getLongVersionCode() : info.versionCode;
+    }
+
+    private List<Entry> sorted() {
+        List<Entry> list = new ArrayList<>(byPackage.values());
+        Collections.sort(list, BY_LABEL);
+        return Collections.unmodifiableList(list);
+    }
+
+    private void publish(boolean save, boolean synced) {
+        List<Entry> snapshot = sorted();
+        entries = snapshot;
+        if (save) save(snapshot);
+        handler.post(() -> {
+            for (Listener listener : new ArrayList<>(listeners)) {
+                listener.onCatalogChanged(snapshot, synced);
+            }
+        });
+    }
+
+    private void save(List<Entry> snapshot) {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(FORMAT);
+            out.writeInt(boot);
+            out.writeInt(sequence);
+            out.writeInt(snapshot.size());
+            for (Entry entry : snapshot) {
+                out.writeUTF(entry.packageName);
+                out.writeUTF(entry.label);
+                out.writeInt(entry.flags);
+                out.writeLong(entry.versionCode);
+                out.writeLong(entry.lastUpdateTime);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not store the app catalog", e);
+            return;
+        }
+        if (!tmp.renameTo(file)) Log.w(TAG, "Could not replace the app catalog");
+    }
+}
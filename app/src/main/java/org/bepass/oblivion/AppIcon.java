@@ -0,0 +1,37 @@
+package org.bepass.oblivion;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Glide model for the launcher icon of an installed app. The versionCode is part of the cache
+ * key, so an update that changes the icon is not served from the cache.
+ */
+public final class AppIcon {
+    final String packageName;
+    final long versionCode;
+
+    public AppIcon(String packageName, long versionCode) {
+        this.packageName = packageName;
+        this.versionCode = versionCode;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof AppIcon)) return false;
+        AppIcon other = (AppIcon) o;
+        return versionCode == other.versionCode && packageName.equals(other.packageName);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * packageName.hashCode() + (int) (versionCode ^ (versionCode >>> 32));
+    }
+
+    // Glide's ObjectKey writes this into the disk cache key.
+    @NonNull
+    @Override
+    public String toString() {
+        return "AppIcon:" + packageName + ":" + versionCode;
+    }
+}
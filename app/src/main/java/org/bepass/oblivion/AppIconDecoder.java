@@ -0,0 +1,55 @@
+package org.bepass.oblivion;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.drawable.Drawable;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.bumptech.glide.load.Options;
+import com.bumptech.glide.load.ResourceDecoder;
+import com.bumptech.glide.load.engine.Resource;
+import com.bumptech.glide.load.engine.bitmap_recycle.BitmapPool;
+import com.bumptech.glide.load.resource.bitmap.BitmapResource;
+import com.bumptech.glide.request.target.Target;
+
+/**
+ * Renders an app icon into a bitmap of the target size. Runs on Glide's decode threads; the
+ * result goes through Glide's memory and disk caches like any other bitmap.
+ */
+class AppIconDecoder implements ResourceDecoder<AppIcon, Bitmap> {
+    private final PackageManager pm;
+    private final BitmapPool bitmapPool;
+
+    AppIconDecoder(Context context, BitmapPool bitmapPool) {
+        this.pm = context.getPackageManager();
+        this.bitmapPool = bitmapPool;
+    }
+
+    @Override
+    public boolean handles(@NonNull AppIcon source, @NonNull Options options) {
+        return true;
+    }
+
+    @Nullable
+    @Override
+    public Resource<Bitmap> decode(@NonNull AppIcon source, int width, int height, @NonNull Options options) {
+        Drawable icon;
+        try {
+            icon = pm.getApplicationIcon(source.packageName);
+        } catch (PackageManager.NameNotFoundException e) {
+            icon = pm.getDefaultActivityIcon();
+        }
+        if (width == Target.SIZE_ORIGINAL) width = Math.max(icon.getIntrinsicWidth(), 1);
+        if (height == Target.SIZE_ORIGINAL) height = Math.max(icon.getIntrinsicHeight(), 1);
+        // get() hands out a cleared bitmap, adaptive icons draw with transparent corners.
+        Bitmap bitmap = bitmapPool.get(width, height, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        icon.setBounds(0, 0, width, height);
+        icon.draw(canvas);
+        return BitmapResource.obtain(bitmap, bitmapPool);
+    }
+}
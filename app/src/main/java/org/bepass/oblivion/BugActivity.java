@@ -1,27 +1,51 @@
 package org.bepass.oblivion;
 
+import android.content.Intent;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
+import android.text.Editable;
+import android.text.TextUtils;
+import android.text.TextWatcher;
+import android.view.View;
+import android.widget.AdapterView;
+import android.widget.ArrayAdapter;
+import android.widget.EditText;
 import android.widget.ImageView;
-import android.widget.ScrollView;
+import android.widget.Spinner;
 import android.widget.TextView;
 
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.recyclerview.widget.RecyclerView;
 
-import java.io.BufferedReader;
-import java.io.FileInputStream;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class BugActivity extends AppCompatActivity {
 
+    // Typing only filters once it pauses for this long.
+    private static final long FILTER_DEBOUNCE_MS = 250;
+
     private final Handler handler = new Handler(Looper.getMainLooper());
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final LogLineModel model = new LogLineModel();
     private ImageView back;
-    private TextView logs;
-    private ScrollView logScrollView;
-    private boolean isUserScrollingUp = false;
+    private ImageView exportTrace;
+    private TextView traceSummary;
+    private RecyclerView logRecycler;
+    private Spinner logLevel;
+    private EditText logFilter;
+    private LogLinesAdapter adapter;
+    private LogTailReader tailReader;
     private Runnable logUpdater;
+    private boolean readPending = false;
+    // Bumped for every filter change, results of an older one are dropped.
+    private int filterGeneration = 0;
+    private final Runnable filterRunnable = this::applyFilter;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -29,11 +53,20 @@ public class BugActivity extends AppCompatActivity {
         setContentView(R.layout.activity_bug);
 
         back = findViewById(R.id.back);
-        logs = findViewById(R.id.logs);
-        logScrollView = findViewById(R.id.logScrollView);
+        exportTrace = findViewById(R.id.exportTrace);
+        traceSummary = findViewById(R.id.traceSummary);
+        logRecycler = findViewById(R.id.logRecycler);
+        logLevel = findViewById(R.id.logLevel);
+        logFilter = findViewById(R.id.logFilter);
+
+        tailReader = new LogTailReader(new File(getFilesDir(), LogFileWriter.LOG_FILE));
+        adapter = new LogLinesAdapter(model);
+        logRecycler.setAdapter(adapter);
 
-        setupScrollListener();
+        setupFilters();
         back.setOnClickListener(v -> onBackPressed());
+        exportTrace.setOnClickListener(v -> exportTraces());
+        loadTraceSummary();
         logUpdater = new Runnable() {
             @Override
             public void run() {
@@ -43,11 +76,56 @@ public class BugActivity extends AppCompatActivity {
         };
     }
 
-    private void setupScrollListener() {
-        logScrollView.getViewTreeObserver().addOnScrollChangedListener(() -> {
-            int scrollY = logScrollView.getScrollY();
-            int maxScrollY = logs.getHeight() - logScrollView.getHeight();
-            isUserScrollingUp = scrollY < maxScrollY;
+    private void setupFilters() {
+        ArrayAdapter<CharSequence> levels = ArrayAdapter.createFromResource(this, R.array.log_levels, R.layout.country_item_layout);
+        levels.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        logLevel.setAdapter(levels);
+        logLevel.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
+            @Override
+            public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
+                applyFilter();
+            }
+
+            @Override
+            public void onNothingSelected(AdapterView<?> parent) {
+
+            }
+        });
+        logFilter.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                handler.removeCallbacks(filterRunnable);
+                handler.postDelayed(filterRunnable, FILTER_DEBOUNCE_MS);
+            }
+        });
+    }
+
+    /**
+     * Matches the lines on the worker and swaps the result in on the main thread, together with
+     * the lines appended in the meantime.
+     */
+    private void applyFilter() {
+        handler.removeCallbacks(filterRunnable);
+        int generation = ++filterGeneration;
+        LogLineModel.Filter filter = model.newFilter(logLevel.getSelectedItemPosition(), logFilter.getText().toString());
+        executor.execute(() -> {
+            filter.run();
+            runOnUiThread(() -> {
+                if (generation != filterGeneration) return;
+                model.setFilter(filter);
+                adapter.notifyDataSetChanged();
+                scrollToEnd();
+            });
         });
     }
 
@@ -63,27 +141,102 @@ public class BugActivity extends AppCompatActivity {
         handler.removeCallbacks(logUpdater);
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        handler.removeCallbacks(filterRunnable);
+        // After a read in progress, the reader keeps the log file open.
+        executor.execute(() -> {
+            try {
+                tailReader.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        executor.shutdown();
+    }
+
+    private void loadTraceSummary() {
+        executor.execute(() -> {
+            String summary = ConnectTraceStore.summarize(new ConnectTraceStore(this).load());
+            runOnUiThread(() -> {
+                traceSummary.setText(summary);
+                traceSummary.setVisibility(summary.isEmpty() ? View.GONE : View.VISIBLE);
+            });
+        });
+    }
+
+    /**
+     * Shares every stored connect trace as plain text, oldest first.
+     */
+    private void exportTraces() {
+        executor.execute(() -> {
+            List<String> traces = new ConnectTraceStore(this).load();
+            if (traces.isEmpty()) return;
+            String text = TextUtils.join("\n", traces);
+            runOnUiThread(() -> {
+                Intent send = new Intent(Intent.ACTION_SEND);
+                send.setType("text/plain");
+                send.putExtra(Intent.EXTRA_SUBJECT, "Oblivion connect traces");
+                send.putExtra(Intent.EXTRA_TEXT, text);
+                startActivity(Intent.createChooser(send, null));
+            });
+        });
+    }
+
     private void readLogsFromFile() {
-        new Thread(() -> {
-            try (FileInputStream fis = openFileInput("logs.txt")) {
-                BufferedReader reader = new BufferedReader(new InputStreamReader(fis));
-                StringBuilder sb = new StringBuilder();
-                String line;
-
-                while ((line = reader.readLine()) != null) {
-                    sb.append(line).append("\n");
+        if (readPending) return;
+        readPending = true;
+        executor.execute(() -> {
+            try {
+                // Only bytes appended since the last read are decoded, the reader keeps the offset.
+                List<String> lines = tailReader.readAppended();
+                boolean reset = tailReader.consumeReset();
+                // Lower-cased once here, filtering then never does it again.
+                List<String> lowered = new ArrayList<>(lines.size());
+                int[] levels = new int[lines.size()];
+                for (int i = 0; i < levels.length; i++) {
+                    lowered.add(LogLineModel.lower(lines.get(i)));
+                    levels[i] = LogLineModel.detectLevel(lowered.get(i));
                 }
-
-                String finalLog = sb.toString();
                 runOnUiThread(() -> {
-                    logs.setText(finalLog);
-                    if (!isUserScrollingUp) {
-                        logScrollView.post(() -> logScrollView.fullScroll(ScrollView.FOCUS_DOWN));
-                    }
+                    readPending = false;
+                    appendLines(lines, lowered, levels, reset);
                 });
             } catch (IOException e) {
                 e.printStackTrace();
+                runOnUiThread(() -> readPending = false);
             }
-        }).start();
+        });
+    }
+
+    private void appendLines(List<String> lines, List<String> lowered, int[] levels, boolean reset) {
+        boolean atBottom = !logRecycler.canScrollVertically(1);
+        if (reset) {
+            model.clear();
+            adapter.notifyDataSetChanged();
+        }
+        if (lines.isEmpty()) return;
+        int before = model.size();
+        int evicted = model.append(lines, lowered, levels);
+        if (evicted >= before) {
+            // The batch pushed out everything that was on screen.
+            adapter.notifyDataSetChanged();
+        } else if (evicted > 0) {
+            adapter.notifyItemRangeRemoved(0, evicted);
+        }
+        int added = model.size() - (before - evicted);
+        if (evicted < before && added > 0) {
+            adapter.notifyItemRangeInserted(model.size() - added, added);
+        }
+        if (atBottom) {
+            scrollToEnd();
+        }
+    }
+
+    private void scrollToEnd() {
+        if (model.size() > 0) {
+            logRecycler.scrollToPosition(model.size() - 1);
+        }
     }
 }
@@ -1,11 +1,6 @@
 package org.bepass.oblivion;
 
 import android.content.Context;
-import android.content.pm.ApplicationInfo;
-import android.content.pm.PackageManager;
-import android.graphics.drawable.Drawable;
-import android.os.Handler;
-import android.os.Looper;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -13,81 +8,91 @@ import android.widget.CheckBox;
 import android.widget.TextView;
 
 import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.AsyncListDiffer;
+import androidx.recyclerview.widget.DiffUtil;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.bumptech.glide.Glide;
+import com.bumptech.glide.load.engine.DiskCacheStrategy;
 import com.google.android.material.imageview.ShapeableImageView;
 
-import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
-public class BypassListAppsAdapter extends RecyclerView.Adapter<BypassListAppsAdapter.ViewHolder> {
+public class BypassListAppsAdapter extends RecyclerView.Adapter<BypassListAppsAdapter.ViewHolder> implements AppCatalog.Listener {
 
     private static final String TAG = "InstalledAppsAdapter";
 
-    private final ExecutorService executor = Executors.newSingleThreadExecutor();
-    private List<AppInfo> appList = new ArrayList<>();
-    private final Handler handler = new Handler(Looper.getMainLooper());
+    private static final DiffUtil.ItemCallback<AppCatalog.Entry> DIFF = new DiffUtil.ItemCallback<AppCatalog.Entry>() {
+        @Override
+        public boolean areItemsTheSame(@NonNull AppCatalog.Entry oldItem, @NonNull AppCatalog.Entry newItem) {
+            return oldItem.packageName.equals(newItem.packageName);
+        }
+
+        @Override
+        public boolean areContentsTheSame(@NonNull AppCatalog.Entry oldItem, @NonNull AppCatalog.Entry newItem) {
+            return oldItem.sameContent(newItem);
+        }
+    };
+
+    // Lists are diffed on a background thread and applied on the main thread.
+    private final AsyncListDiffer<AppCatalog.Entry> differ = new AsyncListDiffer<>(this, DIFF);
+    private final AppCatalog catalog;
     private final FileManager fm;
     private final LoadListener loadListener;
+    private final Set<String> selectedApps;
     private OnAppSelectListener onAppSelectListener;
+    private List<AppCatalog.Entry> catalogEntries = Collections.emptyList();
+    private boolean shouldShowSystemApps = false;
+    private String query = "";
+    private boolean loading = true;
 
 
     public BypassListAppsAdapter(Context context, LoadListener loadListener) {
         fm = FileManager.getInstance(context);
+        selectedApps = new HashSet<>(fm.getStringSet("splitTunnelApps", new HashSet<>()));
         this.loadListener = loadListener;
         if (loadListener != null)
             loadListener.onLoad(true);
-        executor.submit(() -> {
-            //Querying installed apps is pretty expensive. Offload it to a worker thread.
-            this.appList = getInstalledApps(context, false);
-            //Post the result to the main looper.
-            handler.post(this::notifyDataSetChanged);
-            handler.post(() -> {
-                if (loadListener != null)
-                    loadListener.onLoad(false);
-            });
-        });
-
+        // Shows the stored catalog right away; it is checked against the package manager in the background.
+        catalog = AppCatalog.getInstance(context);
+        catalog.addListener(this);
     }
 
+    /**
+     * Stops following the catalog, call it when the list goes away.
+     */
+    public void release() {
+        catalog.removeListener(this);
+    }
 
-    private static List<AppInfo> getInstalledApps(Context context, boolean shouldShowSystemApps) {
-        FileManager fm = FileManager.getInstance(context);
-        Set<String> selectedApps = fm.getStringSet("splitTunnelApps", new HashSet<>());
-
-        final PackageManager pm = context.getPackageManager();
-        List<ApplicationInfo> packages = pm.getInstalledApplications(PackageManager.GET_META_DATA);
-        List<AppInfo> appList = new ArrayList<>(packages.size());
-        for (ApplicationInfo packageInfo : packages) {
-            if ((packageInfo.flags & ApplicationInfo.FLAG_SYSTEM) == ApplicationInfo.FLAG_SYSTEM && !shouldShowSystemApps)
-                continue;
-            if (packageInfo.packageName.equals(context.getPackageName()))
-                continue;
-            appList.add(new AppInfo(
-                    packageInfo.loadLabel(pm).toString(),
-                    () -> packageInfo.loadIcon(pm),
-                    packageInfo.packageName,
-                    selectedApps.contains(packageInfo.packageName)
-            ));
+    @Override
+    public void onCatalogChanged(List<AppCatalog.Entry> entries, boolean synced) {
+        catalogEntries = entries;
+        submit();
+        if (loading && (synced || !entries.isEmpty())) {
+            loading = false;
+            if (loadListener != null) loadListener.onLoad(false);
         }
-        return appList;
     }
 
-    public void setShouldShowSystemApps(Context context, boolean shouldShowSystemApps) {
-        if (loadListener != null) loadListener.onLoad(true);
-        executor.submit(() -> {
-            appList = getInstalledApps(context, shouldShowSystemApps);
-            handler.post(this::notifyDataSetChanged);
-            handler.post(() -> {
-                if (loadListener != null) loadListener.onLoad(false);
-            });
-        });
+    public void setShouldShowSystemApps(boolean shouldShowSystemApps) {
+        this.shouldShowSystemApps = shouldShowSystemApps;
+        submit();
+    }
+
+    /**
+     * Shows only apps whose label starts with query.
+     */
+    public void setQuery(String query) {
+        this.query = query;
+        submit();
+    }
 
+    private void submit() {
+        differ.submitList(AppCatalog.filter(catalogEntries, shouldShowSystemApps, query));
     }
 
     public void setOnAppSelectListener(OnAppSelectListener onAppSelectListener) {
@@ -103,29 +108,32 @@ public class BypassListAppsAdapter extends RecyclerView.Adapter<BypassListAppsAd
 
     @Override
     public void onBindViewHolder(@NonNull ViewHolder holder, int position) {
-        AppInfo appInfo = appList.get(position);
-        holder.appNameTextView.setText(appInfo.appName);
-        holder.checkBox.setChecked(appInfo.isSelected);
-        Glide.with(holder.itemView).load(appInfo.iconLoader.load()).into(holder.icon);
+        AppCatalog.Entry entry = differ.getCurrentList().get(position);
+        holder.appNameTextView.setText(entry.label);
+        holder.checkBox.setChecked(selectedApps.contains(entry.packageName));
+        // Decoded at the view's size on Glide's threads and kept in its memory and disk caches.
+        Glide.with(holder.itemView)
+                .load(new AppIcon(entry.packageName, entry.versionCode))
+                .diskCacheStrategy(DiskCacheStrategy.RESOURCE)
+                .into(holder.icon);
 
         holder.itemView.setOnClickListener(v -> {
-            appInfo.isSelected = !appInfo.isSelected;
-            notifyItemChanged(position);
-            Set<String> newSet = new HashSet<>(fm.getStringSet("splitTunnelApps", new HashSet<>()));
-            if (appInfo.isSelected) {
-                newSet.add(appInfo.packageName);
+            boolean selected = !selectedApps.contains(entry.packageName);
+            if (selected) {
+                selectedApps.add(entry.packageName);
             } else {
-                newSet.remove(appInfo.packageName);
+                selectedApps.remove(entry.packageName);
             }
-            fm.set("splitTunnelApps", newSet);
-            if (onAppSelectListener != null) onAppSelectListener.onSelect(appInfo.packageName, appInfo.isSelected);
+            holder.checkBox.setChecked(selected);
+            fm.set("splitTunnelApps", new HashSet<>(selectedApps));
+            if (onAppSelectListener != null) onAppSelectListener.onSelect(entry.packageName, selected);
         });
     }
 
 
     @Override
     public int getItemCount() {
-        return appList.size();
+        return differ.getCurrentList().size();
     }
 
     public static class ViewHolder extends RecyclerView.ViewHolder {
@@ -141,24 +149,6 @@ public class BypassListAppsAdapter extends RecyclerView.Adapter<BypassListAppsAd
         }
     }
 
-    public static class AppInfo {
-        String appName;
-        String packageName;
-        IconLoader iconLoader;
-        boolean isSelected;
-
-        public AppInfo(String name, IconLoader iconLoader, String packageName, boolean isSelected) {
-            this.appName = name;
-            this.packageName = packageName;
-            this.iconLoader = iconLoader;
-            this.isSelected = isSelected;
-        }
-
-        private interface IconLoader {
-            Drawable load();
-        }
-    }
-
     public interface LoadListener {
         void onLoad(boolean loading);
     }
@@ -168,4 +158,4 @@ public class BypassListAppsAdapter extends RecyclerView.Adapter<BypassListAppsAd
     }
 
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,141 @@
+package org.bepass.oblivion;
+
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The trace of one connect. Phases run on different threads and may wait on others; once
+ * connected the timeline is logged together with its critical path, the chain of phases that
+ * each waited on the slowest of its dependencies. Times are elapsedRealtimeNanos, the
+ * CLOCK_BOOTTIME clock the Go core stamps its spans with, so both sides share one timeline.
+ */
+class ConnectTimeline {
+    private static final String TAG = "ConnectTimeline";
+    private static final long NANOS_PER_MS = 1_000_000L;
+
+    private static final class Phase {
+        long start;
+        long end = -1;
+        String[] waitsFor;
+        String detail = "";
+    }
+
+    private final long origin = SystemClock.elapsedRealtimeNanos();
+    private final long startedAt = System.currentTimeMillis();
+    private final Map<String, Phase> phases = new LinkedHashMap<>();
+
+    synchronized void begin(String name, String... waitsFor) {
+        Phase phase = new Phase();
+        phase.start = SystemClock.elapsedRealtimeNanos();
+        phase.waitsFor = waitsFor;
+        phases.put(name, phase);
+    }
+
+    synchronized void end(String name) {
+        Phase phase = phases.get(name);
+        if (phase != null && phase.end < 0) {
+            phase.end = SystemClock.elapsedRealtimeNanos();
+        }
+    }
+
+    /**
+     * Adds the spans of Tun2socks.takeTrace: name, start, end and detail separated by tabs.
+     */
+    synchronized void addCoreSpans(String spans) {
+        if (spans == null) return;
+        for (String line : spans.split("\n")) {
+            String[] fields = line.split("\t", 4);
+            if (fields.length < 3) continue;
+            try {
+                Phase phase = new Phase();
+                phase.start = Long.parseLong(fields[1]);
+                phase.end = Long.parseLong(fields[2]);
+                phase.waitsFor = new String[0];
+                phase.detail = fields.length > 3 ? fields[3] : "";
+                // Scans and events may repeat, keep every occurrence.
+                String name = fields[0];
+                for (int i = 2; phases.containsKey(name); i++) name = fields[0] + "#" + i;
+                phases.put(name, phase);
+            } catch (NumberFormatException ignored) {
+            }
+        }
+    }
+
+    synchronized void log(String last) {
+        StringBuilder line = new StringBuilder("Connect phases:");
+        for (Map.Entry<String, Phase> entry : phases.entrySet()) {
+            Phase phase = entry.getValue();
+            line.append(' ').append(entry.getKey()).append('@').append(millis(phase.start)).append('+')
+                    .append(phase.end < 0 ? "?" : String.valueOf((phase.end - phase.start) / NANOS_PER_MS)).append("ms");
+        }
+        Log.i(TAG, line.toString());
+        Log.i(TAG, "Connected in " + total(last) + "ms, critical path " + TextUtils.join(" -> ", criticalPath(last)));
+    }
+
+    private List<String> criticalPath(String last) {
+        List<String> path = new ArrayList<>();
+        // A connect that did not get that far has no path.
+        if (!phases.containsKey(last)) return path;
+        for (String name = last; name != null; ) {
+            path.add(name);
+            Phase phase = phases.get(name);
+            String slowest = null;
+            long slowestEnd = -1;
+            if (phase != null) {
+                for (String dependency : phase.waitsFor) {
+                    Phase candidate = phases.get(dependency);
+                    if (candidate != null && candidate.end > slowestEnd) {
+                        slowest = dependency;
+                        slowestEnd = candidate.end;
+                    }
+                }
+            }
+            name = slowest;
+        }
+        Collections.reverse(path);
+        return path;
+    }
+
+    private long total(String last) {
+        Phase lastPhase = phases.get(last);
+        long end = lastPhase != null && lastPhase.end >= 0 ? lastPhase.end : SystemClock.elapsedRealtimeNanos();
+        return millis(end);
+    }
+
+    private long millis(long nanos) {
+        return (nanos - origin) / NANOS_PER_MS;
+    }
+
+    /**
+     * Formats the trace as stored by {@link ConnectTraceStore}: a header line, then one line per
+     * span with its start and end in milliseconds since the connect began, by start time.
+     */
+    synchronized String format(String outcome, String last) {
+        StringBuilder out = new StringBuilder();
+        out.append("# ").append(new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US).format(new Date(startedAt)))
+                .append('\t').append(outcome)
+                .append('\t').append(total(last)).append("ms")
+                .append('\t').append(TextUtils.join(" -> ", criticalPath(last))).append('\n');
+        List<Map.Entry<String, Phase>> sorted = new ArrayList<>(phases.entrySet());
+        Collections.sort(sorted, (a, b) -> Long.compare(a.getValue().start, b.getValue().start));
+        for (Map.Entry<String, Phase> entry : sorted) {
+            Phase phase = entry.getValue();
+            out.append(entry.getKey())
+                    .append('\t').append(millis(phase.start))
+                    .append('\t').append(phase.end < 0 ? "-" : String.valueOf(millis(phase.end)))
+                    .append('\t').append(phase.detail)
+                    .append('\n');
+        }
+        return out.toString();
+    }
+}
@@ -0,0 +1,142 @@
+package org.bepass.oblivion;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The last {@link #MAX_TRACES} connect traces, one file each under files/traces. The VPN process
+ * writes them and the bug report screen reads them; writes go through a single background thread
+ * so a connect never waits on storage.
+ */
+class ConnectTraceStore {
+    private static final String TAG = "ConnectTraceStore";
+    private static final int MAX_TRACES = 20;
+    private static final ExecutorService writer = Executors.newSingleThreadExecutor();
+
+    private final File dir;
+
+    ConnectTraceStore(Context context) {
+        dir = new File(context.getFilesDir(), "traces");
+    }
+
+    void save(String trace) {
+        String name = "trace-" + System.currentTimeMillis() + ".txt";
+        writer.execute(() -> {
+            if (!dir.isDirectory() && !dir.mkdirs()) return;
+            try (FileOutputStream out = new FileOutputStream(new File(dir, name))) {
+                out.write(trace.getBytes(StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                Log.w(TAG, "Could not store connect trace", e);
+                return;
+            }
+            List<File> files = files();
+            for (int i = 0; i < files.size() - MAX_TRACES; i++) {
+                files.get(i).delete();
+            }
+        });
+    }
+
+    /**
+     * Returns the stored traces, oldest first. Reads the disk; call it off the main thread.
+     */
+    List<String> load() {
+        List<String> traces = new ArrayList<>();
+        for (File file : files()) {
+            try (FileInputStream in = new FileInputStream(file)) {
+                byte[] bytes = new byte[(int) file.length()];
+                int read = 0;
+                while (read < bytes.length) {
+                    int n = in.read(bytes, read, bytes.length - read);
+                    if (n < 0) break;
+                    read += n;
+                }
+                traces.add(new String(bytes, 0, read, StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                Log.w(TAG, "Could not read " + file, e);
+            }
+        }
+        return traces;
+    }
+
+    private List<File> files() {
+        File[] files = dir.listFiles((d, name) -> name.startsWith("trace-"));
+        if (files == null) return new ArrayList<>();
+        List<File> sorted = new ArrayList<>(Arrays.asList(files));
+        Collections.sort(sorted, (a, b) -> Long.compare(stamp(a), stamp(b)));
+        return sorted;
+    }
+
+    private static long stamp(File file) {
+        String name = file.getName();
+        try {
+            return Long.parseLong(name.substring("trace-".length(), name.length() - ".txt".length()));
+        } catch (RuntimeException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Summarizes the traces: the header of the newest one, then per phase its duration in that
+     * trace and the median duration over all traces that have it.
+     */
+    static String summarize(List<String> traces) {
+        if (traces.isEmpty()) return "";
+        Map<String, List<Long>> history = new LinkedHashMap<>();
+        for (String trace : traces) {
+            for (Map.Entry<String, Long> phase : durations(trace).entrySet()) {
+                List<Long> values = history.get(phase.getKey());
+                if (values == null) {
+                    values = new ArrayList<>();
+                    history.put(phase.getKey(), values);
+                }
+                values.add(phase.getValue());
+            }
+        }
+        String latest = traces.get(traces.size() - 1);
+        int headerEnd = latest.indexOf('\n');
+        StringBuilder out = new StringBuilder();
+        out.append(headerEnd < 0 ? latest : latest.substring(0, headerEnd).replace('\t', ' ')).append('\n');
+        for (Map.Entry<String, Long> phase : durations(latest).entrySet()) {
+            List<Long> values = history.get(phase.getKey());
+            out.append(String.format(Locale.US, "%-14s %6dms  median %6dms of %d%n",
+                    phase.getKey(), phase.getValue(), median(values), values.size()));
+        }
+        return out.toString();
+    }
+
+    private static Map<String, Long> durations(String trace) {
+        Map<String, Long> durations = new LinkedHashMap<>();
+        for (String line : trace.split("\n")) {
+            if (line.startsWith("#")) continue;
+            String[] fields = line.split("\t", 4);
+            if (fields.length < 3) continue;
+            try {
+                durations.put(fields[0], Long.parseLong(fields[2]) - Long.parseLong(fields[1]));
+            } catch (NumberFormatException ignored) {
+                // Still open when the trace was taken.
+            }
+        }
+        return durations;
+    }
+
+    private static long median(List<Long> values) {
+        List<Long> sorted = new ArrayList<>(values);
+        Collections.sort(sorted);
+        return sorted.get(sorted.size() / 2);
+    }
+}
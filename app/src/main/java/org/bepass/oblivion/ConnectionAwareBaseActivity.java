@@ -16,6 +16,7 @@ import androidx.appcompat.app.AppCompatActivity;
 public abstract class ConnectionAwareBaseActivity extends AppCompatActivity {
 
     protected ConnectionState lastKnownConnectionState = ConnectionState.DISCONNECTED;
+    protected long lastKnownRtt = -1;
 
     private Messenger serviceMessenger;
     private boolean isBound;
@@ -42,6 +43,8 @@ public abstract class ConnectionAwareBaseActivity extends AppCompatActivity {
         if (!isBound) return;
         OblivionVpnService.registerConnectionStateObserver(getKey(), serviceMessenger, state -> {
             lastKnownConnectionState = state;
+        }, (state, rttMillis, loss) -> {
+            lastKnownRtt = rttMillis;
             onConnectionStateChange(state);
         });
     }
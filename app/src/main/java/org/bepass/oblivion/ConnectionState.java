@@ -1,9 +1,13 @@
 package org.bepass.oblivion;
 
 public enum ConnectionState {
-    CONNECTING, CONNECTED, DISCONNECTED;
+    CONNECTING, CONNECTED, DEGRADED, DISCONNECTED;
 
     public boolean isDisconnected() {
         return this == DISCONNECTED;
     }
+
+    public boolean isConnected() {
+        return this == CONNECTED || this == DEGRADED;
+    }
 }
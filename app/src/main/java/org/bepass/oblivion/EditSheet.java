@@ -15,7 +15,7 @@ public class EditSheet {
     BottomSheetDialog sheet;
 
     String title;
-    String sharedPrefKey;
+    Store store;
 
     TextView titleView;
     EditText value;
@@ -23,12 +23,34 @@ public class EditSheet {
 
     SheetsCallBack sheetsCallBack;
 
+    // Where the edited value lives, for values that are not kept in the settings.
+    public interface Store {
+        String get();
+
+        void set(String value);
+    }
+
     public EditSheet(Context context, String title, String sharedPrefKey, SheetsCallBack sheetsCallBack) {
+        this(context, title, (Store) null, sheetsCallBack);
+        store = new Store() {
+            @Override
+            public String get() {
+                return fileManager.getString("USERSETTING_" + sharedPrefKey);
+            }
+
+            @Override
+            public void set(String value) {
+                fileManager.set("USERSETTING_" + sharedPrefKey, value);
+            }
+        };
+    }
+
+    public EditSheet(Context context, String title, Store store, SheetsCallBack sheetsCallBack) {
         this.context = context;
         fileManager = FileManager.getInstance(context);
 
         this.title = "تغییر مقدار " + title;
-        this.sharedPrefKey = sharedPrefKey;
+        this.store = store;
 
         this.sheetsCallBack = sheetsCallBack;
 
@@ -58,11 +80,11 @@ public class EditSheet {
         }
 
         titleView.setText(title);
-        value.setText(fileManager.getString("USERSETTING_" + sharedPrefKey));
+        value.setText(store.get());
 
         cancel.setOnClickListener(v -> sheet.cancel());
         apply.setOnClickListener(v -> {
-            fileManager.set("USERSETTING_" + sharedPrefKey, value.getText().toString());
+            store.set(value.getText().toString());
             sheet.cancel();
         });
 
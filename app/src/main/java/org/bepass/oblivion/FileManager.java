@@ -1,18 +1,52 @@
 package org.bepass.oblivion;
 
+import android.content.ContentResolver;
 import android.content.Context;
-import android.content.SharedPreferences;
-
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
-
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Settings of the app, shared by the UI and the VPN process through {@link SettingsProvider}.
+ * Reads come from an immutable in-memory snapshot and never touch the disk; each process
+ * refreshes its snapshot when another one changes a setting. The first snapshot is loaded on the
+ * settings thread, so getting the instance never calls into the provider; only reads made before
+ * that load is done wait for it.
+ */
 public class FileManager {
     public static String currentLog;
     private static FileManager instance;
-    private final SharedPreferences sharedPreferences;
+    private final ContentResolver resolver;
+    private final Uri uri;
+    private final CountDownLatch loaded = new CountDownLatch(1);
+    private volatile Map<String, Object> snapshot = Collections.emptyMap();
 
     // Private constructor for singleton pattern
     private FileManager(Context context) {
-        sharedPreferences = context.getSharedPreferences("UserData", Context.MODE_PRIVATE);
+        resolver = context.getContentResolver();
+        uri = SettingsProvider.uri(context);
+        HandlerThread thread = new HandlerThread("settings");
+        thread.start();
+        Handler settingsHandler = new Handler(thread.getLooper());
+        // From the VPN process this call may have to start the main process first.
+        settingsHandler.post(this::refresh);
+        resolver.registerContentObserver(uri, false, new ContentObserver(settingsHandler) {
+            @Override
+            public void onChange(boolean selfChange) {
+                refresh();
+            }
+        });
     }
 
     // Public method to get the singleton instance
@@ -23,78 +57,190 @@ public class FileManager {
         return instance;
     }
 
+    /**
+     * Fetches the current settings from the main process, for callers that must not act on a
+     * change notification that is still on its way.
+     */
+    public void refresh() {
+        try {
+            snapshot = load();
+        } finally {
+            loaded.countDown();
+        }
+    }
+
+    private Map<String, Object> current() {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                loaded.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+        return snapshot;
+    }
+
+    @SuppressWarnings({"deprecation", "unchecked"})
+    private Map<String, Object> load() {
+        Bundle bundle = resolver.call(uri, SettingsProvider.METHOD_SNAPSHOT, null, null);
+        Map<String, Object> values = new HashMap<>();
+        if (bundle != null) {
+            for (String key : bundle.keySet()) {
+                Object value = bundle.get(key);
+                values.put(key, value instanceof ArrayList ? toSet((ArrayList<String>) value) : value);
+            }
+        }
+        return Collections.unmodifiableMap(values);
+    }
+
+    static Set<String> toSet(Collection<String> values) {
+        return Collections.unmodifiableSet(new HashSet<>(values));
+    }
+
+    /**
+     * Starts a batch of changes that is written as one transaction by {@link Editor#apply()}.
+     */
+    public Editor edit() {
+        return new Editor();
+    }
+
+    public final class Editor {
+        private final Bundle put = new Bundle();
+
+        private Editor() {
+        }
+
+        public Editor put(String name, String value) {
+            put.putString(name, value);
+            return this;
+        }
+
+        public Editor put(String name, boolean value) {
+            put.putBoolean(name, value);
+            return this;
+        }
+
+        public Editor put(String name, int value) {
+            put.putInt(name, value);
+            return this;
+        }
+
+        public Editor put(String name, long value) {
+            put.putLong(name, value);
+            return this;
+        }
+
+        public Editor put(String name, float value) {
+            put.putFloat(name, value);
+            return this;
+        }
+
+        public Editor put(String name, Set<String> value) {
+            SettingsProvider.putValue(put, name, value);
+            return this;
+        }
+
+        /**
+         * Makes the changes visible in this process at once and hands them to the provider,
+         * which stores them in the background and notifies the other processes.
+         */
+        @SuppressWarnings({"deprecation", "unchecked"})
+        public void apply() {
+            synchronized (FileManager.this) {
+                Map<String, Object> values = new HashMap<>(current());
+                for (String key : put.keySet()) {
+                    Object value = put.get(key);
+                    values.put(key, value instanceof ArrayList ? toSet((ArrayList<String>) value) : value);
+                }
+                snapshot = Collections.unmodifiableMap(values);
+            }
+            Bundle extras = new Bundle();
+            extras.putBundle(SettingsProvider.EXTRA_PUT, put);
+            resolver.call(uri, SettingsProvider.METHOD_APPLY, null, extras);
+        }
+    }
+
     // Methods to set various types of data
     public void set(String name, String value) {
-        sharedPreferences.edit().putString(name, value).apply();
+        edit().put(name, value).apply();
     }
 
     public void set(String name, boolean value) {
-        sharedPreferences.edit().putBoolean(name, value).apply();
+        edit().put(name, value).apply();
     }
 
     public void set(String name, Set<String> value) {
-        sharedPreferences.edit().putStringSet(name, value).apply();
+        edit().put(name, value).apply();
     }
 
     public void set(String name, int value) {
-        sharedPreferences.edit().putInt(name, value).apply();
+        edit().put(name, value).apply();
     }
 
     public void set(String name, float value) {
-        sharedPreferences.edit().putFloat(name, value).apply();
+        edit().put(name, value).apply();
     }
 
     public void set(String name, long value) {
-        sharedPreferences.edit().putLong(name, value).apply();
+        edit().put(name, value).apply();
     }
 
     public void setDouble(String name, double value) {
-        sharedPreferences.edit().putLong(name, Double.doubleToRawLongBits(value)).apply();
+        edit().put(name, Double.doubleToRawLongBits(value)).apply();
+    }
+
+    private <T> T get(String name, Class<T> type, T defaultValue) {
+        Object value = current().get(name);
+        return type.isInstance(value) ? type.cast(value) : defaultValue;
     }
 
     // Methods to get various types of data
     public String getString(String name) {
-        return sharedPreferences.getString(name, "");
+        return get(name, String.class, "");
     }
 
     public String getString(String name, String defaultValue) {
-        return sharedPreferences.getString(name, defaultValue);
+        return get(name, String.class, defaultValue);
     }
 
+    @SuppressWarnings("unchecked")
     public Set<String> getStringSet(String name, Set<String> def) {
-        return sharedPreferences.getStringSet(name, def);
+        return get(name, Set.class, def);
     }
 
     public boolean getBoolean(String name) {
-        return sharedPreferences.getBoolean(name, false);
+        return get(name, Boolean.class, false);
     }
 
     public boolean getBoolean(String name, boolean defaultValue) {
-        return sharedPreferences.getBoolean(name, defaultValue);
+        return get(name, Boolean.class, defaultValue);
     }
 
     public int getInt(String name) {
-        return sharedPreferences.getInt(name, 0);
+        return get(name, Integer.class, 0);
     }
 
     public float getFloat(String name) {
-        return sharedPreferences.getFloat(name, 0f);
+        return get(name, Float.class, 0f);
     }
 
     public long getLong(String name) {
-        return sharedPreferences.getLong(name, 0L);
+        return get(name, Long.class, 0L);
     }
 
     public double getDouble(String name) {
-        return Double.longBitsToDouble(sharedPreferences.getLong(name, 0));
+        return Double.longBitsToDouble(get(name, Long.class, 0L));
     }
 
     // Methods for handling logs
     public void resetLog() {
-        sharedPreferences.edit().putString("APP_LOG", "").apply();
+        set("APP_LOG", "");
     }
 
     public void addLog(String log) {
-        sharedPreferences.edit().putString("APP_LOG", log).apply();
+        set("APP_LOG", log);
     }
 }
@@ -0,0 +1,95 @@
+package org.bepass.oblivion;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Appends core log batches to logs.txt on a background thread. When logs.txt grows past
+ * MAX_SEGMENT_BYTES it is rotated to logs.1.txt, logs.1.txt to logs.2.txt and so on,
+ * so the log never takes more than MAX_SEGMENTS * MAX_SEGMENT_BYTES on disk.
+ */
+public class LogFileWriter {
+    public static final String LOG_FILE = "logs.txt";
+
+    private static final String TAG = "LogFileWriter";
+    private static final long MAX_SEGMENT_BYTES = 1024 * 1024;
+    private static final int MAX_SEGMENTS = 3;
+
+    private final File directory;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    public LogFileWriter(Context context) {
+        directory = context.getApplicationContext().getFilesDir();
+    }
+
+    public void append(String batch) {
+        submit(() -> {
+            File current = new File(directory, LOG_FILE);
+            if (current.length() >= MAX_SEGMENT_BYTES) {
+                rotate();
+            }
+            try (FileOutputStream fos = new FileOutputStream(current, true)) {
+                fos.write(batch.getBytes(StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to append logs", e);
+            }
+        });
+    }
+
+    public void clear() {
+        submit(() -> {
+            try (FileOutputStream fos = new FileOutputStream(new File(directory, LOG_FILE), false)) {
+                fos.write(new byte[0]);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to clear logs", e);
+            }
+            for (int i = 1; i < MAX_SEGMENTS; i++) {
+                File segment = segment(i);
+                if (segment.exists() && !segment.delete()) {
+                    Log.w(TAG, "Failed to delete " + segment);
+                }
+            }
+        });
+    }
+
+    /**
+     * Lets the batches already queued reach the file and stops the writer thread.
+     * Batches appended after this are dropped; the core may still log while it shuts down.
+     */
+    public void close() {
+        executor.shutdown();
+    }
+
+    private void submit(Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException ignored) {
+            // Closed.
+        }
+    }
+
+    private void rotate() {
+        File oldest = segment(MAX_SEGMENTS - 1);
+        if (oldest.exists() && !oldest.delete()) {
+            Log.w(TAG, "Failed to delete " + oldest);
+        }
+        for (int i = MAX_SEGMENTS - 2; i >= 0; i--) {
+            File from = segment(i);
+            if (from.exists() && !from.renameTo(segment(i + 1))) {
+                Log.w(TAG, "Failed to rotate " + from);
+            }
+        }
+    }
+
+    private File segment(int index) {
+        return new File(directory, index == 0 ? LOG_FILE : "logs." + index + ".txt");
+    }
+}
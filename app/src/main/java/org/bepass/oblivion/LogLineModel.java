@@ -0,0 +1,376 @@
+package org.bepass.oblivion;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Bounded, paged store of log lines with per-level and keyword indexes and a filtered view.
+ * Lines are addressed by an absolute index that keeps growing; when more than MAX_PAGES
+ * pages are held the oldest page is evicted. The indexes are kept up to date as lines are
+ * appended and evicted, so a filter only reads the lines an index does not already answer for.
+ * Only touched from the main thread, except for {@link Filter#run}, which works on copies of the
+ * indexes and on pages the main thread no longer writes.
+ */
+public class LogLineModel {
+    public static final int LEVEL_DEBUG = 0;
+    public static final int LEVEL_INFO = 1;
+    public static final int LEVEL_WARN = 2;
+    public static final int LEVEL_ERROR = 3;
+    private static final int LEVEL_COUNT = 4;
+
+    private static final int PAGE_SIZE = 1024;
+    private static final int MAX_PAGES = 64;
+    // Keywords whose matches are kept indexed, the most recently used ones.
+    private static final int MAX_KEYWORD_INDEXES = 4;
+
+    private final List<String[]> pages = new ArrayList<>();
+    // The lines lower-cased once when they are appended, for the keyword filter.
+    private final List<String[]> lowerPages = new ArrayList<>();
+    private final List<byte[]> pageLevels = new ArrayList<>();
+    private final LongList[] levelIndex = new LongList[LEVEL_COUNT];
+    // Absolute indexes of the lines containing each keyword, regardless of their level.
+    private final Map<String, LongList> keywordIndex = new LinkedHashMap<String, LongList>(8, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, LongList> eldest) {
+            return size() > MAX_KEYWORD_INDEXES;
+        }
+    };
+    private long firstIndex;
+    private long nextIndex;
+
+    private int minLevel = LEVEL_DEBUG;
+    private String keyword = "";
+    // Absolute indexes of the lines passing the filter, null while no filter is set.
+    private LongList filtered;
+
+    public LogLineModel() {
+        for (int i = 0; i < LEVEL_COUNT; i++) {
+            levelIndex[i] = new LongList();
+        }
+    }
+
+    /**
+     * Lower-cases a line the way the keyword filter compares it, call it off the main thread.
+     */
+    public static String lower(String line) {
+        return line.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * The level of a line, from its lower-cased form.
+     */
+    public static int detectLevel(String lowered) {
+        String head = lowered.substring(0, Math.min(lowered.length(), 80));
+        if (head.contains("erro") || head.contains("fatal") || head.contains("panic")) return LEVEL_ERROR;
+        if (head.contains("warn")) return LEVEL_WARN;
+        if (head.contains("debu")) return LEVEL_DEBUG;
+        return LEVEL_INFO;
+    }
+
+    public int size() {
+        return filtered != null ? filtered.size() : (int) (nextIndex - firstIndex);
+    }
+
+    public String get(int position) {
+        long index = filtered != null ? filtered.get(position) : firstIndex + position;
+        return line(index);
+    }
+
+    public int levelAt(int position) {
+        long index = filtered != null ? filtered.get(position) : firstIndex + position;
+        return level(index);
+    }
+
+    public void clear() {
+        pages.clear();
+        lowerPages.clear();
+        pageLevels.clear();
+        for (LongList list : levelIndex) list.clear();
+        for (LongList list : keywordIndex.values()) list.clear();
+        firstIndex = nextIndex;
+        if (filtered != null) filtered.clear();
+    }
+
+    /**
+     * Appends lines with their lower-cased forms and levels and returns how many visible rows
+     * were evicted from the front. The number of rows added at the end is size() after the call
+     * minus size() before it plus the returned value.
+     */
+    public int append(List<String> lines, List<String> lowered, int[] levels) {
+        for (int i = 0; i < lines.size(); i++) {
+            int slot = (int) ((nextIndex - firstIndex) % PAGE_SIZE);
+            if (slot == 0 && nextIndex - firstIndex == (long) pages.size() * PAGE_SIZE) {
+                pages.add(new String[PAGE_SIZE]);
+                lowerPages.add(new String[PAGE_SIZE]);
+                pageLevels.add(new byte[PAGE_SIZE]);
+            }
+            pages.get(pages.size() - 1)[slot] = lines.get(i);
+            lowerPages.get(lowerPages.size() - 1)[slot] = lowered.get(i);
+            pageLevels.get(pageLevels.size() - 1)[slot] = (byte) levels[i];
+            levelIndex[levels[i]].add(nextIndex);
+            for (Map.Entry<String, LongList> entry : keywordIndex.entrySet()) {
+                if (lowered.get(i).contains(entry.getKey())) entry.getValue().add(nextIndex);
+            }
+            if (filtered != null && matches(nextIndex)) {
+                filtered.add(nextIndex);
+            }
+            nextIndex++;
+        }
+        int evicted = 0;
+        while (pages.size() > MAX_PAGES) {
+            evicted += evictFirstPage();
+        }
+        return evicted;
+    }
+
+    /**
+     * Captures what filtering the lines held now with minLevel and keyword needs. Call it on the
+     * main thread, {@link Filter#run} on a worker, then {@link #setFilter(Filter)}.
+     * A keyword filter starts from the index of that keyword, or else of the longest indexed
+     * keyword it contains, and only reads the lines in there; a level filter merges the level
+     * indexes and reads no line at all.
+     */
+    public Filter newFilter(int minLevel, String keyword) {
+        String lowered = keyword == null ? "" : lower(keyword.trim());
+        LongList[] levels = null;
+        LongList candidates = null;
+        boolean exact = false;
+        if (lowered.isEmpty() && minLevel > LEVEL_DEBUG) {
+            levels = new LongList[LEVEL_COUNT - minLevel];
+            for (int level = minLevel; level < LEVEL_COUNT; level++) {
+                levels[level - minLevel] = levelIndex[level].copy();
+            }
+        } else if (!lowered.isEmpty()) {
+            LongList indexed = keywordIndex.get(lowered);
+            if (indexed != null) {
+                candidates = indexed.copy();
+                exact = true;
+            } else {
+                String best = null;
+                for (String indexedKeyword : keywordIndex.keySet()) {
+                    if (lowered.contains(indexedKeyword) && (best == null || indexedKeyword.length() > best.length())) {
+                        best = indexedKeyword;
+                    }
+                }
+                // Found through keySet, which leaves the access order alone.
+                if (best != null) candidates = keywordIndex.get(best).copy();
+            }
+        }
+        return new Filter(minLevel, lowered, firstIndex, nextIndex, new ArrayList<>(lowerPages),
+                new ArrayList<>(pageLevels), levels, candidates, exact);
+    }
+
+    /**
+     * Shows the lines filter matched, plus those appended since it was created, and keeps the
+     * matches of its keyword indexed.
+     */
+    public void setFilter(Filter filter) {
+        minLevel = filter.minLevel;
+        keyword = filter.keyword;
+        if (filter.isEmpty()) {
+            filtered = null;
+            return;
+        }
+        long from = Math.max(filter.next, firstIndex);
+        if (filter.keywordMatches != null) {
+            LongList matches = filter.keywordMatches;
+            matches.dropBelow(firstIndex);
+            for (long index = from; index < nextIndex; index++) {
+                if (lowerLine(index).contains(keyword)) matches.add(index);
+            }
+            keywordIndex.put(keyword, matches);
+        }
+        filtered = filter.matches;
+        filtered.dropBelow(firstIndex);
+        for (long index = from; index < nextIndex; index++) {
+            if (matches(index)) filtered.add(index);
+        }
+    }
+
+    private boolean matches(long index) {
+        if (level(index) < minLevel) return false;
+        return keyword.isEmpty() || lowerLine(index).contains(keyword);
+    }
+
+    private int evictFirstPage() {
+        pages.remove(0);
+        lowerPages.remove(0);
+        pageLevels.remove(0);
+        firstIndex += PAGE_SIZE;
+        for (LongList list : levelIndex) list.dropBelow(firstIndex);
+        for (LongList list : keywordIndex.values()) list.dropBelow(firstIndex);
+        if (filtered != null) return filtered.dropBelow(firstIndex);
+        return PAGE_SIZE;
+    }
+
+    private String line(long index) {
+        long relative = index - firstIndex;
+        return pages.get((int) (relative / PAGE_SIZE))[(int) (relative % PAGE_SIZE)];
+    }
+
+    private String lowerLine(long index) {
+        long relative = index - firstIndex;
+        return lowerPages.get((int) (relative / PAGE_SIZE))[(int) (relative % PAGE_SIZE)];
+    }
+
+    private int level(long index) {
+        long relative = index - firstIndex;
+        return pageLevels.get((int) (relative / PAGE_SIZE))[(int) (relative % PAGE_SIZE)];
+    }
+
+    /**
+     * A filter over the lines held when it was created. Slots below next are never written
+     * again, so run can read them on another thread while the model keeps appending.
+     */
+    public static final class Filter {
+        private final int minLevel;
+        private final String keyword;
+        private final long first;
+        private final long next;
+        private final List<String[]> lowerPages;
+        private final List<byte[]> pageLevels;
+        // Copies of the level indexes from minLevel up, for a filter without keyword.
+        private final LongList[] levels;
+        // The lines that can contain keyword, all of them when null.
+        private final LongList candidates;
+        // Whether candidates are exactly the lines containing keyword.
+        private final boolean exact;
+        private LongList keywordMatches;
+        private LongList matches;
+
+        private Filter(int minLevel, String keyword, long first, long next, List<String[]> lowerPages,
+                       List<byte[]> pageLevels, LongList[] levels, LongList candidates, boolean exact) {
+            this.minLevel = minLevel;
+            this.keyword = keyword;
+            this.first = first;
+            this.next = next;
+            this.lowerPages = lowerPages;
+            this.pageLevels = pageLevels;
+            this.levels = levels;
+            this.candidates = candidates;
+            this.exact = exact;
+        }
+
+        // True when every line passes, nothing has to be matched then.
+        boolean isEmpty() {
+            return minLevel == LEVEL_DEBUG && keyword.isEmpty();
+        }
+
+        /**
+         * Matches the captured lines, on any thread.
+         */
+        public void run() {
+            if (isEmpty()) return;
+            if (levels != null) {
+                matches = merge(levels);
+                return;
+            }
+            LongList found;
+            if (exact) {
+                found = candidates;
+            } else {
+                found = new LongList();
+                if (candidates != null) {
+                    for (int i = 0; i < candidates.size(); i++) {
+                        long index = candidates.get(i);
+                        if (lowerLine(index).contains(keyword)) found.add(index);
+                    }
+                } else {
+                    for (long index = first; index < next; index++) {
+                        if (lowerLine(index).contains(keyword)) found.add(index);
+                    }
+                }
+            }
+            keywordMatches = found;
+            if (minLevel == LEVEL_DEBUG) {
+                matches = found.copy();
+                return;
+            }
+            matches = new LongList();
+            for (int i = 0; i < found.size(); i++) {
+                long index = found.get(i);
+                long relative = index - first;
+                if (pageLevels.get((int) (relative / PAGE_SIZE))[(int) (relative % PAGE_SIZE)] >= minLevel) {
+                    matches.add(index);
+                }
+            }
+        }
+
+        private String lowerLine(long index) {
+            long relative = index - first;
+            return lowerPages.get((int) (relative / PAGE_SIZE))[(int) (relative % PAGE_SIZE)];
+        }
+
+        // Merges sorted index lists into one.
+        private static LongList merge(LongList[] lists) {
+            LongList merged = new LongList();
+            int[] cursor = new int[lists.length];
+            while (true) {
+                int best = -1;
+                for (int i = 0; i < lists.length; i++) {
+                    if (cursor[i] < lists[i].size()
+                            && (best < 0 || lists[i].get(cursor[i]) < lists[best].get(cursor[best]))) {
+                        best = i;
+                    }
+                }
+                if (best < 0) return merged;
+                merged.add(lists[best].get(cursor[best]++));
+            }
+        }
+    }
+
+    /**
+     * Growable sorted list of absolute line indexes with cheap removal from the front.
+     */
+    private static class LongList {
+        private long[] values = new long[256];
+        private int start;
+        private int end;
+
+        int size() {
+            return end - start;
+        }
+
+        long get(int i) {
+            return values[start + i];
+        }
+
+        void add(long value) {
+            if (end == values.length) {
+                if (start > values.length / 2) {
+                    System.arraycopy(values, start, values, 0, end - start);
+                    end -= start;
+                    start = 0;
+                } else {
+                    values = Arrays.copyOf(values, values.length * 2);
+                }
+            }
+            values[end++] = value;
+        }
+
+        int dropBelow(long value) {
+            int dropped = 0;
+            while (start < end && values[start] < value) {
+                start++;
+                dropped++;
+            }
+            return dropped;
+        }
+
+        void clear() {
+            start = 0;
+            end = 0;
+        }
+
+        LongList copy() {
+            LongList copy = new LongList();
+            copy.values = Arrays.copyOfRange(values, start, Math.max(end, start + 256));
+            copy.end = end - start;
+            return copy;
+        }
+    }
+}
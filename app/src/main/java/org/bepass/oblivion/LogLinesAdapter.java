@@ -0,0 +1,50 @@
+package org.bepass.oblivion;
+
+import android.graphics.Color;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.RecyclerView;
+
+public class LogLinesAdapter extends RecyclerView.Adapter<LogLinesAdapter.ViewHolder> {
+
+    private final LogLineModel model;
+
+    public LogLinesAdapter(LogLineModel model) {
+        this.model = model;
+    }
+
+    @NonNull
+    @Override
+    public ViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(parent.getContext()).inflate(R.layout.log_line_item, parent, false);
+        return new ViewHolder(view);
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull ViewHolder holder, int position) {
+        holder.line.setText(model.get(position));
+        switch (model.levelAt(position)) {
+            case LogLineModel.LEVEL_ERROR: holder.line.setTextColor(Color.RED); break;
+            case LogLineModel.LEVEL_WARN: holder.line.setTextColor(0xFFE4AB53); break;
+            default: holder.line.setTextColor(Color.BLACK);
+        }
+    }
+
+    @Override
+    public int getItemCount() {
+        return model.size();
+    }
+
+    public static class ViewHolder extends RecyclerView.ViewHolder {
+        TextView line;
+
+        public ViewHolder(@NonNull View itemView) {
+            super(itemView);
+            line = itemView.findViewById(R.id.logLine);
+        }
+    }
+}
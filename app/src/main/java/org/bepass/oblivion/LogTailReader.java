@@ -0,0 +1,172 @@
+package org.bepass.oblivion;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.StructStat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Follows a log file by remembering how far it has read and returning only appended lines.
+ * The file is kept open, so when LogFileWriter rotates it by renaming, the rotated file is read
+ * to its end before the new one is followed. Not thread safe; use it from a single worker thread.
+ */
+public class LogTailReader implements Closeable {
+    // On first open only the end of a large file is read, older lines would be evicted anyway.
+    private static final long INITIAL_TAIL_BYTES = 2 * 1024 * 1024;
+    private static final int CHUNK_BYTES = 64 * 1024;
+    private static final int MAX_BYTES_PER_READ = 4 * 1024 * 1024;
+    // The first bytes of the file, a timestamped log line, tell a truncated and rewritten file apart.
+    private static final int HEAD_BYTES = 64;
+
+    private final File file;
+    private final ByteArrayOutputStream partialLine = new ByteArrayOutputStream();
+    private final byte[] chunk = new byte[CHUNK_BYTES];
+    private RandomAccessFile raf;
+    private long offset;
+    private boolean skipFirstLine;
+    private boolean reset;
+    // Identity of the open file: device and inode, and its first bytes as far as they were seen.
+    private long device = -1;
+    private long inode = -1;
+    private byte[] head = new byte[0];
+
+    public LogTailReader(File file) {
+        this.file = file;
+    }
+
+    /**
+     * True if the file was truncated since the last read, so earlier lines are gone. A rotation
+     * keeps them: the rotated file is still there and was read to its end.
+     */
+    public boolean consumeReset() {
+        boolean wasReset = reset;
+        reset = false;
+        return wasReset;
+    }
+
+    public List<String> readAppended() throws IOException {
+        List<String> lines = new ArrayList<>();
+        if (raf == null) {
+            if (!file.exists()) {
+                return lines;
+            }
+            open();
+            long length = raf.length();
+            offset = Math.max(0, length - INITIAL_TAIL_BYTES);
+            skipFirstLine = offset > 0;
+        } else if (truncated()) {
+            // Cleared by a new connection, the file may already be as long as it was.
+            offset = 0;
+            partialLine.reset();
+            skipFirstLine = false;
+            reset = true;
+        }
+        int budget = MAX_BYTES_PER_READ - read(MAX_BYTES_PER_READ, lines);
+        if (budget > 0 && rotated()) {
+            // Whatever was appended right before the rename.
+            budget -= read(budget, lines);
+            // LogFileWriter only rotates between batches, what is left is a complete line.
+            if (partialLine.size() > 0) {
+                lines.add(new String(partialLine.toByteArray(), StandardCharsets.UTF_8));
+                partialLine.reset();
+            }
+            close();
+            open();
+            offset = 0;
+            read(budget, lines);
+        }
+        return lines;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (raf != null) {
+            raf.close();
+            raf = null;
+        }
+    }
+
+    private void open() throws IOException {
+        raf = new RandomAccessFile(file, "r");
+        try {
+            // The descriptor that is read, a path could already name the next file.
+            StructStat stat = Os.fstat(raf.getFD());
+            device = stat.st_dev;
+            inode = stat.st_ino;
+        } catch (ErrnoException e) {
+            // Rotations are not noticed then, only truncation.
+            device = -1;
+            inode = -1;
+        }
+        head = readHead(raf.length());
+    }
+
+    // Reads at most budget bytes from offset into lines and returns how many were read.
+    private int read(int budget, List<String> lines) throws IOException {
+        raf.seek(offset);
+        int total = 0;
+        int read;
+        while (total < budget && (read = raf.read(chunk, 0, Math.min(chunk.length, budget - total))) > 0) {
+            offset += read;
+            total += read;
+            int lineStart = 0;
+            for (int i = 0; i < read; i++) {
+                if (chunk[i] != '\n') continue;
+                partialLine.write(chunk, lineStart, i - lineStart);
+                lineStart = i + 1;
+                if (skipFirstLine) {
+                    skipFirstLine = false;
+                } else {
+                    lines.add(new String(partialLine.toByteArray(), StandardCharsets.UTF_8));
+                }
+                partialLine.reset();
+            }
+            partialLine.write(chunk, lineStart, read - lineStart);
+        }
+        return total;
+    }
+
+    /**
+     * Whether the open file is shorter than what was read or starts with other bytes, which is
+     * how clearing and rewriting it looks. Remembers its first bytes for the next call.
+     */
+    private boolean truncated() throws IOException {
+        long length = raf.length();
+        boolean truncated = length < offset;
+        byte[] current = readHead(length);
+        int common = Math.min(current.length, head.length);
+        truncated |= !Arrays.equals(Arrays.copyOf(current, common), Arrays.copyOf(head, common));
+        if (truncated || current.length > head.length) {
+            head = current;
+        }
+        return truncated;
+    }
+
+    private byte[] readHead(long length) throws IOException {
+        byte[] current = new byte[(int) Math.min(HEAD_BYTES, length)];
+        raf.seek(0);
+        raf.readFully(current);
+        return current;
+    }
+
+    // Whether the path now names another file than the open one.
+    private boolean rotated() {
+        if (inode < 0) return false;
+        try {
+            StructStat stat = Os.stat(file.getPath());
+            return stat.st_ino != inode || stat.st_dev != device;
+        } catch (ErrnoException e) {
+            // Between the rename and the next append there is no file yet.
+            return false;
+        }
+    }
+}
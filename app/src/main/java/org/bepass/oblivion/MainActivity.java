@@ -89,11 +89,19 @@ public class MainActivity extends ConnectionAwareBaseActivity {
             case CONNECTED:
                 connected();
                 break;
+            case DEGRADED:
+                degraded();
+                break;
         }
     }
 
     private void connected() {
-        stateText.setText("اتصال برقرار شد");
+        stateText.setText(lastKnownRtt >= 0 ? "اتصال برقرار شد (" + lastKnownRtt + "ms)" : "اتصال برقرار شد");
+        switchButton.setChecked(true, false);
+    }
+
+    private void degraded() {
+        stateText.setText("اتصال ناپایدار است");
         switchButton.setChecked(true, false);
     }
 
@@ -110,13 +118,14 @@ public class MainActivity extends ConnectionAwareBaseActivity {
     private void firstValueInit() {
         if (fileManager.getBoolean("isFirstValueInit")) return;
 
-        fileManager.set("USERSETTING_endpoint", "engage.cloudflareclient.com:2408");
-        fileManager.set("USERSETTING_port", "8086");
-
-        fileManager.set("USERSETTING_gool", false);
-        fileManager.set("USERSETTING_psiphon", false);
-        fileManager.set("USERSETTING_lan", false);
-        fileManager.set("isFirstValueInit", true);
+        fileManager.edit()
+                .put("USERSETTING_endpoint", "engage.cloudflareclient.com:2408")
+                .put("USERSETTING_port", "8086")
+                .put("USERSETTING_gool", false)
+                .put("USERSETTING_psiphon", false)
+                .put("USERSETTING_lan", false)
+                .put("isFirstValueInit", true)
+                .apply();
     }
 
     private void initPermissionLauncher() {
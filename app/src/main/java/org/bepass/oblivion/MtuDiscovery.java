@@ -0,0 +1,69 @@
+package org.bepass.oblivion;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.LinkProperties;
+import android.net.Network;
+import android.os.Build;
+import android.util.Log;
+
+import tun2socks.Tun2socks;
+
+/**
+ * Picks the MTU of the VPN interface from the path MTU of the underlying network minus the
+ * WireGuard encapsulation, so the interface, lwIP and MSS clamping agree on one value.
+ * Measured path MTUs are cached per network, probing costs a few round trips. When the probe
+ * gets no answer the link MTU is used and nothing is cached.
+ */
+public class MtuDiscovery {
+    public static final int MIN_MTU = 1280;
+    public static final int DEFAULT_PATH_MTU = 1500;
+
+    private static final String TAG = "MtuDiscovery";
+    private static final String PREFS = "mtu_cache";
+    // Outer IPv6 header, UDP header and WireGuard data header, per tunnel layer.
+    private static final int WIREGUARD_OVERHEAD = 40 + 8 + 32;
+    private static final long CACHE_TTL_MS = 24 * 60 * 60 * 1000L;
+    // Any WARP endpoint shares the path characteristics of the scanned ones.
+    private static final String DEFAULT_PROBE_ENDPOINT = "162.159.192.1:2408";
+
+    private MtuDiscovery() {
+    }
+
+    /**
+     * @param layers how many WireGuard tunnels the packets are nested in, 2 with gool
+     */
+    public static int tunnelMtu(Context context, String networkKey, String endpoint, int layers) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+        int pathMtu = prefs.getInt(networkKey, 0);
+        long probedAt = prefs.getLong(networkKey + ":at", 0);
+        if (pathMtu == 0 || System.currentTimeMillis() - probedAt > CACHE_TTL_MS) {
+            String target = endpoint == null || endpoint.isEmpty() ? DEFAULT_PROBE_ENDPOINT : endpoint;
+            pathMtu = (int) Tun2socks.probePathMtu(target);
+            if (pathMtu > 0) {
+                prefs.edit()
+                        .putInt(networkKey, pathMtu)
+                        .putLong(networkKey + ":at", System.currentTimeMillis())
+                        .apply();
+            } else {
+                // Unknown is not cached, the next connect probes again.
+                pathMtu = linkMtu(context);
+                Log.i(TAG, "Path MTU on " + networkKey + " unknown, using the link MTU " + pathMtu);
+            }
+        }
+        int mtu = Math.max(MIN_MTU, pathMtu - WIREGUARD_OVERHEAD * layers);
+        Log.i(TAG, "Path MTU " + pathMtu + " on " + networkKey + ", tunnel MTU " + mtu);
+        return mtu;
+    }
+
+    private static int linkMtu(Context context) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) return DEFAULT_PATH_MTU;
+        ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        Network network = cm != null ? cm.getActiveNetwork() : null;
+        LinkProperties link = network != null ? cm.getLinkProperties(network) : null;
+        // 0 means the link did not report one.
+        int mtu = link != null ? link.getMtu() : 0;
+        return mtu > 0 ? mtu : DEFAULT_PATH_MTU;
+    }
+}
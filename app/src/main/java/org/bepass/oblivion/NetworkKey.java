@@ -0,0 +1,50 @@
+package org.bepass.oblivion;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.LinkProperties;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.RouteInfo;
+import android.os.Build;
+import android.telephony.TelephonyManager;
+
+/**
+ * Identifies the underlying network well enough to keep per-network measurements apart,
+ * without permissions: the transport plus the default gateway on Wi-Fi and Ethernet,
+ * or the operator code on cellular.
+ */
+public class NetworkKey {
+    private NetworkKey() {
+    }
+
+    public static String current(Context context) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) return "";
+        ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (cm == null) return "";
+        Network network = cm.getActiveNetwork();
+        if (network == null) return "";
+        NetworkCapabilities caps = cm.getNetworkCapabilities(network);
+        LinkProperties link = cm.getLinkProperties(network);
+        if (caps == null) return "";
+
+        if (caps.hasTransport(NetworkCapabilities.TRANSPORT_CELLULAR)) {
+            TelephonyManager tm = (TelephonyManager) context.getSystemService(Context.TELEPHONY_SERVICE);
+            String operator = tm != null ? tm.getNetworkOperator() : "";
+            return "cellular/" + operator;
+        }
+        String transport = caps.hasTransport(NetworkCapabilities.TRANSPORT_WIFI) ? "wifi"
+                : caps.hasTransport(NetworkCapabilities.TRANSPORT_ETHERNET) ? "ethernet" : "other";
+        return transport + "/" + gateway(link);
+    }
+
+    private static String gateway(LinkProperties link) {
+        if (link == null) return "";
+        for (RouteInfo route : link.getRoutes()) {
+            if (route.isDefaultRoute() && route.getGateway() != null) {
+                return route.getGateway().getHostAddress();
+            }
+        }
+        return link.getInterfaceName() != null ? link.getInterfaceName() : "";
+    }
+}
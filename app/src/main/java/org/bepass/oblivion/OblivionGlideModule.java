@@ -0,0 +1,31 @@
+package org.bepass.oblivion;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+
+import androidx.annotation.NonNull;
+
+import com.bumptech.glide.Glide;
+import com.bumptech.glide.Registry;
+import com.bumptech.glide.annotation.GlideModule;
+import com.bumptech.glide.load.model.UnitModelLoader;
+import com.bumptech.glide.module.AppGlideModule;
+
+/**
+ * Teaches Glide to load {@link AppIcon}: the model is passed through as its own data and
+ * {@link AppIconDecoder} turns it into a bitmap.
+ */
+@GlideModule
+public final class OblivionGlideModule extends AppGlideModule {
+
+    @Override
+    public void registerComponents(@NonNull Context context, @NonNull Glide glide, @NonNull Registry registry) {
+        registry.append(AppIcon.class, AppIcon.class, UnitModelLoader.Factory.<AppIcon>getInstance());
+        registry.append(AppIcon.class, Bitmap.class, new AppIconDecoder(context, glide.getBitmapPool()));
+    }
+
+    @Override
+    public boolean isManifestParsingEnabled() {
+        return false;
+    }
+}
@@ -8,6 +8,7 @@ import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
+import android.net.IpPrefix;
 import android.net.VpnService;
 import android.os.Build;
 import android.os.Bundle;
@@ -17,28 +18,37 @@ import android.os.Message;
 import android.os.Messenger;
 import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.text.format.Formatter;
 import android.util.Log;
+import android.widget.Toast;
 
 import androidx.core.app.NotificationChannelCompat;
 import androidx.core.app.NotificationCompat;
 import androidx.core.app.NotificationManagerCompat;
 import androidx.core.content.ContextCompat;
 
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
-import java.net.ServerSocket;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import tun2socks.ReadyCallback;
 import tun2socks.StartOptions;
+import tun2socks.Stats;
 import tun2socks.Tun2socks;
 
 public class OblivionVpnService extends VpnService {
     public static final String FLAG_VPN_START = "org.bepass.oblivion.START";
     public static final String FLAG_VPN_STOP = "org.bepass.oblivion.STOP";
+    public static final String FLAG_VPN_RECONFIGURE = "org.bepass.oblivion.RECONFIGURE";
     static final int MSG_PERFORM_CONNECTION_TEST = 1;
     static final int MSG_CONNECTION_STATE_SUBSCRIBE = 2;
     static final int MSG_CONNECTION_STATE_UNSUBSCRIBE = 3;
@@ -49,26 +59,47 @@ public class OblivionVpnService extends VpnService {
     private final Handler handler = new Handler();
     private final Messenger serviceMessenger = new Messenger(new IncomingHandler(this));
     private final Map<String, Messenger> connectionStateObservers = new HashMap<>();
-    private final Runnable logRunnable = new Runnable() {
+    private final List<Messenger> pendingConnectionTests = new ArrayList<>();
+    private static final int NOTIFICATION_ID = 1;
+    private static final long STATS_INTERVAL_MS = 1000;
+    private Notification notification;
+    private NotificationCompat.Builder notificationBuilder;
+    private Stats lastStats;
+    private long lastStatsAt;
+    private String lastStatsText;
+    private final Runnable statsRunnable = new Runnable() {
         @Override
         public void run() {
-            String logMessages = Tun2socks.getLogMessages();
-            if (!logMessages.isEmpty()) {
-                try (FileOutputStream fos = getApplicationContext().openFileOutput("logs.txt", Context.MODE_APPEND)) {
-                    fos.write((logMessages).getBytes());
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-            handler.postDelayed(this, 2000); // Poll every 2 seconds
+            updateStatsNotification();
+            handler.postDelayed(this, STATS_INTERVAL_MS);
         }
     };
-    private Notification notification;
     private ParcelFileDescriptor mInterface;
-    private Thread vpnThread;
+    private static final long SHUTDOWN_JOIN_MS = 6000;
+    // Starts and stops of the core run in order on this thread; a stop joins the core before the next start.
+    private final ExecutorService coreExecutor = Executors.newSingleThreadExecutor();
+    // Only touched on coreExecutor.
+    private Thread coreThread;
+    // Whether a start of the core was queued that no stop has followed yet.
+    private boolean coreStarted;
+    // Bumped on every start so callbacks from a previous core run are ignored.
+    private int session;
     private String bindAddress;
+    private String networkKey = "";
+    private int tunnelMtu = MtuDiscovery.DEFAULT_PATH_MTU;
+    // Trace of the connect in progress, null once it was stored.
+    private ConnectTimeline timeline;
+    private ConnectTraceStore traceStore;
+    // One thread, so an interface of a cancelled connect never replaces that of a newer one.
+    private final ExecutorService interfaceExecutor = Executors.newSingleThreadExecutor();
+    // Set when the core is ready before the interface was attached.
+    private String pendingReadyAddress;
     private FileManager fileManager;
+    private LogFileWriter logFileWriter;
     private ConnectionState lastKnownState = ConnectionState.DISCONNECTED;
+    private TunnelHealthMonitor healthMonitor;
+    private long lastKnownRtt = -1;
+    private float lastKnownLoss = 0f;
 
     public static void startVpnService(Context context) {
         Intent intent = new Intent(context, OblivionVpnService.class);
@@ -83,7 +114,24 @@ public class OblivionVpnService extends VpnService {
         ContextCompat.startForegroundService(context, intent);
     }
 
+    /**
+     * Applies the current split tunnel settings to a running VPN without restarting the core.
+     * Settings travel in the intent because the change notification may not have reached the service process yet.
+     */
+    public static void reconfigureVpnService(Context context) {
+        FileManager fm = FileManager.getInstance(context);
+        Intent intent = new Intent(context, OblivionVpnService.class);
+        intent.setAction(OblivionVpnService.FLAG_VPN_RECONFIGURE);
+        intent.putExtra("splitTunnelMode", SplitTunnelMode.getSplitTunnelMode(fm).toString());
+        intent.putStringArrayListExtra("splitTunnelApps", new ArrayList<>(getSplitTunnelApps(fm)));
+        context.startService(intent);
+    }
+
     public static void registerConnectionStateObserver(String key, Messenger serviceMessenger, ConnectionStateChangeListener observer) {
+        registerConnectionStateObserver(key, serviceMessenger, observer, null);
+    }
+
+    public static void registerConnectionStateObserver(String key, Messenger serviceMessenger, ConnectionStateChangeListener observer, TunnelHealthMonitor.Listener healthObserver) {
         // Create a message for the service
         Message subscriptionMessage = Message.obtain(null, OblivionVpnService.MSG_CONNECTION_STATE_SUBSCRIBE);
         Bundle data = new Bundle();
@@ -94,6 +142,9 @@ public class OblivionVpnService extends VpnService {
             ConnectionState state = ConnectionState.valueOf(incomingMessage.getData().getString("state"));
             if (incomingMessage.what == OblivionVpnService.MSG_TILE_STATE_SUBSCRIPTION_RESULT) {
                 observer.onChange(state);
+                if (healthObserver != null) {
+                    healthObserver.onHealth(state, incomingMessage.getData().getLong("rtt", -1), incomingMessage.getData().getFloat("loss", 0f));
+                }
             }
             return true;
         }));
@@ -152,70 +203,35 @@ public class OblivionVpnService extends VpnService {
         return result;
     }
 
-    private static int findFreePort() {
-        try (ServerSocket socket = new ServerSocket(0)) {
-            socket.setReuseAddress(true);
-            int port = socket.getLocalPort();
+    /**
+     * Splits the endpoint setting, an ordered list separated by commas, spaces or new lines,
+     * and drops entries that are not a valid host:port.
+     */
+    public static List<String> splitEndpoints(String setting) {
+        List<String> endpoints = new ArrayList<>();
+        if (setting == null) return endpoints;
+        for (String entry : setting.split("[,\\s]+")) {
+            if (entry.isEmpty()) continue;
             try {
-                socket.close();
-            } catch (IOException e) {
-                // Ignore IOException on close()
-            }
-            return port;
-        } catch (IOException ignored) {
-        }
-        throw new IllegalStateException("Could not find a free TCP/IP port to start embedded Jetty HTTP Server on");
-    }
-
-    public static String isLocalPortInUse(String bindAddress) {
-        Map<String, Integer> result = splitHostAndPort(bindAddress);
-        if (result == null) {
-            return "exception";
-        }
-        int socksPort = result.values().iterator().next();
-        try {
-            // ServerSocket try to open a LOCAL port
-            new ServerSocket(socksPort).close();
-            // local port can be opened, it's available
-            return "false";
-        } catch (IOException e) {
-            // local port cannot be opened, it's in use
-            return "true";
-        }
-    }
-
-    private static void performConnectionTest(String bindAddress, ConnectionStateChangeListener changeListener) {
-        new Thread(() -> {
-            long startTime = System.currentTimeMillis();
-            boolean isSuccessful = false;
-
-            while (System.currentTimeMillis() - startTime < 2 * 60 * 1000) { // 2 minutes
-                String result = isLocalPortInUse(bindAddress);
-                if (result.contains("exception")) {
-                    if (changeListener != null)
-                        changeListener.onChange(ConnectionState.DISCONNECTED);
-                    return;
-                }
-                if (result.contains("true")) {
-                    isSuccessful = true;
-                    break;
-                }
-                try {
-                    Thread.sleep(1000); // Sleep for a second before retrying
-                } catch (InterruptedException e) {
-                    break; // Exit if interrupted (e.g., service stopping)
+                Map<String, Integer> hostPort = splitHostAndPort(entry);
+                if (hostPort != null && hostPort.values().iterator().next() > 0) {
+                    endpoints.add(entry);
+                    continue;
                 }
+            } catch (IllegalArgumentException ignored) {
+                // NumberFormatException included.
             }
-            if (changeListener != null)
-                changeListener.onChange(isSuccessful ? ConnectionState.CONNECTED : ConnectionState.DISCONNECTED);
-        }).start();
+            Log.w(TAG, "Ignoring invalid endpoint " + entry);
+        }
+        return endpoints;
     }
 
     private String getBindAddress() {
+        // The core falls back to a free port when this one is busy and reports the real address once serving.
         String port = fileManager.getString("USERSETTING_port");
         boolean enableLan = fileManager.getBoolean("USERSETTING_lan");
-        if (OblivionVpnService.isLocalPortInUse("127.0.0.1:" + port).equals("true")) {
-            port = String.valueOf(findFreePort());
+        if (port.trim().isEmpty()) {
+            port = "0";
         }
         String Bind = "";
         Bind += "127.0.0.1:" + port;
@@ -238,25 +254,25 @@ public class OblivionVpnService extends VpnService {
         return serviceMessenger.getBinder();
     }
 
-    private void clearLogFile() {
-        try (FileOutputStream fos = getApplicationContext().openFileOutput("logs.txt", Context.MODE_PRIVATE)) {
-            fos.write("".getBytes()); // Overwrite with empty content
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-    }
-
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         if (intent != null && FLAG_VPN_START.equals(intent.getAction())) {
             fileManager = FileManager.getInstance(this);
-            bindAddress = getBindAddress();
             runVpn();
-            performConnectionTest(bindAddress, this::setLastKnownState);
             return START_STICKY;
         } else if (intent != null && FLAG_VPN_STOP.equals(intent.getAction())) {
             stopVpn();
             return START_NOT_STICKY;
+        } else if (intent != null && FLAG_VPN_RECONFIGURE.equals(intent.getAction())) {
+            SplitTunnelMode mode;
+            try {
+                mode = SplitTunnelMode.valueOf(intent.getStringExtra("splitTunnelMode"));
+            } catch (Exception e) {
+                mode = SplitTunnelMode.DISABLED;
+            }
+            ArrayList<String> apps = intent.getStringArrayListExtra("splitTunnelApps");
+            reconfigure(mode, apps == null ? new HashSet<>() : new HashSet<>(apps));
+            return START_NOT_STICKY;
         }
         return START_NOT_STICKY;
     }
@@ -264,13 +280,19 @@ public class OblivionVpnService extends VpnService {
     @Override
     public void onCreate() {
         super.onCreate();
-        handler.post(logRunnable);
+        logFileWriter = new LogFileWriter(this);
+        traceStore = new ConnectTraceStore(this);
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
-        handler.removeCallbacks(logRunnable);
+        stopHealthMonitor();
+        stopStatsUpdates();
+        interfaceExecutor.shutdown();
+        // Queued stops still run.
+        coreExecutor.shutdown();
+        logFileWriter.close();
     }
 
     @Override
@@ -279,22 +301,111 @@ public class OblivionVpnService extends VpnService {
     }
 
     private void runVpn() {
+        // Also when the previous start has not configured its core yet: stopCore moves on to a new
+        // session either way, so that start's queued configure step is dropped.
+        finishTrace("restarted");
+        stopSession();
+        timeline = new ConnectTimeline();
         setLastKnownState(ConnectionState.CONNECTING);
         Log.i(TAG, "Clearing Logs");
-        clearLogFile();
+        // Queued on the writer thread ahead of anything the new core logs.
+        logFileWriter.clear();
         Log.i(TAG, "Create Notification");
+        timeline.begin("foreground");
         createNotification();
         if (Build.VERSION.SDK_INT < Build.VERSION_CODES.TIRAMISU) {
-            startForeground(1, notification);
+            startForeground(NOTIFICATION_ID, notification);
         } else {
-            startForeground(1, notification,
+            startForeground(NOTIFICATION_ID, notification,
                     FOREGROUND_SERVICE_TYPE_SYSTEM_EXEMPTED);
         }
-        Log.i(TAG, "Configuring VPN service");
-        configure();
+        timeline.end("foreground");
+        final int currentSession = session;
+        // Queued behind the stop of a previous core, so the new one is configured once that is done.
+        coreExecutor.execute(() -> {
+            // Change notifications are asynchronous; make sure what the UI just saved is used.
+            // This is a synchronous call into the settings provider, so it stays off the main thread.
+            fileManager.refresh();
+            handler.post(() -> {
+                if (currentSession != session || lastKnownState != ConnectionState.CONNECTING) return;
+                updateNotificationText();
+                bindAddress = getBindAddress();
+                Log.i(TAG, "Configuring VPN service");
+                configure();
+            });
+        });
+    }
+
+    private void startHealthMonitor() {
+        stopHealthMonitor();
+        String target = fileManager.getString("USERSETTING_health_target", TunnelHealthMonitor.DEFAULT_TARGET);
+        if (target.trim().isEmpty()) target = TunnelHealthMonitor.DEFAULT_TARGET;
+        try {
+            healthMonitor = new TunnelHealthMonitor(bindAddress, target.trim(), (state, rttMillis, loss) -> handler.post(() -> {
+                // Late results from a stopped monitor must not resurrect a finished session.
+                if (!lastKnownState.isConnected()) return;
+                lastKnownRtt = rttMillis;
+                lastKnownLoss = loss;
+                if (state != lastKnownState) {
+                    Log.i(TAG, "Tunnel health " + state + " rtt=" + rttMillis + "ms loss=" + loss);
+                }
+                setLastKnownState(state);
+            }));
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Invalid health probe target " + target, e);
+            return;
+        }
+        healthMonitor.start();
+    }
+
+    private void startStatsUpdates() {
+        handler.removeCallbacks(statsRunnable);
+        lastStats = null;
+        lastStatsText = null;
+        handler.post(statsRunnable);
+    }
+
+    private void stopStatsUpdates() {
+        handler.removeCallbacks(statsRunnable);
+    }
+
+    private void updateStatsNotification() {
+        Stats stats = Tun2socks.getStats();
+        long now = SystemClock.elapsedRealtime();
+        if (lastStats != null && now > lastStatsAt) {
+            long elapsed = now - lastStatsAt;
+            long upRate = (stats.getUpBytes() - lastStats.getUpBytes()) * 1000 / elapsed;
+            long downRate = (stats.getDownBytes() - lastStats.getDownBytes()) * 1000 / elapsed;
+            String text = "↑ " + Formatter.formatShortFileSize(this, upRate) + "/s  ↓ " + Formatter.formatShortFileSize(this, downRate) + "/s"
+                    + "  (" + Formatter.formatShortFileSize(this, stats.getUpBytes()) + " / " + Formatter.formatShortFileSize(this, stats.getDownBytes()) + ")";
+            // Skip the notify call when nothing visible changed, the system rate limits updates anyway.
+            if (!text.equals(lastStatsText) && notificationBuilder != null) {
+                lastStatsText = text;
+                notificationBuilder.setSubText(text);
+                try {
+                    NotificationManagerCompat.from(this).notify(NOTIFICATION_ID, notificationBuilder.build());
+                } catch (SecurityException e) {
+                    // Notification permission was revoked, the foreground notification stays as is.
+                    stopStatsUpdates();
+                }
+            }
+        }
+        lastStats = stats;
+        lastStatsAt = now;
+    }
+
+    private void stopHealthMonitor() {
+        if (healthMonitor != null) {
+            healthMonitor.stop();
+            healthMonitor = null;
+        }
+        lastKnownRtt = -1;
+        lastKnownLoss = 0f;
     }
 
     private void stopVpn() {
+        finishTrace("cancelled");
+        stopSession();
         setLastKnownState(ConnectionState.DISCONNECTED);
         Log.i(TAG, "Stopping VPN");
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
@@ -308,12 +419,17 @@ public class OblivionVpnService extends VpnService {
         } catch (Exception e) {
             e.printStackTrace();
         }
+    }
 
-        try {
-            Tun2socks.shutdown();
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+    /**
+     * Tears down everything of the current session, shared by a stop and a restart: the
+     * monitors, the core and the interface, so none of it carries over into the next session.
+     */
+    private void stopSession() {
+        stopHealthMonitor();
+        stopStatsUpdates();
+        stopCore();
+        pendingReadyAddress = null;
 
         if (mInterface != null) {
             try {
@@ -321,15 +437,37 @@ public class OblivionVpnService extends VpnService {
             } catch (IOException e) {
                 Log.e(TAG, "Error closing the VPN interface", e);
             }
+            mInterface = null;
         }
+    }
 
-        if (vpnThread != null) {
+    /**
+     * Stops the Go core off the main thread. The core shuts down in process within a bounded
+     * time, so the next start reuses the warm process instead of exiting it.
+     */
+    private void stopCore() {
+        int stoppedSession = session++;
+        if (!coreStarted) return;
+        coreStarted = false;
+        coreExecutor.execute(() -> {
+            Thread stopped = coreThread;
+            coreThread = null;
+            long start = SystemClock.elapsedRealtime();
             try {
-                vpnThread.join();
-                vpnThread.stop();
+                // Also keeps a core that has not registered yet from coming up.
+                Tun2socks.shutdown(stoppedSession);
             } catch (Exception e) {
+                e.printStackTrace();
             }
-        }
+            if (stopped == null) return;
+            try {
+                stopped.join(SHUTDOWN_JOIN_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            Log.i(TAG, "Core stopped in " + (SystemClock.elapsedRealtime() - start) + "ms"
+                    + (stopped.isAlive() ? ", core thread still running" : ""));
+        });
     }
 
     private void publishConnectionState(ConnectionState state) {
@@ -345,6 +483,8 @@ public class OblivionVpnService extends VpnService {
         if (observer == null) return;
         Bundle args = new Bundle();
         args.putString("state", state.toString());
+        args.putLong("rtt", lastKnownRtt);
+        args.putFloat("loss", lastKnownLoss);
         Message replyMsg = Message.obtain(null, MSG_TILE_STATE_SUBSCRIPTION_RESULT);
         replyMsg.setData(args);
         try {
@@ -357,6 +497,34 @@ public class OblivionVpnService extends VpnService {
     public void setLastKnownState(ConnectionState lastKnownState) {
         this.lastKnownState = lastKnownState;
         publishConnectionState(lastKnownState);
+        if (lastKnownState != ConnectionState.CONNECTING) {
+            for (Messenger replyTo : pendingConnectionTests) {
+                replyConnectionTest(replyTo, lastKnownState);
+            }
+            pendingConnectionTests.clear();
+        }
+    }
+
+    private void performConnectionTest(Messenger replyTo) {
+        if (lastKnownState == ConnectionState.CONNECTING) {
+            // Answered once the core reports ready or failed.
+            pendingConnectionTests.add(replyTo);
+            return;
+        }
+        replyConnectionTest(replyTo, lastKnownState);
+    }
+
+    private static void replyConnectionTest(Messenger replyTo, ConnectionState state) {
+        if (replyTo == null) return;
+        Bundle data = new Bundle();
+        data.putBoolean("success", state != ConnectionState.DISCONNECTED);
+        Message replyMsg = Message.obtain(null, MSG_PERFORM_CONNECTION_TEST);
+        replyMsg.setData(data);
+        try {
+            replyTo.send(replyMsg);
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        }
     }
 
     private String getNotificationText() {
@@ -389,9 +557,9 @@ public class OblivionVpnService extends VpnService {
                 this, 0, disconnectIntent, PendingIntent.FLAG_IMMUTABLE);
         PendingIntent contentPendingIntent = PendingIntent.getActivity(
                 this, 2, new Intent(this, MainActivity.class), PendingIntent.FLAG_IMMUTABLE);
-        notification = new NotificationCompat.Builder(this, notificationChannel.getId())
+        notificationBuilder = new NotificationCompat.Builder(this, notificationChannel.getId())
                 .setContentTitle("Vpn Service")
-                .setContentText("Oblivion - " + getNotificationText())
+                .setContentText("Oblivion")
                 .setSmallIcon(R.mipmap.ic_notification)
                 .setOnlyAlertOnce(true)
                 .setOngoing(true)
@@ -400,8 +568,20 @@ public class OblivionVpnService extends VpnService {
                 .setPriority(NotificationCompat.PRIORITY_DEFAULT)
                 .setDefaults(NotificationCompat.FLAG_ONLY_ALERT_ONCE)
                 .setContentIntent(contentPendingIntent)
-                .addAction(0, "Disconnect", disconnectPendingIntent)
-                .build();
+                .addAction(0, "Disconnect", disconnectPendingIntent);
+        notification = notificationBuilder.build();
+    }
+
+    // The notification is shown before the settings were loaded, reading them here would block the main thread.
+    private void updateNotificationText() {
+        if (notificationBuilder == null) return;
+        notificationBuilder.setContentText("Oblivion - " + getNotificationText());
+        notification = notificationBuilder.build();
+        try {
+            NotificationManagerCompat.from(this).notify(NOTIFICATION_ID, notification);
+        } catch (SecurityException e) {
+            // Notification permission was revoked, the foreground notification stays as is.
+        }
     }
 
     public void addConnectionStateObserver(String key, Messenger messenger) {
@@ -424,11 +604,15 @@ public class OblivionVpnService extends VpnService {
         boolean enablePsiphon = fileManager.getBoolean("USERSETTING_psiphon", false);
         boolean enableGool = fileManager.getBoolean("USERSETTING_gool", false);
 
-        if (!endpoint.contains("engage.cloudflareclient.com")) {
-            so.setEndpoint(endpoint);
-        } else {
+        // Several endpoints are raced by the core, the first one to carry traffic is used.
+        List<String> endpoints = splitEndpoints(endpoint);
+        if (endpoint.contains("engage.cloudflareclient.com")) {
             so.setEndpoint("notset");
             so.setScan(true);
+        } else if (!endpoints.isEmpty()) {
+            so.setEndpoint(TextUtils.join(",", endpoints));
+        } else {
+            so.setEndpoint(endpoint);
         }
 
         so.setBindAddress(bindAddress);
@@ -450,46 +634,278 @@ public class OblivionVpnService extends VpnService {
             so.setGool(true);
         }
 
-        so.setRtt(800);
+        // Rtt is left at 0 so the core derives the scan cutoff from what this network measured before.
+        so.setNetworkKey(networkKey);
+        // The interface and its MTU are handed over later through attachTun.
+        so.setSession(session);
+        // "lwip" or "gvisor"; not exposed in the settings screen yet.
+        so.setEngine(fileManager.getString("USERSETTING_engine", "lwip"));
+
+        // Pushed from a Go thread only when the core has buffered lines.
+        so.setLogger(batch -> logFileWriter.append(batch));
+
+        // Called from a Go thread once the local proxy accepts connections or the core gives up.
+        final int currentSession = session;
+        so.setReady(new ReadyCallback() {
+            @Override
+            public void onReady(String address, String phase) {
+                handler.post(() -> {
+                    if (currentSession != session || lastKnownState != ConnectionState.CONNECTING) return;
+                    Log.i(TAG, "Core reached " + phase + " on " + address);
+                    timeline.end("core");
+                    if (mInterface == null) {
+                        pendingReadyAddress = address;
+                        return;
+                    }
+                    onConnected(address);
+                });
+            }
+
+            @Override
+            public void onFailed(String phase, String reason) {
+                handler.post(() -> {
+                    if (currentSession != session) return;
+                    Log.w(TAG, "Core failed during " + phase + ": " + reason);
+                    finishTrace("failed: " + phase + ": " + reason);
+                    stopVpn();
+                });
+            }
+        });
 
         return so;
     }
 
-    private void configure() {
-        VpnService.Builder builder = new VpnService.Builder();
+    private void onConnected(String address) {
+        bindAddress = address;
+        timeline.begin("connected", "core", "attach");
+        timeline.end("connected");
+        timeline.log("connected");
+        finishTrace("connected");
+        setLastKnownState(ConnectionState.CONNECTED);
+        startHealthMonitor();
+        startStatsUpdates();
+    }
+
+    /**
+     * Merges the spans the core recorded into the trace of the current connect and stores it.
+     * Must run before stopCore, which moves on to the next session.
+     */
+    private void finishTrace(String outcome) {
+        ConnectTimeline finished = timeline;
+        if (finished == null) return;
+        timeline = null;
+        finished.addCoreSpans(Tun2socks.takeTrace(session));
+        traceStore.save(finished.format(outcome, "connected"));
+    }
+
+    private ParcelFileDescriptor establishInterface(int mtu, SplitTunnelMode splitTunnelMode, Set<String> splitTunnelApps) {
+        RouteCompiler.Routes routes = RouteCompiler.compile(RouteCompiler.load(this));
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.TIRAMISU && routes.coarsened()) {
+            handler.post(() -> Toast.makeText(this, "Too many bypass routes for this Android version, small ranges go through the tunnel", Toast.LENGTH_LONG).show());
+        }
+        VpnService.Builder builder = newBuilder(mtu, routes);
+        if (splitTunnelMode == SplitTunnelMode.WHITELIST) {
+            // Allowed and disallowed apps cannot be mixed; apps that are not allowed, this one
+            // included, keep the direct path.
+            int allowed = 0;
+            for (String packageName : splitTunnelApps) {
+                try {
+                    builder.addAllowedApplication(packageName);
+                    allowed++;
+                } catch (PackageManager.NameNotFoundException e) {
+                    Log.w(TAG, "Skipping uninstalled split tunnel app " + packageName);
+                }
+            }
+            if (allowed > 0) {
+                return builder.establish();
+            }
+            // An empty allow list would route every app, this one too.
+            Log.w(TAG, "None of the whitelisted apps is installed, routing all apps");
+            builder = newBuilder(mtu, routes);
+        }
         try {
-            builder.setSession("oblivion")
-                    .setMtu(1500)
-                    .addAddress(PRIVATE_VLAN4_CLIENT, 30)
-                    .addAddress(PRIVATE_VLAN6_CLIENT, 126)
-                    .addDnsServer("8.8.8.8")
-                    .addDnsServer("8.8.4.4")
-                    .addDnsServer("1.1.1.1")
-                    .addDnsServer("1.0.0.1")
-                    .addDnsServer("2001:4860:4860::8888")
-                    .addDnsServer("2001:4860:4860::8844")
-                    .addDisallowedApplication(getPackageName())
-                    .addRoute("0.0.0.0", 0)
-                    .addRoute("::", 0);
-            fileManager.getStringSet("splitTunnelApps", new HashSet<>());
-            SplitTunnelMode splitTunnelMode = SplitTunnelMode.getSplitTunnelMode(fileManager);
-            if (splitTunnelMode == SplitTunnelMode.BLACKLIST) {
-                for (String packageName : getSplitTunnelApps(fileManager)) {
+            builder.addDisallowedApplication(getPackageName());
+        } catch (PackageManager.NameNotFoundException e) {
+            throw new RuntimeException(e);
+        }
+        if (splitTunnelMode == SplitTunnelMode.BLACKLIST) {
+            for (String packageName : splitTunnelApps) {
+                try {
                     builder.addDisallowedApplication(packageName);
+                } catch (PackageManager.NameNotFoundException e) {
+                    Log.w(TAG, "Skipping uninstalled split tunnel app " + packageName);
                 }
             }
+        }
+        return builder.establish();
+    }
 
-        } catch (PackageManager.NameNotFoundException e) {
-            throw new RuntimeException(e);
+    private VpnService.Builder newBuilder(int mtu, RouteCompiler.Routes routes) {
+        VpnService.Builder builder = new VpnService.Builder();
+        builder.setSession("oblivion")
+                .setMtu(mtu)
+                .addAddress(PRIVATE_VLAN4_CLIENT, 30)
+                .addAddress(PRIVATE_VLAN6_CLIENT, 126)
+                .addDnsServer("8.8.8.8")
+                .addDnsServer("8.8.4.4")
+                .addDnsServer("1.1.1.1")
+                .addDnsServer("1.0.0.1")
+                .addDnsServer("2001:4860:4860::8888")
+                .addDnsServer("2001:4860:4860::8844");
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU && !routes.isEmpty()) {
+            builder.addRoute("0.0.0.0", 0).addRoute("::", 0);
+            for (RouteCompiler.Prefix prefix : routes.excluded()) {
+                builder.excludeRoute(new IpPrefix(prefix.address, prefix.length));
+            }
+        } else {
+            // Without excludeRoute the bypass ranges are left out of the routes instead.
+            for (RouteCompiler.Prefix prefix : routes.included()) {
+                builder.addRoute(prefix.address, prefix.length);
+            }
         }
-        mInterface = builder.establish();
-        Log.i(TAG, "Interface created");
+        return builder;
+    }
+
+    // The core gets its own duplicate of the tun fd and closes it itself, so either side can close without racing the other.
+    private static int coreTunFd(ParcelFileDescriptor pfd) throws IOException {
+        return pfd.dup().detachFd();
+    }
+
+    /**
+     * Starts the core right away, so endpoint selection, key loading and Psiphon bootstrap run
+     * while the MTU is probed and the interface is built on another thread. The interface is
+     * attached to the running core once it exists.
+     */
+    private void configure() {
+        networkKey = NetworkKey.current(this);
+        final int currentSession = session;
+        final ConnectTimeline currentTimeline = timeline;
 
         StartOptions so = calculateArgs();
-        so.setTunFd(mInterface.getFd());
+        currentTimeline.begin("core", "foreground");
+        coreStarted = true;
+        coreExecutor.execute(() -> {
+            coreThread = new Thread(() -> Tun2socks.runWarp(so), "oblivion-core");
+            coreThread.start();
+        });
+
+        // The interface, lwIP and MSS clamping all use this value, reconfigure() keeps it for the session.
+        List<String> endpoints = splitEndpoints(fileManager.getString("USERSETTING_endpoint"));
+        String probeEndpoint = endpoints.isEmpty() ? null : endpoints.get(0);
+        int layers = fileManager.getBoolean("USERSETTING_gool", false) ? 2 : 1;
+        SplitTunnelMode splitTunnelMode = SplitTunnelMode.getSplitTunnelMode(fileManager);
+        Set<String> splitTunnelApps = getSplitTunnelApps(fileManager);
+        String currentNetworkKey = networkKey;
+        interfaceExecutor.execute(() -> {
+            currentTimeline.begin("mtu", "foreground");
+            int mtu = MtuDiscovery.tunnelMtu(this, currentNetworkKey, probeEndpoint, layers);
+            currentTimeline.end("mtu");
+            currentTimeline.begin("interface", "mtu");
+            ParcelFileDescriptor pfd;
+            try {
+                pfd = establishInterface(mtu, splitTunnelMode, splitTunnelApps);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Failed to establish the VPN interface", e);
+                pfd = null;
+            }
+            currentTimeline.end("interface");
+            ParcelFileDescriptor established = pfd;
+            handler.post(() -> attachInterface(currentSession, mtu, established));
+        });
+    }
+
+    private void attachInterface(int interfaceSession, int mtu, ParcelFileDescriptor pfd) {
+        if (interfaceSession != session || lastKnownState.isDisconnected()) {
+            // The connect was cancelled while the interface was being built.
+            closeQuietly(pfd);
+            return;
+        }
+        if (pfd == null) {
+            Log.e(TAG, "No VPN interface, permission was revoked or establish failed");
+            finishTrace("failed: no interface");
+            stopVpn();
+            return;
+        }
+        tunnelMtu = mtu;
+        mInterface = pfd;
+        Log.i(TAG, "Interface created");
+        timeline.begin("attach", "interface");
+        try {
+            Tun2socks.attachTun(session, coreTunFd(pfd), mtu);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to hand the VPN interface to the core", e);
+            finishTrace("failed: attach");
+            stopVpn();
+            return;
+        }
+        timeline.end("attach");
+        if (pendingReadyAddress != null) {
+            String address = pendingReadyAddress;
+            pendingReadyAddress = null;
+            onConnected(address);
+        }
+    }
 
-        vpnThread = new Thread(() -> Tun2socks.runWarp(so));
-        vpnThread.start();
+    private static void closeQuietly(ParcelFileDescriptor pfd) {
+        if (pfd == null) return;
+        try {
+            pfd.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Rebuilds the VPN interface and swaps it under the running core. establish() replaces the
+     * old interface, whose fd is only closed after the core reads from the new one. Loading and
+     * compiling the bypass routes can take a while, so the interface is built on
+     * interfaceExecutor like in configure() and only swapped in on the main thread.
+     */
+    private void reconfigure(SplitTunnelMode splitTunnelMode, Set<String> splitTunnelApps) {
+        if (mInterface == null || lastKnownState.isDisconnected()) {
+            Log.i(TAG, "VPN is not running, nothing to reconfigure");
+            return;
+        }
+        long start = SystemClock.elapsedRealtime();
+        final int currentSession = session;
+        final int mtu = tunnelMtu;
+        interfaceExecutor.execute(() -> {
+            ParcelFileDescriptor pfd;
+            try {
+                pfd = establishInterface(mtu, splitTunnelMode, splitTunnelApps);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Failed to establish the VPN interface", e);
+                pfd = null;
+            }
+            ParcelFileDescriptor established = pfd;
+            handler.post(() -> swapInterface(currentSession, established, start));
+        });
+    }
+
+    private void swapInterface(int interfaceSession, ParcelFileDescriptor next, long start) {
+        if (interfaceSession != session || mInterface == null || lastKnownState.isDisconnected()) {
+            // The VPN was stopped or restarted while the interface was being built.
+            closeQuietly(next);
+            return;
+        }
+        ParcelFileDescriptor previous = mInterface;
+        try {
+            if (next == null) {
+                throw new IOException("VPN permission was revoked or establish failed");
+            }
+            mInterface = next;
+            Tun2socks.swapTun(coreTunFd(next));
+            previous.close();
+            Log.i(TAG, "Split tunnel applied in " + (SystemClock.elapsedRealtime() - start) + "ms");
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to apply split tunnel without reconnecting", e);
+            if (previous != mInterface) {
+                try {
+                    previous.close();
+                } catch (IOException ignored) {
+                }
+            }
+            stopVpn();
+        }
     }
 
     private static Set<String> getSplitTunnelApps(FileManager fm) {
@@ -511,33 +927,7 @@ public class OblivionVpnService extends VpnService {
             if (service == null) return;
             switch (msg.what) {
                 case MSG_PERFORM_CONNECTION_TEST: {
-                    performConnectionTest(service.bindAddress, new ConnectionStateChangeListener() {
-                        @Override
-                        public void onChange(ConnectionState state) {
-                            service.setLastKnownState(state);
-                            Bundle data = new Bundle();
-                            if (state == ConnectionState.DISCONNECTED) {
-                                data.putBoolean("success", false);
-                                Message replyMsg = Message.obtain(null, MSG_PERFORM_CONNECTION_TEST);
-                                replyMsg.setData(data);
-                                try {
-                                    message.replyTo.send(replyMsg);
-                                } catch (RemoteException e) {
-                                    e.printStackTrace();
-                                }
-                            } else {
-                                data.putBoolean("success", true);
-                                Message replyMsg = Message.obtain(null, MSG_PERFORM_CONNECTION_TEST);
-                                replyMsg.setData(data);
-                                try {
-                                    message.replyTo.send(replyMsg);
-                                } catch (RemoteException e) {
-                                    e.printStackTrace();
-                                }
-                            }
-
-                        }
-                    });
+                    service.performConnectionTest(message.replyTo);
                     break;
                 }
                 case MSG_CONNECTION_STATE_SUBSCRIBE: {
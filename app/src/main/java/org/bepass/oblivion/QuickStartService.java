@@ -105,6 +105,12 @@ public class QuickStartService extends TileService {
                         tile.setLabel("Connected");
                         tile.setIcon(Icon.createWithResource(getApplicationContext(), R.drawable.vpn_on));
                         tile.updateTile();
+                        break;
+                    case DEGRADED:
+                        tile.setState(Tile.STATE_ACTIVE);
+                        tile.setLabel("Degraded");
+                        tile.setIcon(Icon.createWithResource(getApplicationContext(), R.drawable.vpn_on));
+                        tile.updateTile();
                 }
             }
         });
@@ -0,0 +1,417 @@
+package org.bepass.oblivion;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Turns a list of CIDRs that should bypass the tunnel into routes for the VPN interface: the
+ * bypass ranges merged into the fewest prefixes, for excludeRoute, and their complement in the
+ * fewest prefixes, for addRoute on API levels without it. Parsing and sorting dominate, tens of
+ * thousands of prefixes take a fraction of a second.
+ */
+final class RouteCompiler {
+    private static final String TAG = "RouteCompiler";
+    private static final Pattern SEPARATORS = Pattern.compile("[\\s,;]+");
+    private static final Pattern IPV6 = Pattern.compile("[0-9a-fA-F:.]*:[0-9a-fA-F:.]*");
+    // The most routes included() hands to addRoute. Every route travels in the establish()
+    // transaction and is installed in the kernel; the complement of a long list would exceed both.
+    static final int MAX_INCLUDED_ROUTES = 1024;
+
+    static final class Prefix {
+        final InetAddress address;
+        final int length;
+
+        Prefix(InetAddress address, int length) {
+            this.address = address;
+            this.length = length;
+        }
+
+        @Override
+        public String toString() {
+            return address.getHostAddress() + "/" + length;
+        }
+    }
+
+    /**
+     * The merged bypass ranges. Prefixes are only materialized for the side that is asked for:
+     * the complement of a long list runs into hundreds of thousands of prefixes.
+     */
+    static final class Routes {
+        private final List<Range> v4;
+        private final List<Range> v6;
+        private List<Prefix> excluded;
+        private List<Prefix> included;
+        private boolean coarsened;
+
+        private Routes(List<Range> v4, List<Range> v6) {
+            this.v4 = v4;
+            this.v6 = v6;
+        }
+
+        boolean isEmpty() {
+            return v4.isEmpty() && v6.isEmpty();
+        }
+
+        // The bypass ranges.
+        synchronized List<Prefix> excluded() {
+            if (excluded == null) {
+                excluded = new ArrayList<>();
+                for (Range range : v4) toPrefixes(range, 32, excluded, Integer.MAX_VALUE);
+                for (Range range : v6) toPrefixes(range, 128, excluded, Integer.MAX_VALUE);
+            }
+            return excluded;
+        }
+
+        /**
+         * Everything but the bypass ranges; 0.0.0.0/0 and ::/0 when nothing is bypassed. At most
+         * MAX_INCLUDED_ROUTES prefixes: past that the bypass ranges are cut down to whole blocks
+         * of a shorter prefix length until the complement fits, so what no longer fits goes
+         * through the tunnel rather than around it.
+         */
+        synchronized List<Prefix> included() {
+            if (included == null) {
+                List<Prefix> v6Routes = new ArrayList<>();
+                int v6Length = complementWithin(v6, 128, MAX_INCLUDED_ROUTES / 2, v6Routes);
+                included = new ArrayList<>();
+                int v4Length = complementWithin(v4, 32, MAX_INCLUDED_ROUTES - v6Routes.size(), included);
+                included.addAll(v6Routes);
+                coarsened = v4Length < 32 || v6Length < 128;
+                if (coarsened) {
+                    Log.w(TAG, "Too many bypass routes, only blocks up to /" + v4Length + " and /" + v6Length + " bypass the tunnel");
+                }
+            }
+            return included;
+        }
+
+        // Whether included() had to leave parts of the bypass ranges in the tunnel.
+        synchronized boolean coarsened() {
+            included();
+            return coarsened;
+        }
+    }
+
+    // An unsigned 128 bit number, IPv4 addresses use the low 32 bits.
+    private static final class U128 implements Comparable<U128> {
+        final long hi;
+        final long lo;
+
+        U128(long hi, long lo) {
+            this.hi = hi;
+            this.lo = lo;
+        }
+
+        @Override
+        public int compareTo(U128 other) {
+            int byHi = compareUnsigned(hi, other.hi);
+            return byHi != 0 ? byHi : compareUnsigned(lo, other.lo);
+        }
+
+        U128 plusOne() {
+            return lo == -1L ? new U128(hi + 1, 0) : new U128(hi, lo + 1);
+        }
+
+        U128 minusOne() {
+            return lo == 0 ? new U128(hi - 1, -1L) : new U128(hi, lo - 1);
+        }
+
+        U128 minus(U128 other) {
+            long low = lo - other.lo;
+            long borrow = compareUnsigned(lo, other.lo) < 0 ? 1 : 0;
+            return new U128(hi - other.hi - borrow, low);
+        }
+
+        // The number with only bit set.
+        static U128 bit(int bit) {
+            return bit >= 64 ? new U128(1L << (bit - 64), 0) : new U128(0, 1L << bit);
+        }
+
+        U128 plus(U128 other) {
+            long low = lo + other.lo;
+            long carry = compareUnsigned(low, lo) < 0 ? 1 : 0;
+            return new U128(hi + other.hi + carry, low);
+        }
+
+        int trailingZeros() {
+            return lo != 0 ? Long.numberOfTrailingZeros(lo) : 64 + Long.numberOfTrailingZeros(hi);
+        }
+
+        // floor(log2(this)), this must not be zero.
+        int log2() {
+            return hi != 0 ? 127 - Long.numberOfLeadingZeros(hi) : 63 - Long.numberOfLeadingZeros(lo);
+        }
+
+        // Long.compareUnsigned needs API 26.
+        private static int compareUnsigned(long a, long b) {
+            return Long.compare(a + Long.MIN_VALUE, b + Long.MIN_VALUE);
+        }
+    }
+
+    private static final class Range {
+        U128 start;
+        U128 end;
+
+        Range(U128 start, U128 end) {
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    // Lists can be far larger than a setting should be, they are kept in their own file.
+    private static final String FILE = "bypass_routes";
+
+    private static String lastSource;
+    private static Routes lastRoutes;
+
+    private RouteCompiler() {
+    }
+
+    /**
+     * Reads the bypass list the user saved, empty if there is none.
+     */
+    static String load(Context context) {
+        File file = new File(context.getFilesDir(), FILE);
+        try (FileInputStream in = new FileInputStream(file)) {
+            byte[] bytes = new byte[(int) file.length()];
+            int read = 0;
+            while (read < bytes.length) {
+                int n = in.read(bytes, read, bytes.length - read);
+                if (n < 0) break;
+                read += n;
+            }
+            return new String(bytes, 0, read, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            return "";
+        }
+    }
+
+    static void save(Context context, String source) {
+        try (FileOutputStream out = new FileOutputStream(new File(context.getFilesDir(), FILE))) {
+            out.write(source.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            Log.w(TAG, "Could not store the bypass routes", e);
+        }
+    }
+
+    // The number of entries in source, for display.
+    static int count(String source) {
+        String trimmed = source.trim();
+        return trimmed.isEmpty() ? 0 : SEPARATORS.split(trimmed).length;
+    }
+
+    /**
+     * Compiles source, CIDRs or single addresses separated by whitespace, commas or semicolons.
+     * The last result is kept, so rebuilding the interface with an unchanged list is free.
+     */
+    static synchronized Routes compile(String source) {
+        if (source.equals(lastSource)) return lastRoutes;
+        List<Range> v4 = new ArrayList<>();
+        List<Range> v6 = new ArrayList<>();
+        for (String token : SEPARATORS.split(source.trim())) {
+            if (token.isEmpty()) continue;
+            if (!parse(token, v4, v6)) Log.w(TAG, "Ignoring invalid bypass route " + token);
+        }
+        lastSource = source;
+        lastRoutes = new Routes(merge(v4, max(32)), merge(v6, max(128)));
+        return lastRoutes;
+    }
+
+    private static boolean parse(String token, List<Range> v4, List<Range> v6) {
+        int slash = token.indexOf('/');
+        String host = slash < 0 ? token : token.substring(0, slash);
+        byte[] bytes = parseAddress(host);
+        if (bytes == null) return false;
+        int bits = bytes.length * 8;
+        int length;
+        try {
+            length = slash < 0 ? bits : Integer.parseInt(token.substring(slash + 1));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        if (length < 0 || length > bits) return false;
+        long hi = 0;
+        long lo = 0;
+        for (int i = 0; i < bytes.length; i++) {
+            long b = bytes[i] & 0xff;
+            if (bytes.length == 16 && i < 8) hi = (hi << 8) | b;
+            else lo = (lo << 8) | b;
+        }
+        U128 address = new U128(hi, lo);
+        int hostBits = bits - length;
+        U128 hostMask = hostBits == 128 ? new U128(-1L, -1L) : U128.bit(hostBits).minusOne();
+        U128 start = new U128(address.hi & ~hostMask.hi, address.lo & ~hostMask.lo);
+        U128 end = new U128(start.hi | hostMask.hi, start.lo | hostMask.lo);
+        (bytes.length == 4 ? v4 : v6).add(new Range(start, end));
+        return true;
+    }
+
+    private static byte[] parseAddress(String host) {
+        // IPv4 is the common case in long lists and is parsed without InetAddress.
+        byte[] bytes = parseIpv4(host);
+        if (bytes != null || !IPV6.matcher(host).matches()) return bytes;
+        // Only literals get here, getByName must never turn into a DNS lookup.
+        try {
+            byte[] address = InetAddress.getByName(host).getAddress();
+            if (address.length == 16) return address;
+            // IPv4-mapped literals come back as IPv4 addresses, but their prefix length counts IPv6 bits.
+            byte[] mapped = new byte[16];
+            mapped[10] = (byte) 0xff;
+            mapped[11] = (byte) 0xff;
+            System.arraycopy(address, 0, mapped, 12, 4);
+            return mapped;
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
+
+    // Dotted quad only, null for anything else.
+    private static byte[] parseIpv4(String host) {
+        byte[] bytes = new byte[4];
+        int octet = 0;
+        int value = 0;
+        int digits = 0;
+        for (int i = 0; i <= host.length(); i++) {
+            char c = i < host.length() ? host.charAt(i) : '.';
+            if (c >= '0' && c <= '9' && digits < 3) {
+                value = value * 10 + (c - '0');
+                digits++;
+            } else if (c == '.' && digits > 0 && value <= 255 && octet < 4) {
+                bytes[octet++] = (byte) value;
+                value = 0;
+                digits = 0;
+            } else {
+                return null;
+            }
+        }
+        return octet == 4 ? bytes : null;
+    }
+
+    private static U128 max(int bits) {
+        return bits == 32 ? new U128(0, 0xffffffffL) : new U128(-1L, -1L);
+    }
+
+    private static List<Range> merge(List<Range> ranges, U128 max) {
+        Collections.sort(ranges, (a, b) -> a.start.compareTo(b.start));
+        List<Range> merged = new ArrayList<>();
+        Range current = null;
+        for (Range range : ranges) {
+            // Overlapping or adjacent; end + 1 cannot overflow unless current already covers the rest.
+            if (current != null && (current.end.compareTo(max) == 0 || range.start.compareTo(current.end.plusOne()) <= 0)) {
+                if (range.end.compareTo(current.end) > 0) current.end = range.end;
+                continue;
+            }
+            current = new Range(range.start, range.end);
+            merged.add(current);
+        }
+        return merged;
+    }
+
+    /**
+     * Adds the complement of merged to out in at most limit prefixes, merged first being cut down
+     * to whole /length blocks for the longest length that fits. Returns that length.
+     */
+    private static int complementWithin(List<Range> merged, int bits, int limit, List<Prefix> out) {
+        for (int length = bits; ; length--) {
+            List<Range> ranges = length == bits ? merged : shrink(merged, bits, length);
+            List<Prefix> prefixes = new ArrayList<>();
+            boolean fits = true;
+            for (Range range : complement(ranges, bits)) {
+                if (!toPrefixes(range, bits, prefixes, limit)) {
+                    fits = false;
+                    break;
+                }
+            }
+            // At length 0 nothing or everything is bypassed, one prefix at most.
+            if (fits || length == 0) {
+                out.addAll(prefixes);
+                return length;
+            }
+        }
+    }
+
+    // The whole /length blocks within each range, dropping ranges smaller than a block.
+    private static List<Range> shrink(List<Range> merged, int bits, int length) {
+        int blockBits = bits - length;
+        U128 mask = blockBits == 128 ? new U128(-1L, -1L) : U128.bit(blockBits).minusOne();
+        U128 max = max(bits);
+        List<Range> shrunk = new ArrayList<>();
+        for (Range range : merged) {
+            U128 start = range.start;
+            if ((start.hi & mask.hi) != 0 || (start.lo & mask.lo) != 0) {
+                U128 blockEnd = new U128(start.hi | mask.hi, start.lo | mask.lo);
+                if (blockEnd.compareTo(max) == 0) continue;
+                start = blockEnd.plusOne();
+            }
+            U128 end = range.end;
+            if ((end.hi & mask.hi) != mask.hi || (end.lo & mask.lo) != mask.lo) {
+                U128 blockStart = new U128(end.hi & ~mask.hi, end.lo & ~mask.lo);
+                if (blockStart.hi == 0 && blockStart.lo == 0) continue;
+                end = blockStart.minusOne();
+            }
+            if (start.compareTo(end) <= 0) shrunk.add(new Range(start, end));
+        }
+        return shrunk;
+    }
+
+    private static List<Range> complement(List<Range> merged, int bits) {
+        U128 max = max(bits);
+        List<Range> gaps = new ArrayList<>();
+        U128 next = new U128(0, 0);
+        boolean done = false;
+        for (Range range : merged) {
+            if (range.start.compareTo(next) > 0) gaps.add(new Range(next, range.start.minusOne()));
+            if (range.end.compareTo(max) == 0) {
+                done = true;
+                break;
+            }
+            next = range.end.plusOne();
+        }
+        if (!done) gaps.add(new Range(next, max));
+        return gaps;
+    }
+
+    // Splits range into the fewest aligned prefixes, false once out would hold more than limit.
+    private static boolean toPrefixes(Range range, int bits, List<Prefix> out, int limit) {
+        U128 start = range.start;
+        while (true) {
+            if (out.size() >= limit) return false;
+            U128 remaining = range.end.minus(start);
+            // remaining + 1 overflows only for the whole IPv6 space.
+            int sizeBits = remaining.hi == -1L && remaining.lo == -1L ? 128 : remaining.plusOne().log2();
+            int alignBits = Math.min(start.trailingZeros(), bits);
+            int blockBits = Math.min(sizeBits, alignBits);
+            out.add(new Prefix(toAddress(start, bits), bits - blockBits));
+            if (blockBits == bits) return true;
+            U128 last = start.plus(U128.bit(blockBits).minusOne());
+            if (last.compareTo(range.end) >= 0) return true;
+            start = last.plusOne();
+        }
+    }
+
+    private static InetAddress toAddress(U128 value, int bits) {
+        byte[] bytes = new byte[bits / 8];
+        for (int i = bytes.length - 1, shift = 0; i >= 0; i--, shift += 8) {
+            long word = bytes.length == 16 && i < 8 ? value.hi : value.lo;
+            bytes[i] = (byte) (word >>> (shift % 64));
+        }
+        try {
+            // getByAddress would turn ::ffff:0:0/96 and the like into IPv4 addresses.
+            return bytes.length == 16 ? Inet6Address.getByAddress(null, bytes, -1) : InetAddress.getByAddress(bytes);
+        } catch (UnknownHostException e) {
+            // Only thrown for a wrong length.
+            throw new IllegalStateException(e);
+        }
+    }
+}
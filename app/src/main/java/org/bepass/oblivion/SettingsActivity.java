@@ -18,9 +18,9 @@ public class SettingsActivity extends AppCompatActivity {
     FileManager fileManager;
     ImageView back;
 
-    LinearLayout endpointLayout, portLayout, lanLayout, psiphonLayout, countryLayout, licenseLayout, goolLayout, splitTunnelLayout;
+    LinearLayout endpointLayout, portLayout, healthTargetLayout, bypassRoutesLayout, lanLayout, psiphonLayout, countryLayout, licenseLayout, goolLayout, splitTunnelLayout;
 
-    TextView endpoint, port, license;
+    TextView endpoint, port, healthTarget, bypassRoutes, license;
     CheckBox psiphon, lan, gool;
     Spinner country;
     ArrayAdapter adapter;
@@ -45,7 +45,19 @@ public class SettingsActivity extends AppCompatActivity {
         // Listen to Changes
         endpointLayout.setOnClickListener(v -> (new EditSheet(this, "اندپوینت", "endpoint", sheetsCallBack)).start());
         portLayout.setOnClickListener(v -> (new EditSheet(this, "پورت", "port", sheetsCallBack)).start());
+        healthTargetLayout.setOnClickListener(v -> (new EditSheet(this, "مقصد تست", "health_target", sheetsCallBack)).start());
         licenseLayout.setOnClickListener(v -> (new EditSheet(this, "لایسنس", "license", sheetsCallBack)).start());
+        bypassRoutesLayout.setOnClickListener(v -> (new EditSheet(this, "آدرس‌های مستقیم", new EditSheet.Store() {
+            @Override
+            public String get() {
+                return RouteCompiler.load(SettingsActivity.this);
+            }
+
+            @Override
+            public void set(String value) {
+                RouteCompiler.save(SettingsActivity.this, value);
+            }
+        }, sheetsCallBack)).start());
 
         adapter = ArrayAdapter.createFromResource(this, R.array.countries, R.layout.country_item_layout);
         adapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
@@ -77,23 +89,25 @@ public class SettingsActivity extends AppCompatActivity {
         lan.setOnCheckedChangeListener((buttonView, isChecked) -> fileManager.set("USERSETTING_lan", isChecked));
         // Initialize the listeners
         psiphonListener = (buttonView, isChecked) -> {
-            fileManager.set("USERSETTING_psiphon", isChecked);
+            FileManager.Editor editor = fileManager.edit().put("USERSETTING_psiphon", isChecked);
             if (isChecked && gool.isChecked()) {
                 setCheckBoxWithoutTriggeringListener(gool, false, goolListener);
-                fileManager.set("USERSETTING_gool", false);
+                editor.put("USERSETTING_gool", false);
             }
+            editor.apply();
             countryLayout.setAlpha(isChecked ? 1f : 0.2f);
             country.setEnabled(isChecked);
         };
 
         goolListener = (buttonView, isChecked) -> {
-            fileManager.set("USERSETTING_gool", isChecked);
+            FileManager.Editor editor = fileManager.edit().put("USERSETTING_gool", isChecked);
             if (isChecked && psiphon.isChecked()) {
                 setCheckBoxWithoutTriggeringListener(psiphon, false, psiphonListener);
-                fileManager.set("USERSETTING_psiphon", false);
+                editor.put("USERSETTING_psiphon", false);
                 countryLayout.setAlpha(0.2f);
                 country.setEnabled(false);
             }
+            editor.apply();
         };
 
         // Set the listeners to the checkboxes
@@ -115,6 +129,8 @@ public class SettingsActivity extends AppCompatActivity {
     private void settingBasicValuesFromSPF() {
         endpoint.setText(fileManager.getString("USERSETTING_endpoint"));
         port.setText(fileManager.getString("USERSETTING_port"));
+        healthTarget.setText(fileManager.getString("USERSETTING_health_target", TunnelHealthMonitor.DEFAULT_TARGET));
+        bypassRoutes.setText(String.valueOf(RouteCompiler.count(RouteCompiler.load(this))));
         license.setText(fileManager.getString("USERSETTING_license"));
 
         String countryCode = fileManager.getString("USERSETTING_country");
@@ -145,6 +161,8 @@ public class SettingsActivity extends AppCompatActivity {
 
         endpointLayout = findViewById(R.id.endpoint_layout);
         portLayout = findViewById(R.id.port_layout);
+        healthTargetLayout = findViewById(R.id.health_target_layout);
+        bypassRoutesLayout = findViewById(R.id.bypass_routes_layout);
         splitTunnelLayout = findViewById(R.id.split_tunnel_layout);
         lanLayout = findViewById(R.id.lan_layout);
         psiphonLayout = findViewById(R.id.psiphon_layout);
@@ -155,6 +173,8 @@ public class SettingsActivity extends AppCompatActivity {
         back = findViewById(R.id.back);
         endpoint = findViewById(R.id.endpoint);
         port = findViewById(R.id.port);
+        healthTarget = findViewById(R.id.health_target);
+        bypassRoutes = findViewById(R.id.bypass_routes);
         country = findViewById(R.id.country);
         license = findViewById(R.id.license);
 
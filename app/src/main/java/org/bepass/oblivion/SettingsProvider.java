@@ -0,0 +1,121 @@
+package org.bepass.oblivion;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Owns the "UserData" preferences in the main process; every other process reads and writes
+ * them through {@link #call}. A batch of changes is applied as one edit, and processes watching
+ * {@link #uri} are told to refresh their snapshot afterwards.
+ */
+public class SettingsProvider extends ContentProvider {
+    static final String METHOD_SNAPSHOT = "snapshot";
+    static final String METHOD_APPLY = "apply";
+    // Sets travel as string lists, Bundle has no string set type.
+    static final String EXTRA_PUT = "put";
+
+    private static final String PREFS = "UserData";
+
+    private SharedPreferences preferences;
+
+    static Uri uri(Context context) {
+        return Uri.parse("content://" + context.getPackageName() + ".settings");
+    }
+
+    @Override
+    public boolean onCreate() {
+        preferences = getContext().getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+        return true;
+    }
+
+    @Nullable
+    @Override
+    public Bundle call(@NonNull String method, @Nullable String arg, @Nullable Bundle extras) {
+        if (METHOD_SNAPSHOT.equals(method)) {
+            return snapshot();
+        }
+        if (METHOD_APPLY.equals(method) && extras != null) {
+            apply(extras);
+            getContext().getContentResolver().notifyChange(uri(getContext()), null);
+            return null;
+        }
+        throw new IllegalArgumentException("Unknown settings method " + method);
+    }
+
+    private Bundle snapshot() {
+        Bundle bundle = new Bundle();
+        for (Map.Entry<String, ?> entry : preferences.getAll().entrySet()) {
+            putValue(bundle, entry.getKey(), entry.getValue());
+        }
+        return bundle;
+    }
+
+    @SuppressWarnings({"deprecation", "unchecked"})
+    private void apply(Bundle extras) {
+        SharedPreferences.Editor editor = preferences.edit();
+        Bundle put = extras.getBundle(EXTRA_PUT);
+        if (put != null) {
+            for (String key : put.keySet()) {
+                Object value = put.get(key);
+                if (value instanceof String) editor.putString(key, (String) value);
+                else if (value instanceof Boolean) editor.putBoolean(key, (Boolean) value);
+                else if (value instanceof Integer) editor.putInt(key, (Integer) value);
+                else if (value instanceof Long) editor.putLong(key, (Long) value);
+                else if (value instanceof Float) editor.putFloat(key, (Float) value);
+                else if (value instanceof ArrayList) editor.putStringSet(key, FileManager.toSet((ArrayList<String>) value));
+            }
+        }
+        // The in-memory map is updated at once, the disk write happens in the background.
+        editor.apply();
+    }
+
+    @SuppressWarnings("unchecked")
+    static void putValue(Bundle bundle, String key, Object value) {
+        if (value instanceof String) bundle.putString(key, (String) value);
+        else if (value instanceof Boolean) bundle.putBoolean(key, (Boolean) value);
+        else if (value instanceof Integer) bundle.putInt(key, (Integer) value);
+        else if (value instanceof Long) bundle.putLong(key, (Long) value);
+        else if (value instanceof Float) bundle.putFloat(key, (Float) value);
+        else if (value instanceof Set) bundle.putStringArrayList(key, new ArrayList<>((Set<String>) value));
+    }
+
+    @Nullable
+    @Override
+    public Cursor query(@NonNull Uri uri, @Nullable String[] projection, @Nullable String selection, @Nullable String[] selectionArgs, @Nullable String sortOrder) {
+        return null;
+    }
+
+    @Nullable
+    @Override
+    public String getType(@NonNull Uri uri) {
+        return null;
+    }
+
+    @Nullable
+    @Override
+    public Uri insert(@NonNull Uri uri, @Nullable ContentValues values) {
+        return null;
+    }
+
+    @Override
+    public int delete(@NonNull Uri uri, @Nullable String selection, @Nullable String[] selectionArgs) {
+        return 0;
+    }
+
+    @Override
+    public int update(@NonNull Uri uri, @Nullable ContentValues values, @Nullable String selection, @Nullable String[] selectionArgs) {
+        return 0;
+    }
+}
@@ -18,6 +18,7 @@ public class SplitTunnelActivity extends ConnectionAwareBaseActivity {
     private RecyclerView appsRecycler;
     private CircularProgressIndicator progress;
     private boolean settingsChanged = false;
+    private BypassListAppsAdapter bypassListAppsAdapter;
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -33,15 +34,14 @@ public class SplitTunnelActivity extends ConnectionAwareBaseActivity {
                 if (settingsChanged) {
                     settingsChanged = false;
                     if (!lastKnownConnectionState.isDisconnected()) {
-                        OblivionVpnService.stopVpnService(SplitTunnelActivity.this);
-                        OblivionVpnService.startVpnService(SplitTunnelActivity.this);
+                        OblivionVpnService.reconfigureVpnService(SplitTunnelActivity.this);
                     }
                 }
                 finish();
             }
         });
 
-        BypassListAppsAdapter bypassListAppsAdapter = new BypassListAppsAdapter(this, new BypassListAppsAdapter.LoadListener() {
+        bypassListAppsAdapter = new BypassListAppsAdapter(this, new BypassListAppsAdapter.LoadListener() {
             @Override
             public void onLoad(boolean loading) {
                 appsRecycler.setVisibility(loading ? View.INVISIBLE : View.VISIBLE);
@@ -60,13 +60,24 @@ public class SplitTunnelActivity extends ConnectionAwareBaseActivity {
 
             @Override
             public void shouldShowSystemApps(boolean show) {
-                bypassListAppsAdapter.setShouldShowSystemApps(SplitTunnelActivity.this, show);
+                bypassListAppsAdapter.setShouldShowSystemApps(show);
+            }
+
+            @Override
+            public void searchQuery(String query) {
+                bypassListAppsAdapter.setQuery(query);
             }
         });
 
         appsRecycler.setAdapter(new ConcatAdapter(optionsAdapter, bypassListAppsAdapter));
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        bypassListAppsAdapter.release();
+    }
+
     @Override
     void onConnectionStateChange(ConnectionState state) {
 
@@ -2,7 +2,10 @@ package org.bepass.oblivion;
 
 public enum SplitTunnelMode {
     DISABLED,
-    BLACKLIST;
+    // The selected apps bypass the tunnel.
+    BLACKLIST,
+    // Only the selected apps use the tunnel.
+    WHITELIST;
 
     public static SplitTunnelMode getSplitTunnelMode(FileManager fm) {
         SplitTunnelMode splitTunnelMode;
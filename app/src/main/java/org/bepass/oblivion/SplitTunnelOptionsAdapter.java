@@ -1,9 +1,12 @@
 package org.bepass.oblivion;
 
 import android.content.Context;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.EditText;
 import android.widget.RadioButton;
 
 import androidx.annotation.NonNull;
@@ -28,7 +31,25 @@ public class SplitTunnelOptionsAdapter extends RecyclerView.Adapter<SplitTunnelO
     @Override
     public ViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
         View view = LayoutInflater.from(parent.getContext()).inflate(R.layout.split_tunnel_options, parent, false);
-        return new ViewHolder(view);
+        ViewHolder holder = new ViewHolder(view);
+        // Added once per view, binding the header again must not stack watchers.
+        holder.appSearch.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                settingsCallback.searchQuery(s.toString());
+            }
+        });
+        return holder;
     }
 
     @Override
@@ -37,6 +58,7 @@ public class SplitTunnelOptionsAdapter extends RecyclerView.Adapter<SplitTunnelO
         switch (stm) {
             case DISABLED: holder.disabled.setChecked(true); break;
             case BLACKLIST: holder.blacklist.setChecked(true); break;
+            case WHITELIST: holder.whitelist.setChecked(true); break;
         }
         holder.showSystemApps.setOnCheckedChangeListener((buttonView, isChecked) -> settingsCallback.shouldShowSystemApps(isChecked));
         holder.disabled.setOnCheckedChangeListener((buttonView, isChecked) -> {
@@ -52,6 +74,12 @@ public class SplitTunnelOptionsAdapter extends RecyclerView.Adapter<SplitTunnelO
             }
 
         });
+        holder.whitelist.setOnCheckedChangeListener((buttonView, isChecked) -> {
+            if (isChecked) {
+                settingsCallback.splitTunnelMode(SplitTunnelMode.WHITELIST);
+                fm.set("splitTunnelMode", SplitTunnelMode.WHITELIST.toString());
+            }
+        });
     }
 
     @Override
@@ -64,17 +92,21 @@ public class SplitTunnelOptionsAdapter extends RecyclerView.Adapter<SplitTunnelO
         RadioButton disabled;
         RadioButton blacklist;
         RadioButton whitelist;
+        EditText appSearch;
 
         public ViewHolder(@NonNull View itemView) {
             super(itemView);
             showSystemApps = itemView.findViewById(R.id.showSystemApps);
             disabled = itemView.findViewById(R.id.disabled);
             blacklist = itemView.findViewById(R.id.blacklist);
+            whitelist = itemView.findViewById(R.id.whitelist);
+            appSearch = itemView.findViewById(R.id.appSearch);
         }
     }
 
     public interface OnSettingsChanged {
         void splitTunnelMode(SplitTunnelMode mode);
         void shouldShowSystemApps(boolean show);
+        void searchQuery(String query);
     }
 }
\ No newline at end of file
@@ -0,0 +1,200 @@
+package org.bepass.oblivion;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Probes the tunnel end to end by opening SOCKS5 connections through the local proxy.
+ * A CONNECTED tunnel only means the proxy is listening; this tells whether traffic actually gets out.
+ */
+public class TunnelHealthMonitor {
+    public static final String DEFAULT_TARGET = "1.1.1.1:80";
+
+    private static final int WINDOW = 10;
+    private static final int FAILURES_TO_DEGRADE = 3;
+    private static final float LOSS_TO_DEGRADE = 0.5f;
+    private static final long FAST_INTERVAL_MS = 2000;
+    private static final long BASE_INTERVAL_MS = 5000;
+    private static final long MAX_INTERVAL_MS = 30000;
+    private static final int PROBE_TIMEOUT_MS = 5000;
+
+    private final String proxyHost;
+    private final int proxyPort;
+    private final String targetHost;
+    private final int targetPort;
+    private final Listener listener;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+
+    // Rolling window of the last WINDOW probes, only touched from the executor thread.
+    private final long[] rtts = new long[WINDOW];
+    private int next;
+    private int count;
+    private int consecutiveFailures;
+    private long interval = BASE_INTERVAL_MS;
+
+    public TunnelHealthMonitor(String proxyAddress, String target, Listener listener) {
+        Map.Entry<String, Integer> proxy = OblivionVpnService.splitHostAndPort(proxyAddress).entrySet().iterator().next();
+        Map.Entry<String, Integer> probe = OblivionVpnService.splitHostAndPort(target).entrySet().iterator().next();
+        this.proxyHost = proxy.getKey().equals("0.0.0.0") ? "127.0.0.1" : proxy.getKey();
+        this.proxyPort = proxy.getValue();
+        this.targetHost = probe.getKey();
+        this.targetPort = probe.getValue() > 0 ? probe.getValue() : 80;
+        this.listener = listener;
+    }
+
+    public void start() {
+        schedule(0);
+    }
+
+    public void stop() {
+        executor.shutdownNow();
+    }
+
+    private void probe() {
+        record(probeOnce());
+        schedule(interval);
+    }
+
+    // A probe that was running when stop() shut the executor down must not reschedule.
+    private void schedule(long delayMillis) {
+        if (executor.isShutdown()) return;
+        try {
+            executor.schedule(this::probe, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ignored) {
+            // Shut down between the check and the schedule.
+        }
+    }
+
+    /**
+     * Adds one probe result, -1 for a failure, to the window and reports the resulting health.
+     */
+    void record(long rtt) {
+        rtts[next] = rtt;
+        next = (next + 1) % WINDOW;
+        count = Math.min(count + 1, WINDOW);
+
+        if (rtt < 0) {
+            consecutiveFailures++;
+            interval = FAST_INTERVAL_MS;
+        } else {
+            consecutiveFailures = 0;
+            interval = Math.min(interval * 2, MAX_INTERVAL_MS);
+            if (interval < BASE_INTERVAL_MS) interval = BASE_INTERVAL_MS;
+        }
+
+        int lost = 0;
+        long rttSum = 0;
+        for (int i = 0; i < count; i++) {
+            if (rtts[i] < 0) lost++;
+            else rttSum += rtts[i];
+        }
+        float loss = (float) lost / count;
+        long averageRtt = lost == count ? -1 : rttSum / (count - lost);
+        boolean degraded = consecutiveFailures >= FAILURES_TO_DEGRADE
+                || (count >= FAILURES_TO_DEGRADE && loss >= LOSS_TO_DEGRADE);
+        listener.onHealth(degraded ? ConnectionState.DEGRADED : ConnectionState.CONNECTED, averageRtt, loss);
+    }
+
+    /**
+     * Runs a SOCKS5 CONNECT to the target and returns the time to the proxy's reply, or -1 on failure.
+     */
+    long probeOnce() {
+        try (Socket socket = new Socket()) {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(PROBE_TIMEOUT_MS);
+            socket.connect(new InetSocketAddress(proxyHost, proxyPort), PROBE_TIMEOUT_MS);
+            OutputStream out = socket.getOutputStream();
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+
+            out.write(new byte[]{5, 1, 0});
+            out.flush();
+            byte[] method = new byte[2];
+            in.readFully(method);
+            if (method[0] != 5 || method[1] != 0) return -1;
+
+            long start = System.nanoTime();
+            out.write(connectRequest());
+            out.flush();
+            byte[] reply = new byte[4];
+            in.readFully(reply);
+            if (reply[1] != 0) return -1;
+            skipBoundAddress(in, reply[3]);
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    private byte[] connectRequest() {
+        byte[] address = literalAddress(targetHost);
+        byte[] request;
+        int offset;
+        if (address == null) {
+            byte[] name = targetHost.getBytes(StandardCharsets.US_ASCII);
+            request = new byte[7 + name.length];
+            request[3] = 3;
+            request[4] = (byte) name.length;
+            System.arraycopy(name, 0, request, 5, name.length);
+            offset = 5 + name.length;
+        } else {
+            request = new byte[6 + address.length];
+            request[3] = (byte) (address.length == 4 ? 1 : 4);
+            System.arraycopy(address, 0, request, 4, address.length);
+            offset = 4 + address.length;
+        }
+        request[0] = 5;
+        request[1] = 1;
+        request[offset] = (byte) (targetPort >> 8);
+        request[offset + 1] = (byte) targetPort;
+        return request;
+    }
+
+    private static void skipBoundAddress(DataInputStream in, byte addressType) throws IOException {
+        int length;
+        switch (addressType) {
+            case 1: length = 4; break;
+            case 4: length = 16; break;
+            case 3: length = in.readUnsignedByte(); break;
+            default: throw new IOException("Unknown address type " + addressType);
+        }
+        in.readFully(new byte[length + 2]);
+    }
+
+    // Parses IP literals only, so a hostname target is resolved by the proxy instead of outside the tunnel.
+    private static byte[] literalAddress(String host) {
+        if (host.contains(":")) {
+            try {
+                return InetAddress.getByName(host).getAddress();
+            } catch (IOException e) {
+                return null;
+            }
+        }
+        String[] parts = host.split("\\.");
+        if (parts.length != 4) return null;
+        byte[] address = new byte[4];
+        for (int i = 0; i < 4; i++) {
+            try {
+                int value = Integer.parseInt(parts[i]);
+                if (value < 0 || value > 255) return null;
+                address[i] = (byte) value;
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return address;
+    }
+
+    public interface Listener {
+        void onHealth(ConnectionState state, long rttMillis, float loss);
+    }
+}
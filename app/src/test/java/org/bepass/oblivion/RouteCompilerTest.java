@@ -0,0 +1,130 @@
+package org.bepass.oblivion;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class RouteCompilerTest {
+
+    private static List<String> strings(List<RouteCompiler.Prefix> prefixes) {
+        List<String> out = new ArrayList<>();
+        for (RouteCompiler.Prefix prefix : prefixes) out.add(prefix.toString());
+        return out;
+    }
+
+    private static boolean contains(RouteCompiler.Prefix prefix, InetAddress address) {
+        byte[] network = prefix.address.getAddress();
+        byte[] bytes = address.getAddress();
+        if (network.length != bytes.length) return false;
+        for (int bit = 0; bit < prefix.length; bit++) {
+            int mask = 0x80 >> (bit % 8);
+            if ((network[bit / 8] & mask) != (bytes[bit / 8] & mask)) return false;
+        }
+        return true;
+    }
+
+    private static int matches(List<RouteCompiler.Prefix> prefixes, InetAddress address) {
+        int n = 0;
+        for (RouteCompiler.Prefix prefix : prefixes) {
+            if (contains(prefix, address)) n++;
+        }
+        return n;
+    }
+
+    private static InetAddress ipv4(int value) throws UnknownHostException {
+        return InetAddress.getByAddress(new byte[]{(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value});
+    }
+
+    @Test
+    public void mergesOverlappingAndAdjacentRanges() {
+        RouteCompiler.Routes routes = RouteCompiler.compile("10.0.0.0/9 10.128.0.0/9, 10.1.2.3;192.168.1.0/24\n192.168.0.0/16");
+        assertEquals(Arrays.asList("10.0.0.0/8", "192.168.0.0/16"), strings(routes.excluded()));
+    }
+
+    @Test
+    public void splitsUnalignedRangesIntoPrefixes() {
+        RouteCompiler.Routes routes = RouteCompiler.compile("10.0.0.1 10.0.0.2/31 10.0.0.4/30");
+        assertEquals(Arrays.asList("10.0.0.1/32", "10.0.0.2/31", "10.0.0.4/30"), strings(routes.excluded()));
+    }
+
+    @Test
+    public void ignoresInvalidEntries() {
+        RouteCompiler.Routes routes = RouteCompiler.compile("10.0.0.0/33 example.com 1.2.3 256.1.1.1 10.0.0.1 fd00::/129");
+        assertEquals(Arrays.asList("10.0.0.1/32"), strings(routes.excluded()));
+    }
+
+    @Test
+    public void keepsIpv6ApartFromIpv4() {
+        RouteCompiler.Routes routes = RouteCompiler.compile("fd00::/8 ::1 ::ffff:0:0/96 127.0.0.0/8");
+        assertEquals(Arrays.asList("127.0.0.0/8", "0:0:0:0:0:0:0:1/128", "0:0:0:0:0:ffff:0:0/96", "fd00:0:0:0:0:0:0:0/8"), strings(routes.excluded()));
+    }
+
+    @Test
+    public void emptyListRoutesEverything() {
+        RouteCompiler.Routes routes = RouteCompiler.compile(" ");
+        assertTrue(routes.isEmpty());
+        assertEquals(Arrays.asList("0.0.0.0/0", "0:0:0:0:0:0:0:0/0"), strings(routes.included()));
+    }
+
+    @Test
+    public void complementOfOneRange() {
+        RouteCompiler.Routes routes = RouteCompiler.compile("10.0.0.0/8");
+        assertEquals(Arrays.asList("0.0.0.0/5", "8.0.0.0/7", "11.0.0.0/8", "12.0.0.0/6", "16.0.0.0/4",
+                "32.0.0.0/3", "64.0.0.0/2", "128.0.0.0/1", "0:0:0:0:0:0:0:0/0"), strings(routes.included()));
+        assertFalse(routes.coarsened());
+    }
+
+    @Test
+    public void complementOfWholeSpaceIsEmpty() {
+        RouteCompiler.Routes routes = RouteCompiler.compile("0.0.0.0/0 ::/0");
+        assertEquals(Arrays.asList("0.0.0.0/0", "0:0:0:0:0:0:0:0/0"), strings(routes.excluded()));
+        assertTrue(routes.included().isEmpty());
+    }
+
+    @Test
+    public void includedAndExcludedPartitionTheAddressSpace() throws UnknownHostException {
+        Random random = new Random(1);
+        StringBuilder source = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            source.append(ipv4(random.nextInt()).getHostAddress()).append('/').append(8 + random.nextInt(25)).append(' ');
+        }
+        RouteCompiler.Routes routes = RouteCompiler.compile(source.toString());
+        assertFalse(routes.coarsened());
+        List<RouteCompiler.Prefix> excluded = routes.excluded();
+        List<RouteCompiler.Prefix> included = routes.included();
+        for (int i = 0; i < 2000; i++) {
+            InetAddress address = ipv4(random.nextInt());
+            assertEquals(address.getHostAddress(), 1, matches(excluded, address) + matches(included, address));
+        }
+    }
+
+    @Test
+    public void capsTheComplementOfLongLists() throws UnknownHostException {
+        // Every other /24 from 1.0.0.0 on, nothing merges and the exact complement has 50k prefixes.
+        StringBuilder source = new StringBuilder();
+        for (int i = 0; i < 50000; i++) {
+            source.append(ipv4((1 << 24) + (i << 9)).getHostAddress()).append("/24\n");
+        }
+        RouteCompiler.Routes routes = RouteCompiler.compile(source.toString());
+        assertEquals(50000, routes.excluded().size());
+        List<RouteCompiler.Prefix> included = routes.included();
+        assertTrue(included.size() + " routes", included.size() <= RouteCompiler.MAX_INCLUDED_ROUTES);
+        assertTrue(routes.coarsened());
+        // Addresses outside the bypass list still go through the tunnel.
+        Random random = new Random(2);
+        for (int i = 0; i < 2000; i++) {
+            int gap = (1 << 24) + (random.nextInt(50000) << 9) + 256 + random.nextInt(256);
+            assertEquals(1, matches(included, ipv4(gap)));
+            assertEquals(1, matches(included, ipv4(0x80000000 + random.nextInt(0x7fffffff))));
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package org.bepass.oblivion;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+public class TunnelHealthMonitorTest {
+
+    /**
+     * A local stand-in for the core's SOCKS5 proxy that answers every CONNECT with replyCode after delayMillis.
+     * lastRequest keeps the request without the length byte of a domain name.
+     */
+    private static class StandInProxy implements Runnable {
+        final ServerSocket server;
+        volatile int replyCode;
+        volatile long delayMillis;
+        volatile byte[] lastRequest;
+
+        StandInProxy() throws IOException {
+            server = new ServerSocket(0, 8, InetAddress.getByName("127.0.0.1"));
+            Thread thread = new Thread(this, "socks-stand-in");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        String address() {
+            return "127.0.0.1:" + server.getLocalPort();
+        }
+
+        @Override
+        public void run() {
+            while (!server.isClosed()) {
+                try (Socket socket = server.accept()) {
+                    serve(socket);
+                } catch (IOException | InterruptedException ignored) {
+                    // Closed by the test, or a probe gave up.
+                }
+            }
+        }
+
+        private void serve(Socket socket) throws IOException, InterruptedException {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            byte[] greeting = new byte[3];
+            in.readFully(greeting);
+            out.write(new byte[]{5, 0});
+            out.flush();
+
+            byte[] header = new byte[4];
+            in.readFully(header);
+            int length;
+            switch (header[3]) {
+                case 1: length = 4; break;
+                case 4: length = 16; break;
+                default: length = in.readUnsignedByte(); break;
+            }
+            byte[] rest = new byte[length + 2];
+            in.readFully(rest);
+            byte[] request = new byte[4 + rest.length];
+            System.arraycopy(header, 0, request, 0, 4);
+            System.arraycopy(rest, 0, request, 4, rest.length);
+            lastRequest = request;
+
+            Thread.sleep(delayMillis);
+            out.write(new byte[]{5, (byte) replyCode, 0, 1, 0, 0, 0, 0, 0, 0});
+            out.flush();
+        }
+    }
+
+    private static class Recorder implements TunnelHealthMonitor.Listener {
+        ConnectionState state;
+        long rttMillis;
+        float loss;
+
+        @Override
+        public void onHealth(ConnectionState state, long rttMillis, float loss) {
+            this.state = state;
+            this.rttMillis = rttMillis;
+            this.loss = loss;
+        }
+    }
+
+    private StandInProxy proxy;
+    private final Recorder recorder = new Recorder();
+
+    @Before
+    public void startProxy() throws IOException {
+        proxy = new StandInProxy();
+    }
+
+    @After
+    public void stopProxy() throws IOException {
+        proxy.server.close();
+    }
+
+    private TunnelHealthMonitor monitor(String target) {
+        return new TunnelHealthMonitor(proxy.address(), target, recorder);
+    }
+
+    @Test
+    public void probeMeasuresTheConnectReply() {
+        proxy.delayMillis = 100;
+        long rtt = monitor("1.1.1.1:80").probeOnce();
+        assertTrue(rtt + "ms", rtt >= 100 && rtt < 5000);
+        assertArrayEquals(new byte[]{5, 1, 0, 1, 1, 1, 1, 1, 0, 80}, proxy.lastRequest);
+    }
+
+    @Test
+    public void probeLetsTheProxyResolveHostNames() {
+        assertTrue(monitor("example.com:443").probeOnce() >= 0);
+        byte[] expected = {5, 1, 0, 3, 'e', 'x', 'a', 'm', 'p', 'l', 'e', '.', 'c', 'o', 'm', 1, (byte) 187};
+        assertArrayEquals(expected, proxy.lastRequest);
+    }
+
+    @Test
+    public void refusedConnectIsAFailure() {
+        proxy.replyCode = 5;
+        assertEquals(-1, monitor("1.1.1.1:80").probeOnce());
+    }
+
+    @Test
+    public void missingProxyIsAFailure() throws IOException {
+        TunnelHealthMonitor monitor = monitor("1.1.1.1:80");
+        proxy.server.close();
+        assertEquals(-1, monitor.probeOnce());
+    }
+
+    @Test
+    public void degradesAfterConsecutiveFailures() {
+        TunnelHealthMonitor monitor = monitor("1.1.1.1:80");
+        for (int i = 0; i < 7; i++) {
+            monitor.record(monitor.probeOnce());
+        }
+        assertEquals(ConnectionState.CONNECTED, recorder.state);
+        assertEquals(0f, recorder.loss, 0f);
+
+        proxy.replyCode = 1;
+        monitor.record(monitor.probeOnce());
+        monitor.record(monitor.probeOnce());
+        // 2 of 9 lost, below both thresholds.
+        assertEquals(ConnectionState.CONNECTED, recorder.state);
+        monitor.record(monitor.probeOnce());
+        assertEquals(ConnectionState.DEGRADED, recorder.state);
+        assertEquals(0.3f, recorder.loss, 0.001f);
+
+        proxy.replyCode = 0;
+        monitor.record(monitor.probeOnce());
+        assertEquals(ConnectionState.CONNECTED, recorder.state);
+        assertTrue(recorder.rttMillis >= 0);
+    }
+
+    @Test
+    public void degradesOnLossAcrossTheWindow() {
+        TunnelHealthMonitor monitor = monitor("1.1.1.1:80");
+        monitor.record(20);
+        monitor.record(-1);
+        // Half lost, but too few probes to tell.
+        assertEquals(ConnectionState.CONNECTED, recorder.state);
+        monitor.record(40);
+        assertEquals(ConnectionState.CONNECTED, recorder.state);
+        assertEquals(30, recorder.rttMillis);
+        monitor.record(-1);
+        assertEquals(ConnectionState.DEGRADED, recorder.state);
+        assertEquals(0.5f, recorder.loss, 0f);
+    }
+
+    @Test
+    public void allLostReportsNoRtt() {
+        TunnelHealthMonitor monitor = monitor("1.1.1.1:80");
+        for (int i = 0; i < 3; i++) monitor.record(-1);
+        assertEquals(ConnectionState.DEGRADED, recorder.state);
+        assertEquals(-1, recorder.rttMillis);
+        assertEquals(1f, recorder.loss, 0f);
+    }
+
+    @Test
+    public void startAfterStopDoesNotThrow() {
+        TunnelHealthMonitor monitor = monitor("1.1.1.1:80");
+        monitor.stop();
+        monitor.start();
+    }
+}